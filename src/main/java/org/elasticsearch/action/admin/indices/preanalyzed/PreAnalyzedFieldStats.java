@@ -0,0 +1,189 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.apache.lucene.index.Terms;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * The token statistics of a preanalyzed field. The number of documents and
+ * tokens are exact and taken from the postings statistics of the index. Token
+ * types and stacked tokens are not indexed by Lucene and are thus counted on a
+ * sample of documents, from which the number of tokens by type is estimated.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedFieldStats implements Writeable, ToXContentFragment {
+
+	private long docCount;
+	private long tokens;
+	private long sumDocFreq;
+	private long sampledDocs;
+	private long sampledTokens;
+	private long sampledStackedTokens;
+	private final Map<String, Long> sampledTypes;
+
+	public PreAnalyzedFieldStats() {
+		this.sampledTypes = new TreeMap<>();
+	}
+
+	public PreAnalyzedFieldStats(StreamInput in) throws IOException {
+		docCount = in.readVLong();
+		tokens = in.readVLong();
+		sumDocFreq = in.readVLong();
+		sampledDocs = in.readVLong();
+		sampledTokens = in.readVLong();
+		sampledStackedTokens = in.readVLong();
+		sampledTypes = new TreeMap<>(in.readMap(StreamInput::readString, StreamInput::readVLong));
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		out.writeVLong(docCount);
+		out.writeVLong(tokens);
+		out.writeVLong(sumDocFreq);
+		out.writeVLong(sampledDocs);
+		out.writeVLong(sampledTokens);
+		out.writeVLong(sampledStackedTokens);
+		out.writeMap(sampledTypes, StreamOutput::writeString, StreamOutput::writeVLong);
+	}
+
+	/**
+	 * Adds the postings statistics of the field in one segment.
+	 */
+	void addTerms(Terms terms) throws IOException {
+		docCount += Math.max(0, terms.getDocCount());
+		tokens += Math.max(0, terms.getSumTotalTermFreq());
+		sumDocFreq += Math.max(0, terms.getSumDocFreq());
+	}
+
+	void addSampledDoc() {
+		++sampledDocs;
+	}
+
+	void addSampledToken(String type, boolean stacked) {
+		++sampledTokens;
+		if (stacked)
+			++sampledStackedTokens;
+		sampledTypes.merge(type, 1L, Long::sum);
+	}
+
+	/**
+	 * Adds the statistics of another shard.
+	 */
+	public void merge(PreAnalyzedFieldStats other) {
+		docCount += other.docCount;
+		tokens += other.tokens;
+		sumDocFreq += other.sumDocFreq;
+		sampledDocs += other.sampledDocs;
+		sampledTokens += other.sampledTokens;
+		sampledStackedTokens += other.sampledStackedTokens;
+		for (Map.Entry<String, Long> entry : other.sampledTypes.entrySet())
+			sampledTypes.merge(entry.getKey(), entry.getValue(), Long::sum);
+	}
+
+	/**
+	 * @return The number of documents with at least one token in the field.
+	 */
+	public long getDocCount() {
+		return docCount;
+	}
+
+	/**
+	 * @return The number of indexed tokens, including stacked tokens, of
+	 *         live and not yet merged away deleted documents.
+	 */
+	public long getTokens() {
+		return tokens;
+	}
+
+	public long getSumDocFreq() {
+		return sumDocFreq;
+	}
+
+	public double getAvgTokensPerDoc() {
+		return docCount > 0 ? (double) tokens / docCount : 0;
+	}
+
+	public long getSampledDocs() {
+		return sampledDocs;
+	}
+
+	public long getSampledTokens() {
+		return sampledTokens;
+	}
+
+	public long getSampledStackedTokens() {
+		return sampledStackedTokens;
+	}
+
+	/**
+	 * @return The share of tokens with a position increment of 0 in the
+	 *         sample.
+	 */
+	public double getStackedRatio() {
+		return sampledTokens > 0 ? (double) sampledStackedTokens / sampledTokens : 0;
+	}
+
+	public Map<String, Long> getSampledTypes() {
+		return sampledTypes;
+	}
+
+	/**
+	 * @return The number of tokens of the given type in the index,
+	 *         extrapolated from the sample.
+	 */
+	public long getEstimatedTokens(String type) {
+		Long count = sampledTypes.get(type);
+		if (count == null || sampledTokens == 0)
+			return 0;
+		return Math.round((double) count * tokens / sampledTokens);
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("docs", docCount);
+		builder.field("tokens", tokens);
+		builder.field("sum_doc_freq", sumDocFreq);
+		builder.field("avg_tokens_per_doc", getAvgTokensPerDoc());
+		builder.startObject("estimated_tokens_by_type");
+		for (String type : sampledTypes.keySet())
+			builder.field(type, getEstimatedTokens(type));
+		builder.endObject();
+		builder.startObject("sample");
+		builder.field("docs", sampledDocs);
+		builder.field("tokens", sampledTokens);
+		builder.field("stacked_tokens", sampledStackedTokens);
+		builder.field("stacked_ratio", getStackedRatio());
+		builder.field("types", sampledTypes);
+		builder.endObject();
+		return builder;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.common.io.stream.Writeable;
+
+/**
+ * Computes token statistics of preanalyzed fields per shard.
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedStatsAction extends Action<PreAnalyzedStatsResponse> {
+
+	public static final PreAnalyzedStatsAction INSTANCE = new PreAnalyzedStatsAction();
+	public static final String NAME = "indices:monitor/preanalyzed/stats";
+
+	private PreAnalyzedStatsAction() {
+		super(NAME);
+	}
+
+	@Deprecated
+	@Override
+	public PreAnalyzedStatsResponse newResponse() {
+		throw new UnsupportedOperationException("usage of Streamable is to be replaced by Writeable");
+	}
+
+	@Override
+	public Writeable.Reader<PreAnalyzedStatsResponse> getResponseReader() {
+		return PreAnalyzedStatsResponse::new;
+	}
+}
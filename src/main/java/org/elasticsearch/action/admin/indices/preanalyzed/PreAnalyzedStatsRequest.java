@@ -0,0 +1,95 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * A request for the token statistics of preanalyzed fields.
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedStatsRequest extends BroadcastRequest<PreAnalyzedStatsRequest> {
+
+	public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+	private String[] fields = Strings.EMPTY_ARRAY;
+	private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+	public PreAnalyzedStatsRequest(String... indices) {
+		super(indices);
+	}
+
+	/**
+	 * Restricts the statistics to the given fields, which may contain
+	 * wildcards. All preanalyzed fields are included by default.
+	 */
+	public PreAnalyzedStatsRequest fields(String... fields) {
+		this.fields = fields;
+		return this;
+	}
+
+	public String[] fields() {
+		return fields;
+	}
+
+	/**
+	 * Sets the number of documents per shard of which the tokens are decoded
+	 * to count token types and stacked tokens. <tt>0</tt> disables sampling.
+	 */
+	public PreAnalyzedStatsRequest sampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+		return this;
+	}
+
+	public int sampleSize() {
+		return sampleSize;
+	}
+
+	@Override
+	public ActionRequestValidationException validate() {
+		ActionRequestValidationException validationException = super.validate();
+		if (sampleSize < 0)
+			validationException = addValidationError("[sample_size] must not be negative", validationException);
+		return validationException;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		fields = in.readStringArray();
+		sampleSize = in.readVInt();
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeStringArray(fields);
+		out.writeVInt(sampleSize);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The token statistics of preanalyzed fields, merged over the shards of each
+ * index.
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedStatsResponse extends BroadcastResponse {
+
+	private Map<String, Map<String, PreAnalyzedFieldStats>> indices;
+
+	/**
+	 * Read from a stream.
+	 */
+	PreAnalyzedStatsResponse(StreamInput in) throws IOException {
+		readFrom(in);
+	}
+
+	PreAnalyzedStatsResponse(Map<String, Map<String, PreAnalyzedFieldStats>> indices, int totalShards,
+			int successfulShards, int failedShards, List<DefaultShardOperationFailedException> shardFailures) {
+		super(totalShards, successfulShards, failedShards, shardFailures);
+		this.indices = indices;
+	}
+
+	/**
+	 * @return The statistics by field name by index name.
+	 */
+	public Map<String, Map<String, PreAnalyzedFieldStats>> getIndices() {
+		return indices;
+	}
+
+	/**
+	 * @return The statistics of the field in the given index or
+	 *         <tt>null</tt>.
+	 */
+	public PreAnalyzedFieldStats getFieldStats(String index, String field) {
+		return indices.getOrDefault(index, Collections.emptyMap()).get(field);
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		indices = new TreeMap<>(in.readMap(StreamInput::readString,
+				i -> new TreeMap<>(i.readMap(StreamInput::readString, PreAnalyzedFieldStats::new))));
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeMap(indices, StreamOutput::writeString,
+				(o, fields) -> o.writeMap(fields, StreamOutput::writeString, (o2, stats) -> stats.writeTo(o2)));
+	}
+
+	@Override
+	protected void addCustomXContentFields(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject("indices");
+		for (Map.Entry<String, Map<String, PreAnalyzedFieldStats>> index : indices.entrySet()) {
+			builder.startObject(index.getKey());
+			builder.startObject("fields");
+			for (Map.Entry<String, PreAnalyzedFieldStats> field : index.getValue().entrySet()) {
+				builder.startObject(field.getKey());
+				field.getValue().toXContent(builder, params);
+				builder.endObject();
+			}
+			builder.endObject();
+			builder.endObject();
+		}
+		builder.endObject();
+	}
+}
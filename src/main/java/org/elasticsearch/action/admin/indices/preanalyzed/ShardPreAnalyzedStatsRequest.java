@@ -0,0 +1,67 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+/**
+ * @author faessler
+ *
+ */
+class ShardPreAnalyzedStatsRequest extends BroadcastShardRequest {
+
+	private String[] fields;
+	private int sampleSize;
+
+	ShardPreAnalyzedStatsRequest() {
+	}
+
+	ShardPreAnalyzedStatsRequest(ShardId shardId, PreAnalyzedStatsRequest request) {
+		super(shardId, request);
+		this.fields = request.fields();
+		this.sampleSize = request.sampleSize();
+	}
+
+	String[] fields() {
+		return fields;
+	}
+
+	int sampleSize() {
+		return sampleSize;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		fields = in.readStringArray();
+		sampleSize = in.readVInt();
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeStringArray(fields);
+		out.writeVInt(sampleSize);
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.admin.indices.preanalyzed;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedBinaryFormat;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedTokens;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Computes the token statistics of preanalyzed fields on each shard and merges
+ * them per index.
+ * </p>
+ * <p>
+ * The document and token counts are read from the postings statistics of
+ * each segment, which costs constant time per segment. Token types and
+ * position increments are not indexed, so they are counted on an evenly
+ * spread sample of documents: The tokens are decoded from the stored tokens
+ * of fields with <tt>synthetic_source</tt> or, otherwise, from
+ * <tt>_source</tt> by the index analyzer of the field.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class TransportPreAnalyzedStatsAction extends TransportBroadcastAction<PreAnalyzedStatsRequest,
+		PreAnalyzedStatsResponse, ShardPreAnalyzedStatsRequest, ShardPreAnalyzedStatsResponse> {
+
+	private final IndicesService indicesService;
+
+	@Inject
+	public TransportPreAnalyzedStatsAction(ClusterService clusterService, TransportService transportService,
+			IndicesService indicesService, ActionFilters actionFilters,
+			IndexNameExpressionResolver indexNameExpressionResolver) {
+		super(PreAnalyzedStatsAction.NAME, clusterService, transportService, actionFilters,
+				indexNameExpressionResolver, PreAnalyzedStatsRequest::new, ShardPreAnalyzedStatsRequest::new,
+				ThreadPool.Names.MANAGEMENT);
+		this.indicesService = indicesService;
+	}
+
+	@Override
+	protected ShardPreAnalyzedStatsRequest newShardRequest(int numShards, ShardRouting shard,
+			PreAnalyzedStatsRequest request) {
+		return new ShardPreAnalyzedStatsRequest(shard.shardId(), request);
+	}
+
+	@Override
+	protected ShardPreAnalyzedStatsResponse newShardResponse() {
+		return new ShardPreAnalyzedStatsResponse();
+	}
+
+	@Override
+	protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState, PreAnalyzedStatsRequest request,
+			String[] concreteIndices) {
+		return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+	}
+
+	@Override
+	protected ClusterBlockException checkGlobalBlock(ClusterState state, PreAnalyzedStatsRequest request) {
+		return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_READ);
+	}
+
+	@Override
+	protected ClusterBlockException checkRequestBlock(ClusterState state, PreAnalyzedStatsRequest request,
+			String[] concreteIndices) {
+		return state.blocks().indicesBlockedException(ClusterBlockLevel.METADATA_READ, concreteIndices);
+	}
+
+	// the parameter must stay raw to override the raw signature of
+	// TransportBroadcastAction, a wildcard would not override it
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected PreAnalyzedStatsResponse newResponse(PreAnalyzedStatsRequest request,
+			AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+		int successfulShards = 0;
+		int failedShards = 0;
+		List<DefaultShardOperationFailedException> shardFailures = new ArrayList<>();
+		Map<String, Map<String, PreAnalyzedFieldStats>> indices = new TreeMap<>();
+		for (int i = 0; i < shardsResponses.length(); i++) {
+			Object shardResponse = shardsResponses.get(i);
+			if (shardResponse == null) {
+				// simply ignore non active shards
+			} else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+				failedShards++;
+				shardFailures.add(
+						new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+			} else {
+				ShardPreAnalyzedStatsResponse response = (ShardPreAnalyzedStatsResponse) shardResponse;
+				Map<String, PreAnalyzedFieldStats> fields = indices.computeIfAbsent(response.getIndex(),
+						k -> new TreeMap<>());
+				for (Map.Entry<String, PreAnalyzedFieldStats> entry : response.fieldStats().entrySet()) {
+					PreAnalyzedFieldStats stats = fields.putIfAbsent(entry.getKey(), entry.getValue());
+					if (stats != null)
+						stats.merge(entry.getValue());
+				}
+				successfulShards++;
+			}
+		}
+		return new PreAnalyzedStatsResponse(indices, shardsResponses.length(), successfulShards, failedShards,
+				shardFailures);
+	}
+
+	@Override
+	protected ShardPreAnalyzedStatsResponse shardOperation(ShardPreAnalyzedStatsRequest request, Task task)
+			throws IOException {
+		IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+		IndexShard indexShard = indexService.getShard(request.shardId().id());
+		List<PreAnalyzedMapper> mappers = new ArrayList<>();
+		DocumentMapper documentMapper = indexService.mapperService().documentMapper();
+		if (documentMapper != null) {
+			for (Mapper mapper : documentMapper.mappers()) {
+				if (mapper instanceof PreAnalyzedMapper && (request.fields().length == 0
+						|| Regex.simpleMatch(request.fields(), ((PreAnalyzedMapper) mapper).fieldType().name())))
+					mappers.add((PreAnalyzedMapper) mapper);
+			}
+		}
+		Map<String, PreAnalyzedFieldStats> fieldStats = new HashMap<>();
+		for (PreAnalyzedMapper mapper : mappers)
+			fieldStats.put(mapper.fieldType().name(), new PreAnalyzedFieldStats());
+		if (mappers.isEmpty())
+			return new ShardPreAnalyzedStatsResponse(request.shardId(), fieldStats);
+
+		try (Engine.Searcher searcher = indexShard.acquireSearcher("preanalyzed_stats")) {
+			for (LeafReaderContext leaf : searcher.reader().leaves()) {
+				for (PreAnalyzedMapper mapper : mappers) {
+					Terms terms = leaf.reader().terms(mapper.fieldType().name());
+					if (terms != null)
+						fieldStats.get(mapper.fieldType().name()).addTerms(terms);
+				}
+			}
+			sample(searcher, mappers, request.sampleSize(), fieldStats);
+		}
+		return new ShardPreAnalyzedStatsResponse(request.shardId(), fieldStats);
+	}
+
+	/**
+	 * Counts token types and stacked tokens of up to <tt>sampleSize</tt> live
+	 * documents, spread evenly over the shard.
+	 */
+	private void sample(Engine.Searcher searcher, List<PreAnalyzedMapper> mappers, int sampleSize,
+			Map<String, PreAnalyzedFieldStats> fieldStats) throws IOException {
+		int maxDoc = searcher.reader().maxDoc();
+		if (sampleSize == 0 || maxDoc == 0)
+			return;
+		int step = Math.max(1, maxDoc / sampleSize);
+		SampleVisitor visitor = new SampleVisitor(mappers);
+		PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+		int sampled = 0;
+		for (LeafReaderContext leaf : searcher.reader().leaves()) {
+			Bits liveDocs = leaf.reader().getLiveDocs();
+			int first = (leaf.docBase + step - 1) / step * step - leaf.docBase;
+			for (int doc = first; doc < leaf.reader().maxDoc() && sampled < sampleSize; doc += step) {
+				if (liveDocs != null && !liveDocs.get(doc))
+					continue;
+				visitor.reset();
+				leaf.reader().document(doc, visitor);
+				Map<String, Object> source = visitor.source != null
+						? SourceLookup.sourceAsMap(new BytesArray(visitor.source)) : null;
+				for (PreAnalyzedMapper mapper : mappers) {
+					String name = mapper.fieldType().name();
+					PreAnalyzedFieldStats stats = fieldStats.get(name);
+					List<byte[]> storedTokens = visitor.tokens.get(name);
+					boolean hasValue = false;
+					if (storedTokens != null) {
+						for (byte[] value : storedTokens) {
+							tokens.clear();
+							PreAnalyzedBinaryFormat.read(new ByteArrayDataInput(value), value.length, tokens);
+							for (int i = 0; i < tokens.size(); i++)
+								stats.addSampledToken(tokens.type(i) != null ? tokens.type(i) : TypeAttribute.DEFAULT_TYPE,
+										tokens.positionIncrement(i) == 0);
+							hasValue = true;
+						}
+					} else if (source != null) {
+						for (Object value : XContentMapValues.extractRawValues(name, source)) {
+							if (value == null)
+								continue;
+							countTokens(mapper, value.toString(), stats);
+							hasValue = true;
+						}
+					}
+					if (hasValue)
+						stats.addSampledDoc();
+				}
+				++sampled;
+			}
+		}
+	}
+
+	private static void countTokens(PreAnalyzedMapper mapper, String value, PreAnalyzedFieldStats stats)
+			throws IOException {
+		try (TokenStream ts = mapper.fieldType().indexAnalyzer().tokenStream(mapper.fieldType().name(), value)) {
+			TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+			PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+			ts.reset();
+			while (ts.incrementToken())
+				stats.addSampledToken(typeAtt.type(), posIncrAtt.getPositionIncrement() == 0);
+			ts.end();
+		}
+	}
+
+	/**
+	 * Loads <tt>_source</tt> and the stored tokens of fields with
+	 * <tt>synthetic_source</tt>.
+	 */
+	private static class SampleVisitor extends StoredFieldVisitor {
+		private final Map<String, String> tokenFields = new HashMap<>();
+		private final boolean needsSource;
+		private byte[] source;
+		private final Map<String, List<byte[]>> tokens = new HashMap<>();
+
+		SampleVisitor(List<PreAnalyzedMapper> mappers) {
+			boolean needsSource = false;
+			for (PreAnalyzedMapper mapper : mappers) {
+				if (mapper.syntheticSource())
+					tokenFields.put(mapper.fieldType().name() + PreAnalyzedMapper.TOKENS_FIELD_SUFFIX,
+							mapper.fieldType().name());
+				else
+					needsSource = true;
+			}
+			this.needsSource = needsSource;
+		}
+
+		void reset() {
+			source = null;
+			tokens.clear();
+		}
+
+		@Override
+		public Status needsField(FieldInfo fieldInfo) {
+			if (needsSource && SourceFieldMapper.NAME.equals(fieldInfo.name))
+				return Status.YES;
+			return tokenFields.containsKey(fieldInfo.name) ? Status.YES : Status.NO;
+		}
+
+		@Override
+		public void binaryField(FieldInfo fieldInfo, byte[] value) {
+			if (SourceFieldMapper.NAME.equals(fieldInfo.name))
+				source = value;
+			else
+				tokens.computeIfAbsent(tokenFields.get(fieldInfo.name), k -> new ArrayList<>()).add(value);
+		}
+	}
+}
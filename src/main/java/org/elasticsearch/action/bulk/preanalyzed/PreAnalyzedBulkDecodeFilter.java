@@ -0,0 +1,66 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.bulk.preanalyzed;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkShardRequest;
+import org.elasticsearch.action.bulk.TransportShardBulkAction;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedPredecoder;
+import org.elasticsearch.tasks.Task;
+
+/**
+ * Starts decoding the preanalyzed values of each bulk shard request when it
+ * is executed, see {@link PreAnalyzedPredecoder}.
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedBulkDecodeFilter implements ActionFilter {
+
+	private final PreAnalyzedPredecoder predecoder;
+
+	public PreAnalyzedBulkDecodeFilter(PreAnalyzedPredecoder predecoder) {
+		this.predecoder = predecoder;
+	}
+
+	/**
+	 * Runs after all other filters so that no values are decoded for requests
+	 * that are rejected.
+	 */
+	@Override
+	public int order() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public <Request extends ActionRequest, Response extends ActionResponse> void apply(Task task, String action,
+			Request request, ActionListener<Response> listener, ActionFilterChain<Request, Response> chain) {
+		if (TransportShardBulkAction.ACTION_NAME.equals(action) && request instanceof BulkShardRequest) {
+			Releasable decoded = predecoder.predecode((BulkShardRequest) request);
+			chain.proceed(task, action, request, ActionListener.runAfter(listener, decoded::close));
+		} else {
+			chain.proceed(task, action, request, listener);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.json.JsonXContentParser;
+import org.elasticsearch.index.mapper.MapperParsingException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * <p>
+ * The index analyzer of preanalyzed fields.
+ * </p>
+ * <p>
+ * Values in the preanalyzed JSON format are not analyzed but decoded into
+ * their tokens, just like at indexing time. Everything else, e.g. the
+ * <tt>str</tt> value of a stored field or the text given to the analyze API,
+ * is analyzed by the wrapped analyzer of the field mapping. This allows
+ * Elasticsearch to generate term vectors for preanalyzed fields from the
+ * <tt>_source</tt> on the fly so that term vectors do not need to be stored.
+ * </p>
+ * <p>
+ * Note that char filters of the wrapped analyzer are applied before the
+ * value is recognized as preanalyzed JSON.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedAnalyzer extends AnalyzerWrapper {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final Analyzer delegate;
+	private final PreAnalyzedTokenDecoder.Settings decoderSettings;
+	private final int boundaryGap;
+	private final PreAnalyzedMapper.IndexTokensSettings indexTokens;
+	private final PreAnalyzedTokenFiles tokenFiles;
+
+	public PreAnalyzedAnalyzer(Analyzer delegate) {
+		this(delegate, PreAnalyzedTokenDecoder.Settings.DEFAULT, 0, null, PreAnalyzedTokenFiles.DISABLED);
+	}
+
+	/**
+	 * @param decoderSettings
+	 *            How the tokens are decoded, as they are at indexing time.
+	 *            With {@link PreAnalyzedTokenDecoder.Settings#repairOrder()},
+	 *            the tokens are brought into index order.
+	 * @param boundaryGap
+	 *            The positions left empty in front of sentences and sections,
+	 *            as they are at indexing time with <tt>boundaries</tt>.
+	 * @param indexTokens
+	 *            The <tt>index_tokens</tt> of the field or <tt>null</tt>.
+	 * @param tokenFiles
+	 *            The token files that may be referenced by values.
+	 */
+	PreAnalyzedAnalyzer(Analyzer delegate, PreAnalyzedTokenDecoder.Settings decoderSettings, int boundaryGap,
+			PreAnalyzedMapper.IndexTokensSettings indexTokens, PreAnalyzedTokenFiles tokenFiles) {
+		super(PER_FIELD_REUSE_STRATEGY);
+		this.delegate = delegate;
+		this.decoderSettings = decoderSettings;
+		this.boundaryGap = boundaryGap;
+		this.indexTokens = indexTokens;
+		this.tokenFiles = tokenFiles;
+	}
+
+	@Override
+	protected Analyzer getWrappedAnalyzer(String fieldName) {
+		return delegate;
+	}
+
+	@Override
+	protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+		PreAnalyzedTokensFilter filter = new PreAnalyzedTokensFilter(components.getTokenStream(), boundaryGap,
+				indexTokens);
+		return new TokenStreamComponents(reader -> {
+			String text;
+			try {
+				text = Streams.copyToString(reader);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not read the value of field [" + fieldName + "]", e);
+			}
+			PreAnalyzedTokens tokens = parseTokens(text, filter);
+			// the wrapped components only see the value if it is no
+			// preanalyzed JSON
+			components.getSource().accept(new StringReader(tokens != null ? "" : text));
+		}, filter);
+	}
+
+	/**
+	 * Decodes the tokens of preanalyzed JSON and hands them to the filter.
+	 *
+	 * @return The decoded tokens or <tt>null</tt> if <tt>text</tt> is no
+	 *         JSON or has no tokens.
+	 * @throws MapperParsingException
+	 *             If the tokens of preanalyzed JSON could not be decoded.
+	 */
+	private PreAnalyzedTokens parseTokens(String text, PreAnalyzedTokensFilter filter) {
+		PreAnalyzedTokens tokens = null;
+		int finalOffset = -1;
+		if (text.trim().startsWith("{")) {
+			try (XContentParser parser = new JsonXContentParser(null, new NoopDeprecationHandler(),
+					jsonFactory.createParser(text))) {
+				parser.nextToken();
+				Token currentToken;
+				String currentFieldName = null;
+				while ((currentToken = parser.nextToken()) != Token.END_OBJECT && currentToken != null) {
+					if (currentToken == Token.FIELD_NAME) {
+						currentFieldName = parser.currentName();
+					} else if (currentToken == Token.START_ARRAY && PreAnalyzedFormat.TOKENS_KEY.equals(currentFieldName)) {
+						tokens = new PreAnalyzedTokens();
+						PreAnalyzedTokenDecoder.decode(parser, decoderSettings, tokens);
+					} else if (currentToken == Token.START_OBJECT && PreAnalyzedFormat.FILE_KEY.equals(currentFieldName)) {
+						tokens = new PreAnalyzedTokens();
+						tokenFiles.read(parser, decoderSettings, tokens);
+					} else if (currentToken == Token.START_ARRAY || currentToken == Token.START_OBJECT) {
+						parser.skipChildren();
+					} else if (currentToken == Token.VALUE_STRING && PreAnalyzedFormat.STRING_KEY.equals(currentFieldName)) {
+						finalOffset = parser.textLength();
+					}
+				}
+			} catch (JsonProcessingException e) {
+				// no JSON, leave it to the wrapped analyzer
+				tokens = null;
+			} catch (IOException e) {
+				throw new MapperParsingException("Could not read the preanalyzed tokens", e);
+			}
+		}
+		if (tokens != null && decoderSettings.repairOrder())
+			tokens.repairOrder(finalOffset);
+		filter.setTokens(tokens, finalOffset);
+		return tokens;
+	}
+
+	/**
+	 * Emits preanalyzed tokens, if set, instead of the tokens of its input.
+	 */
+	private static class PreAnalyzedTokensFilter extends TokenFilter {
+		private final PreAnalyzedTokenIterator iterator = new PreAnalyzedTokenIterator(this);
+		private PreAnalyzedTokens tokens;
+
+		PreAnalyzedTokensFilter(TokenStream input, int boundaryGap, PreAnalyzedMapper.IndexTokensSettings indexTokens) {
+			super(input);
+			iterator.setBoundaryGap(boundaryGap);
+			iterator.setIndexTokens(indexTokens);
+		}
+
+		void setTokens(PreAnalyzedTokens tokens, int finalOffset) {
+			this.tokens = tokens;
+			if (tokens != null) {
+				iterator.setTokens(tokens);
+				iterator.setFinalOffset(finalOffset);
+			}
+		}
+
+		@Override
+		public boolean incrementToken() throws IOException {
+			if (tokens == null)
+				return input.incrementToken();
+			return iterator.next();
+		}
+
+		@Override
+		public void end() throws IOException {
+			super.end();
+			if (tokens != null)
+				iterator.end();
+		}
+
+		@Override
+		public void reset() throws IOException {
+			super.reset();
+			iterator.reset();
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			tokens = null;
+		}
+	}
+}
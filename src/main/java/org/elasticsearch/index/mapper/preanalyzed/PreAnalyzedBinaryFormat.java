@@ -0,0 +1,268 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A compact binary representation of {@link PreAnalyzedTokens}.
+ * </p>
+ * <p>
+ * After a version byte and the number of tokens, each token is written as a
+ * header byte announcing its optional attributes, followed by the UTF-8 term,
+ * the start offset as a delta to the previous start offset and the length of
+ * the offset span. The position increment and length are only written if they
+ * differ from 1, the flags, type, payload and boundary only if they are set. Types are written once
+ * and afterwards referenced by their number of appearance. The format only
+ * depends on the Lucene store API so it can be shared with client code.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedBinaryFormat {
+
+	public static final byte VERSION = 1;
+
+	private static final int HAS_POSITION_INCREMENT = 1;
+	private static final int HAS_FLAGS = 1 << 1;
+	private static final int HAS_TYPE = 1 << 2;
+	private static final int HAS_PAYLOAD = 1 << 3;
+	private static final int HAS_POSITION_LENGTH = 1 << 4;
+	private static final int HAS_BOUNDARY = 1 << 5;
+	private static final int ALL_ATTRIBUTES = (1 << 6) - 1;
+
+	private PreAnalyzedBinaryFormat() {
+	}
+
+	public static void write(PreAnalyzedTokens tokens, DataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeVInt(tokens.size());
+		Map<String, Integer> typeIds = new HashMap<>();
+		byte[] utf8 = new byte[16];
+		int lastStart = 0;
+		for (int i = 0; i < tokens.size(); i++) {
+			int header = 0;
+			if (tokens.positionIncrement(i) != 1)
+				header |= HAS_POSITION_INCREMENT;
+			if (tokens.flags(i) != 0)
+				header |= HAS_FLAGS;
+			if (tokens.type(i) != null)
+				header |= HAS_TYPE;
+			if (tokens.payload(i) != null)
+				header |= HAS_PAYLOAD;
+			if (tokens.positionLength(i) != 1)
+				header |= HAS_POSITION_LENGTH;
+			if (tokens.boundary(i) != PreAnalyzedTokens.NO_BOUNDARY)
+				header |= HAS_BOUNDARY;
+			out.writeByte((byte) header);
+
+			int termLength = tokens.termLength(i);
+			utf8 = ArrayUtil.grow(utf8, UnicodeUtil.maxUTF8Length(termLength));
+			int utf8Length = UnicodeUtil.UTF16toUTF8(tokens.termBuffer(), tokens.termStart(i), termLength, utf8);
+			out.writeVInt(utf8Length);
+			out.writeBytes(utf8, 0, utf8Length);
+
+			int start = tokens.startOffset(i);
+			out.writeZInt(start - lastStart);
+			out.writeZInt(tokens.endOffset(i) - start);
+			lastStart = start;
+
+			if ((header & HAS_POSITION_INCREMENT) != 0)
+				out.writeVInt(tokens.positionIncrement(i));
+			if ((header & HAS_FLAGS) != 0)
+				out.writeVInt(tokens.flags(i));
+			if ((header & HAS_TYPE) != 0) {
+				Integer typeId = typeIds.get(tokens.type(i));
+				if (typeId == null) {
+					// 0 announces a type that has not been written before
+					out.writeVInt(0);
+					out.writeString(tokens.type(i));
+					typeIds.put(tokens.type(i), typeIds.size() + 1);
+				} else {
+					out.writeVInt(typeId);
+				}
+			}
+			if ((header & HAS_PAYLOAD) != 0) {
+				BytesRef payload = tokens.payload(i);
+				out.writeVInt(payload.length);
+				out.writeBytes(payload.bytes, payload.offset, payload.length);
+			}
+			if ((header & HAS_POSITION_LENGTH) != 0)
+				out.writeVInt(tokens.positionLength(i));
+			if ((header & HAS_BOUNDARY) != 0)
+				out.writeVInt(tokens.boundary(i));
+		}
+	}
+
+	/**
+	 * Appends the tokens read from the next <tt>length</tt> bytes of
+	 * <tt>in</tt> to <tt>tokens</tt>. The structure of the data is checked
+	 * against <tt>length</tt> before anything is allocated, so that corrupt
+	 * data fails with an {@link IOException}. The values of the tokens are
+	 * not validated, e.g. offsets or position increments may be negative.
+	 *
+	 * @throws IOException
+	 *             If the data is corrupt or ends before <tt>length</tt>
+	 *             bytes.
+	 */
+	public static void read(DataInput in, long length, PreAnalyzedTokens tokens) throws IOException {
+		BoundedDataInput input = new BoundedDataInput(in, length);
+		byte version = input.readByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary preanalyzed format version " + version);
+		int size = input.readVInt();
+		// each token takes at least four bytes
+		if (size < 0 || size > input.remaining / 4)
+			throw new IOException("Corrupt binary preanalyzed tokens: " + size + " tokens in " + input.remaining
+					+ " bytes");
+		List<String> types = new ArrayList<>();
+		byte[] utf8 = new byte[16];
+		char[] chars = new char[16];
+		int lastStart = 0;
+		for (int i = 0; i < size; i++) {
+			int header = input.readByte() & 0xff;
+			if ((header & ~ALL_ATTRIBUTES) != 0)
+				throw new IOException("Corrupt binary preanalyzed tokens: unknown token header " + header);
+
+			int utf8Length = input.readLength();
+			utf8 = ArrayUtil.grow(utf8, utf8Length);
+			input.readBytes(utf8, 0, utf8Length);
+			checkUTF8(utf8, utf8Length);
+			chars = ArrayUtil.grow(chars, utf8Length);
+			int termLength = UnicodeUtil.UTF8toUTF16(utf8, 0, utf8Length, chars);
+			int index = tokens.add(chars, 0, termLength);
+
+			long start = (long) lastStart + input.readZInt();
+			long end = start + input.readZInt();
+			if (start != (int) start || end != (int) end)
+				throw new IOException("Corrupt binary preanalyzed tokens: the offsets [" + start + ", " + end
+						+ "] overflow");
+			tokens.setOffsets(index, (int) start, (int) end);
+			lastStart = (int) start;
+
+			if ((header & HAS_POSITION_INCREMENT) != 0)
+				tokens.setPositionIncrement(index, input.readVInt());
+			if ((header & HAS_FLAGS) != 0)
+				tokens.setFlags(index, input.readVInt());
+			if ((header & HAS_TYPE) != 0) {
+				int typeId = input.readVInt();
+				if (typeId == 0) {
+					int typeLength = input.readLength();
+					byte[] type = new byte[typeLength];
+					input.readBytes(type, 0, typeLength);
+					checkUTF8(type, typeLength);
+					types.add(new String(type, StandardCharsets.UTF_8));
+					typeId = types.size();
+				} else if (typeId < 0 || typeId > types.size()) {
+					throw new IOException("Corrupt binary preanalyzed tokens: unknown type id " + typeId + ", "
+							+ types.size() + " types have been read");
+				}
+				tokens.setType(index, types.get(typeId - 1));
+			}
+			if ((header & HAS_PAYLOAD) != 0) {
+				byte[] payload = new byte[input.readLength()];
+				input.readBytes(payload, 0, payload.length);
+				tokens.setPayload(index, new BytesRef(payload));
+			}
+			if ((header & HAS_POSITION_LENGTH) != 0)
+				tokens.setPositionLength(index, input.readVInt());
+			if ((header & HAS_BOUNDARY) != 0)
+				tokens.setBoundary(index, input.readVInt());
+		}
+	}
+
+	/**
+	 * Checks the structure of UTF-8 bytes, which
+	 * {@link UnicodeUtil#UTF8toUTF16(byte[], int, int, char[])} relies on.
+	 */
+	private static void checkUTF8(byte[] utf8, int length) throws IOException {
+		for (int i = 0; i < length;) {
+			int b = utf8[i++] & 0xff;
+			int continuations;
+			if (b < 0x80)
+				continuations = 0;
+			else if (b >= 0xc0 && b < 0xe0)
+				continuations = 1;
+			else if (b >= 0xe0 && b < 0xf0)
+				continuations = 2;
+			else if (b >= 0xf0 && b < 0xf8)
+				continuations = 3;
+			else
+				throw new IOException("Corrupt binary preanalyzed tokens: invalid UTF-8");
+			for (; continuations > 0; continuations--) {
+				if (i == length || (utf8[i++] & 0xc0) != 0x80)
+					throw new IOException("Corrupt binary preanalyzed tokens: invalid UTF-8");
+			}
+		}
+	}
+
+	/**
+	 * Reads at most a given number of bytes from the wrapped input.
+	 */
+	private static final class BoundedDataInput extends DataInput {
+		private final DataInput in;
+		private long remaining;
+
+		private BoundedDataInput(DataInput in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public byte readByte() throws IOException {
+			if (remaining == 0)
+				throw new EOFException("Corrupt binary preanalyzed tokens: read past the end");
+			--remaining;
+			return in.readByte();
+		}
+
+		@Override
+		public void readBytes(byte[] b, int offset, int len) throws IOException {
+			if (len > remaining)
+				throw new EOFException("Corrupt binary preanalyzed tokens: read past the end");
+			remaining -= len;
+			in.readBytes(b, offset, len);
+		}
+
+		/**
+		 * Reads the length of the bytes that follow.
+		 */
+		private int readLength() throws IOException {
+			int length = readVInt();
+			if (length < 0 || length > remaining)
+				throw new IOException("Corrupt binary preanalyzed tokens: a length of " + length + " exceeds the "
+						+ remaining + " remaining bytes");
+			return length;
+		}
+	}
+}
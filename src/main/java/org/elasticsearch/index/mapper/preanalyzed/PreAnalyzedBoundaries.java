@@ -0,0 +1,198 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The table of sentence and section boundaries of a preanalyzed field with
+ * <tt>boundaries</tt> in a document.
+ * </p>
+ * <p>
+ * A boundary is the position of the first token of a sentence or section,
+ * counted across all values of the field just like Lucene counts the
+ * positions. Each value but the first starts a new section. The table is
+ * indexed as binary doc values in the field with the suffix
+ * {@link #FIELD_SUFFIX}: the number of boundaries followed by the position of
+ * each boundary as a VInt delta to the previous one, shifted left by one bit
+ * that is set for sections.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedBoundaries {
+
+	/**
+	 * The suffix of the binary doc values field holding the boundaries of a
+	 * field with <tt>boundaries</tt>.
+	 */
+	public static final String FIELD_SUFFIX = "._boundaries";
+
+	private int size;
+	private int[] positions = new int[8];
+	private boolean[] sections = new boolean[8];
+
+	public int size() {
+		return size;
+	}
+
+	public int position(int index) {
+		return positions[index];
+	}
+
+	public boolean isSection(int index) {
+		return sections[index];
+	}
+
+	/**
+	 * Appends a boundary behind the previous ones.
+	 */
+	public void add(int position, boolean section) {
+		if (size == positions.length) {
+			int newLength = ArrayUtil.oversize(size + 1, Integer.BYTES);
+			positions = ArrayUtil.growExact(positions, newLength);
+			sections = Arrays.copyOf(sections, newLength);
+		}
+		positions[size] = position;
+		sections[size] = section;
+		++size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Replaces the boundaries by those encoded in <tt>bytes</tt>.
+	 */
+	public void read(BytesRef bytes) {
+		ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+		clear();
+		int count = in.readVInt();
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			int entry = in.readVInt();
+			position += entry >>> 1;
+			add(position, (entry & 1) != 0);
+		}
+	}
+
+	public BytesRef toBytesRef() {
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		try {
+			out.writeVInt(size);
+			int lastPosition = 0;
+			for (int i = 0; i < size; i++) {
+				out.writeVInt((positions[i] - lastPosition) << 1 | (sections[i] ? 1 : 0));
+				lastPosition = positions[i];
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new BytesRef(out.toArrayCopy());
+	}
+
+	/**
+	 * @return Whether the positions from <tt>start</tt> (inclusive) to
+	 *         <tt>end</tt> (exclusive), e.g. of a span, extend over more than
+	 *         one sentence or, with <tt>sectionsOnly</tt>, more than one
+	 *         section.
+	 */
+	public boolean crosses(int start, int end, boolean sectionsOnly) {
+		// the first boundary behind start
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (positions[mid] <= start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		for (int i = low; i < size && positions[i] < end; i++) {
+			if (!sectionsOnly || sections[i])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Collects the boundaries of the values of a field in a document while
+	 * they are parsed and hands them to Lucene as binary doc values once the
+	 * document is indexed.
+	 */
+	static final class DocValuesField extends Field {
+
+		private static final FieldType TYPE = new FieldType();
+
+		static {
+			TYPE.setDocValuesType(DocValuesType.BINARY);
+			TYPE.freeze();
+		}
+
+		private final PreAnalyzedBoundaries boundaries = new PreAnalyzedBoundaries();
+		/** The position of the last token, as tracked by Lucene. */
+		private int position = -1;
+		private boolean firstValue = true;
+
+		DocValuesField(String name) {
+			super(name, TYPE);
+		}
+
+		/**
+		 * Adds the boundaries of the next indexed value of the field.
+		 *
+		 * @param boundaryGap
+		 *            The positions left empty in front of each boundary.
+		 * @param positionIncrementGap
+		 *            The positions Lucene leaves empty between the values of
+		 *            the field.
+		 */
+		void addValue(PreAnalyzedTokens tokens, int boundaryGap, int positionIncrementGap) {
+			for (int i = 0; i < tokens.size(); i++) {
+				position += tokens.positionIncrement(i, boundaryGap);
+				if (i == 0) {
+					if (!firstValue)
+						boundaries.add(position, true);
+				} else if (tokens.boundary(i) != PreAnalyzedTokens.NO_BOUNDARY) {
+					boundaries.add(position, tokens.boundary(i) == PreAnalyzedTokens.SECTION_BOUNDARY);
+				}
+			}
+			position += positionIncrementGap;
+			firstValue = false;
+		}
+
+		@Override
+		public BytesRef binaryValue() {
+			return boundaries.toBytesRef();
+		}
+	}
+}
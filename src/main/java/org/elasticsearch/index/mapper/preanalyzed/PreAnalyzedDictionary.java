@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.MapperParsingException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A dictionary of token types or flag names declared in the mapping of a
+ * preanalyzed field, e.g. <tt>"type_dictionary": ["NN", "NNP", "VB"]</tt>.
+ * The code of a value is its position in the dictionary.
+ * </p>
+ * <p>
+ * Clients may send the code instead of the value. Codes are resolved to the
+ * interned values of the dictionary so that all tokens share the same
+ * instances. Values given as text are looked up without creating a new
+ * String.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedDictionary {
+
+	private final String[] values;
+	private final CharArrayMap<Integer> codes;
+
+	public PreAnalyzedDictionary(String... values) {
+		this.values = new String[values.length];
+		this.codes = new CharArrayMap<>(values.length, false);
+		for (int i = 0; i < values.length; i++) {
+			this.values[i] = values[i].intern();
+			codes.put(this.values[i], i);
+		}
+	}
+
+	/**
+	 * Parses a dictionary mapping property.
+	 *
+	 * @param maxSize
+	 *            The maximum number of values.
+	 */
+	static PreAnalyzedDictionary parse(String name, String propName, Object propNode, int maxSize) {
+		String[] values = XContentMapValues.nodeStringArrayValue(propNode);
+		if (values.length > maxSize)
+			throw new MapperParsingException("[" + propName + "] of field [" + name + "] may have at most " + maxSize
+					+ " values but has " + values.length);
+		PreAnalyzedDictionary dictionary = new PreAnalyzedDictionary(values);
+		if (dictionary.codes.size() != values.length)
+			throw new MapperParsingException("[" + propName + "] of field [" + name + "] contains duplicate values: "
+					+ Arrays.toString(values));
+		for (String value : values) {
+			if (value.isEmpty())
+				throw new MapperParsingException("[" + propName + "] of field [" + name + "] contains an empty value");
+		}
+		return dictionary;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return The value with the given code or <tt>null</tt> if the code is
+	 *         unknown.
+	 */
+	public String value(int code) {
+		return code >= 0 && code < values.length ? values[code] : null;
+	}
+
+	/**
+	 * @return The dictionary instance of the given value or <tt>null</tt> if
+	 *         the value is not in the dictionary.
+	 */
+	public String value(char[] text, int offset, int length) {
+		Integer code = codes.get(text, offset, length);
+		return code != null ? values[code] : null;
+	}
+
+	/**
+	 * @return The code of the given value or -1 if the value is not in the
+	 *         dictionary.
+	 */
+	public int code(char[] text, int offset, int length) {
+		Integer code = codes.get(text, offset, length);
+		return code != null ? code : -1;
+	}
+
+	void toXContent(XContentBuilder builder, String propName) throws IOException {
+		builder.array(propName, values);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+		return Arrays.equals(values, ((PreAnalyzedDictionary) o).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(values);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * <p>
+ * The payload encoding of fields with <tt>index_flags</tt>. The flags of a
+ * token are written as a variable length integer in front of the payload sent
+ * by the client. Tokens without flags and payload are indexed without a
+ * payload so that they cost nothing in the postings.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedFlagsPayload {
+
+	private PreAnalyzedFlagsPayload() {
+	}
+
+	/**
+	 * Encodes the flags in front of the payload.
+	 *
+	 * @param payload
+	 *            The payload of the token, may be <tt>null</tt>.
+	 * @param scratch
+	 *            The reusable encoding buffer, its bytes are replaced if they
+	 *            are too small.
+	 * @return The encoded payload, backed by <tt>scratch</tt>, or <tt>null</tt>
+	 *         if there are neither flags nor a payload.
+	 */
+	public static BytesRef encode(int flags, BytesRef payload, BytesRef scratch) {
+		int payloadLength = payload != null ? payload.length : 0;
+		if (flags == 0 && payloadLength == 0)
+			return null;
+		scratch.bytes = ArrayUtil.grow(scratch.bytes, 5 + payloadLength);
+		int length = 0;
+		while ((flags & ~0x7F) != 0) {
+			scratch.bytes[length++] = (byte) ((flags & 0x7F) | 0x80);
+			flags >>>= 7;
+		}
+		scratch.bytes[length++] = (byte) flags;
+		if (payloadLength > 0) {
+			System.arraycopy(payload.bytes, payload.offset, scratch.bytes, length, payloadLength);
+			length += payloadLength;
+		}
+		scratch.offset = 0;
+		scratch.length = length;
+		return scratch;
+	}
+
+	/**
+	 * @return The flags encoded into the given indexed payload, 0 if there is
+	 *         no payload.
+	 */
+	public static int decodeFlags(BytesRef payload) {
+		if (payload == null || payload.length == 0)
+			return 0;
+		int flags = 0;
+		int end = payload.offset + payload.length;
+		for (int i = payload.offset, shift = 0; i < end && shift < Integer.SIZE; i++, shift += 7) {
+			byte b = payload.bytes[i];
+			flags |= (b & 0x7F) << shift;
+			if (b >= 0)
+				break;
+		}
+		return flags;
+	}
+}
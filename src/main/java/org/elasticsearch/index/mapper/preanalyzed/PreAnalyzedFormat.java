@@ -0,0 +1,78 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+/**
+ * <p>
+ * The keys of the JSON preanalyzed format, following the Solr JsonPreAnalyzed
+ * format. They are shared by the mapper and the client side
+ * {@link PreAnalyzedTokenStreamSerializer} so that both agree on the format.
+ * </p>
+ *
+ * @author faessler
+ * @see <a href="http://wiki.apache.org/solr/JsonPreAnalyzedParser">http://
+ *      wiki.apache.org/solr/JsonPreAnalyzedParser</a>
+ */
+public final class PreAnalyzedFormat {
+
+	/** The supported format version. */
+	public static final String VERSION = "1";
+
+	public static final String VERSION_KEY = "v";
+	/** The string value to store. */
+	public static final String STRING_KEY = "str";
+	/** The Base64 encoded binary value to store. */
+	public static final String BINARY_KEY = "bin";
+	/** The array of token objects. */
+	public static final String TOKENS_KEY = "tokens";
+	/**
+	 * A reference to tokens in {@link PreAnalyzedBinaryFormat} in a local
+	 * file, instead of {@link #TOKENS_KEY}.
+	 */
+	public static final String FILE_KEY = "file";
+	public static final String FILE_PATH_KEY = "path";
+	public static final String FILE_OFFSET_KEY = "offset";
+	public static final String FILE_LENGTH_KEY = "length";
+
+	public static final String TERM_KEY = "t";
+	public static final String START_OFFSET_KEY = "s";
+	public static final String END_OFFSET_KEY = "e";
+	public static final String POSITION_INCREMENT_KEY = "i";
+	/**
+	 * The number of positions a token spans, e.g. a multi-word entity stacked
+	 * on its first word. Defaults to 1.
+	 */
+	public static final String POSITION_LENGTH_KEY = "l";
+	/** The payload as a string, indexed as its UTF-8 bytes. */
+	public static final String PAYLOAD_KEY = "p";
+	/** The flags, as an integer string in decimal, hex or octal notation. */
+	public static final String FLAGS_KEY = "f";
+	public static final String TYPE_KEY = "y";
+	/**
+	 * Marks a token as the first of a new sentence or section, with the value
+	 * {@link #SENTENCE_BOUNDARY} or {@link #SECTION_BOUNDARY}.
+	 */
+	public static final String BOUNDARY_KEY = "b";
+	public static final String SENTENCE_BOUNDARY = "sentence";
+	/** A section boundary is also a sentence boundary. */
+	public static final String SECTION_BOUNDARY = "section";
+
+	private PreAnalyzedFormat() {
+	}
+}
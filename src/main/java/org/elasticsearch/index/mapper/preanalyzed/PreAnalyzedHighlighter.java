@@ -0,0 +1,341 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.highlight.Encoder;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.search.fetch.FetchPhaseExecutionException;
+import org.elasticsearch.search.fetch.FetchSubPhase.HitContext;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightField;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightUtils;
+import org.elasticsearch.search.fetch.subphase.highlight.Highlighter;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlighterContext;
+import org.elasticsearch.search.fetch.subphase.highlight.SearchContextHighlight;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * A highlighter for preanalyzed fields that are indexed with
+ * <tt>"index_options": "offsets"</tt>.
+ * </p>
+ * <p>
+ * The offsets of the query terms are read directly from the postings of the
+ * hit and applied to the <tt>str</tt> value of the field. Neither term vectors
+ * nor a re-analysis of the text are required. The <tt>str</tt> value is taken
+ * from the stored field if the field is stored and extracted from the
+ * preanalyzed JSON in the <tt>_source</tt> otherwise. Only queries that
+ * expose their terms, e.g. term, match and phrase queries, are highlighted.
+ * Like the fast vector highlighter, the pre and post tags are cycled through
+ * by query term.
+ * </p>
+ * <p>
+ * Use it by setting <tt>"type": "preanalyzed"</tt> on the highlighted field.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedHighlighter implements Highlighter {
+
+	public static final String NAME = "preanalyzed";
+
+	private static final String CACHE_KEY = "highlight-preanalyzed";
+
+	@Override
+	public boolean canHighlight(MappedFieldType fieldType) {
+		return fieldType instanceof PreAnalyzedMapper.PreanalyzedFieldType
+				&& fieldType.indexOptions() == IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+	}
+
+	@Override
+	public HighlightField highlight(HighlighterContext highlighterContext) {
+		MappedFieldType fieldType = highlighterContext.fieldType;
+		SearchContextHighlight.Field field = highlighterContext.field;
+		SearchContext context = highlighterContext.context;
+		HitContext hitContext = highlighterContext.hitContext;
+		SearchContextHighlight.FieldOptions options = field.fieldOptions();
+		Encoder encoder = options.encoder().equals("html") ? HighlightUtils.Encoders.HTML : HighlightUtils.Encoders.DEFAULT;
+
+		try {
+			List<String> values = loadStringValues(highlighterContext);
+			if (values.isEmpty())
+				return null;
+			int[] matches = collectMatchOffsets(highlighterContext);
+
+			// The offsets refer to the concatenation of all values, separated
+			// by the offset gap of the index analyzer.
+			int offsetGap = context.mapperService().indexAnalyzer().getOffsetGap(fieldType.name());
+			List<Fragment> fragments = new ArrayList<>();
+			int valueBase = 0;
+			int matchIndex = 0;
+			for (String value : values) {
+				int valueEnd = valueBase + value.length();
+				int firstMatch = matchIndex;
+				while (matchIndex < matches.length / 3 && matches[3 * matchIndex] < valueEnd)
+					++matchIndex;
+				if (matchIndex > firstMatch)
+					buildFragments(value, valueBase, matches, firstMatch, matchIndex, options, fragments);
+				valueBase = valueEnd + offsetGap;
+			}
+
+			List<String> texts = new ArrayList<>();
+			if (fragments.isEmpty()) {
+				if (options.noMatchSize() > 0) {
+					String value = values.get(0);
+					int end = Math.min(value.length(), options.noMatchSize());
+					int lastSpace = value.lastIndexOf(' ', end);
+					if (end < value.length() && lastSpace > 0)
+						end = lastSpace;
+					texts.add(encoder.encodeText(value.substring(0, end)));
+				}
+			} else {
+				if (options.numberOfFragments() > 0 && fragments.size() > options.numberOfFragments()) {
+					// keep the best fragments, the sort is stable and keeps
+					// earlier fragments on ties
+					fragments.sort((f1, f2) -> Integer.compare(f2.score, f1.score));
+					fragments = new ArrayList<>(fragments.subList(0, options.numberOfFragments()));
+					if (!options.scoreOrdered())
+						fragments.sort((f1, f2) -> Integer.compare(f1.order, f2.order));
+				} else if (options.scoreOrdered()) {
+					fragments.sort((f1, f2) -> Integer.compare(f2.score, f1.score));
+				}
+				for (Fragment fragment : fragments)
+					texts.add(fragment.format(matches, options, encoder));
+			}
+			if (texts.isEmpty())
+				return null;
+			return new HighlightField(highlighterContext.fieldName, Text.convertFromStringArray(texts.toArray(new String[0])));
+		} catch (IOException e) {
+			throw new FetchPhaseExecutionException(context, "Failed to highlight field [" + highlighterContext.fieldName + "]", e);
+		}
+	}
+
+	private List<String> loadStringValues(HighlighterContext highlighterContext) throws IOException {
+		SearchContext context = highlighterContext.context;
+		boolean fromStoredField = !context.highlight().forceSource(highlighterContext.field)
+				&& highlighterContext.fieldType.stored();
+		List<Object> rawValues = HighlightUtils.loadFieldValues(highlighterContext.field, highlighterContext.fieldType,
+				context, highlighterContext.hitContext);
+		List<String> values = new ArrayList<>(rawValues.size());
+		for (Object rawValue : rawValues) {
+			String value = null;
+			if (fromStoredField) {
+				// binary values do not have a text to highlight
+				if (!(rawValue instanceof BytesRef))
+					value = rawValue.toString();
+			} else if (rawValue != null) {
+				value = PreAnalyzedMapper.parseStringValue(rawValue.toString());
+			}
+			values.add(value != null ? value : "");
+		}
+		return values;
+	}
+
+	/**
+	 * @return The start and end offsets of all query term occurrences in the
+	 *         hit and the number of their query term, sorted by start offset
+	 *         and flattened into one array.
+	 */
+	private int[] collectMatchOffsets(HighlighterContext highlighterContext) throws IOException {
+		String fieldName = highlighterContext.fieldType.name();
+		HitContext hitContext = highlighterContext.hitContext;
+		Terms terms = hitContext.reader().terms(fieldName);
+		if (terms == null || !terms.hasOffsets())
+			return new int[0];
+
+		Set<Term> queryTerms = queryTerms(highlighterContext);
+		boolean requireFieldMatch = highlighterContext.field.fieldOptions().requireFieldMatch();
+
+		int[] matches = new int[24];
+		int numMatches = 0;
+		Set<BytesRef> seenTerms = new HashSet<>();
+		TermsEnum termsEnum = terms.iterator();
+		PostingsEnum postings = null;
+		for (Term term : queryTerms) {
+			if (requireFieldMatch && !term.field().equals(fieldName))
+				continue;
+			if (!seenTerms.add(term.bytes()))
+				continue;
+			int termNumber = seenTerms.size() - 1;
+			if (!termsEnum.seekExact(term.bytes()))
+				continue;
+			postings = termsEnum.postings(postings, PostingsEnum.OFFSETS);
+			if (postings.advance(hitContext.docId()) != hitContext.docId())
+				continue;
+			for (int i = 0; i < postings.freq(); i++) {
+				postings.nextPosition();
+				if (3 * numMatches == matches.length)
+					matches = Arrays.copyOf(matches, matches.length * 2);
+				matches[3 * numMatches] = postings.startOffset();
+				matches[3 * numMatches + 1] = postings.endOffset();
+				matches[3 * numMatches + 2] = termNumber;
+				++numMatches;
+			}
+		}
+		final int[] sorted = matches;
+		new InPlaceMergeSorter() {
+			@Override
+			protected int compare(int i, int j) {
+				int c = Integer.compare(sorted[3 * i], sorted[3 * j]);
+				return c != 0 ? c : Integer.compare(sorted[3 * i + 1], sorted[3 * j + 1]);
+			}
+
+			@Override
+			protected void swap(int i, int j) {
+				for (int k = 0; k < 3; k++) {
+					int tmp = sorted[3 * i + k];
+					sorted[3 * i + k] = sorted[3 * j + k];
+					sorted[3 * j + k] = tmp;
+				}
+			}
+		}.sort(0, numMatches);
+		return Arrays.copyOf(matches, 3 * numMatches);
+	}
+
+	/**
+	 * @return The terms of the highlighted query in query order. They are
+	 *         extracted once per shard and query, against the whole index
+	 *         so that multi-term queries are rewritten to all their terms.
+	 */
+	@SuppressWarnings("unchecked")
+	private Set<Term> queryTerms(HighlighterContext highlighterContext) throws IOException {
+		HitContext hitContext = highlighterContext.hitContext;
+		Map<Query, Set<Term>> cache = (Map<Query, Set<Term>>) hitContext.cache().computeIfAbsent(CACHE_KEY,
+				k -> new HashMap<>());
+		Set<Term> queryTerms = cache.get(highlighterContext.query);
+		if (queryTerms == null) {
+			IndexSearcher searcher = new IndexSearcher(hitContext.topLevelReader());
+			Query query = searcher.rewrite(highlighterContext.query);
+			queryTerms = new LinkedHashSet<>();
+			searcher.createWeight(query, ScoreMode.COMPLETE_NO_SCORES, 1f).extractTerms(queryTerms);
+			cache.put(highlighterContext.query, queryTerms);
+		}
+		return queryTerms;
+	}
+
+	/**
+	 * Groups the matches <tt>[from, to)</tt> within one value into fragments of
+	 * at most the configured fragment size, or one fragment for the whole
+	 * value if no fragmentation was requested.
+	 */
+	private void buildFragments(String value, int valueBase, int[] matches, int from, int to,
+			SearchContextHighlight.FieldOptions options, List<Fragment> fragments) {
+		if (options.numberOfFragments() == 0) {
+			fragments.add(new Fragment(value, valueBase, 0, value.length(), from, to, fragments.size()));
+			return;
+		}
+		int fragmentSize = Math.max(options.fragmentCharSize(), 1);
+		int maxScan = options.boundaryMaxScan();
+		int i = from;
+		while (i < to) {
+			int matchStart = matches[3 * i] - valueBase;
+			int matchEnd = Math.min(matches[3 * i + 1] - valueBase, value.length());
+			int start = Math.max(0, matchStart - Math.max(0, fragmentSize - (matchEnd - matchStart)) / 2);
+			int end = Math.min(value.length(), Math.max(matchEnd, start + fragmentSize));
+			// widen the fragment to word boundaries
+			for (int k = start; k > 0 && start - k < maxScan; k--) {
+				if (Character.isWhitespace(value.charAt(k - 1))) {
+					start = k;
+					break;
+				}
+			}
+			for (int k = end; k - end < maxScan; k++) {
+				if (k == value.length() || Character.isWhitespace(value.charAt(k))) {
+					end = k;
+					break;
+				}
+			}
+			int j = i + 1;
+			while (j < to && matches[3 * j + 1] - valueBase <= end)
+				++j;
+			fragments.add(new Fragment(value, valueBase, start, end, i, j, fragments.size()));
+			i = j;
+		}
+	}
+
+	private static class Fragment {
+		private final String value;
+		private final int valueBase;
+		private final int start;
+		private final int end;
+		private final int fromMatch;
+		private final int toMatch;
+		private final int order;
+		private final int score;
+
+		Fragment(String value, int valueBase, int start, int end, int fromMatch, int toMatch, int order) {
+			this.value = value;
+			this.valueBase = valueBase;
+			this.start = start;
+			this.end = end;
+			this.fromMatch = fromMatch;
+			this.toMatch = toMatch;
+			this.order = order;
+			this.score = toMatch - fromMatch;
+		}
+
+		String format(int[] matches, SearchContextHighlight.FieldOptions options, Encoder encoder) {
+			StringBuilder sb = new StringBuilder();
+			int pos = start;
+			int i = fromMatch;
+			while (i < toMatch) {
+				int matchStart = Math.max(pos, matches[3 * i] - valueBase);
+				int matchEnd = Math.min(end, matches[3 * i + 1] - valueBase);
+				int termNumber = matches[3 * i + 2];
+				// overlapping matches, e.g. of stacked tokens, are merged
+				// and tagged like the first of them
+				while (i + 1 < toMatch && matches[3 * (i + 1)] - valueBase <= matchEnd) {
+					++i;
+					matchEnd = Math.min(end, Math.max(matchEnd, matches[3 * i + 1] - valueBase));
+				}
+				++i;
+				if (matchEnd <= matchStart)
+					continue;
+				sb.append(encoder.encodeText(value.substring(pos, matchStart)));
+				sb.append(options.preTags()[termNumber % options.preTags().length]);
+				sb.append(encoder.encodeText(value.substring(matchStart, matchEnd)));
+				sb.append(options.postTags()[termNumber % options.postTags().length]);
+				pos = matchEnd;
+			}
+			sb.append(encoder.encodeText(value.substring(pos, end)));
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node wide counters of the indexing of preanalyzed fields.
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedIndexingStats {
+
+	private static final LongAdder malformedValues = new LongAdder();
+	private static final LongAdder malformedTokens = new LongAdder();
+	private static final LongAdder predecodedValues = new LongAdder();
+	private static final LongAdder compressedBinaryValues = new LongAdder();
+	private static final LongAdder pipelinedValues = new LongAdder();
+
+	private PreAnalyzedIndexingStats() {
+	}
+
+	/**
+	 * @return The number of values skipped by fields with
+	 *         <tt>ignore_malformed</tt> because they could not be parsed.
+	 */
+	public static long malformedValues() {
+		return malformedValues.sum();
+	}
+
+	/**
+	 * @return The number of single tokens skipped by fields with
+	 *         <tt>ignore_malformed</tt>.
+	 */
+	public static long malformedTokens() {
+		return malformedTokens.sum();
+	}
+
+	/**
+	 * @return The number of values that were decoded ahead of indexing by
+	 *         {@link PreAnalyzedPredecoder}.
+	 */
+	public static long predecodedValues() {
+		return predecodedValues.sum();
+	}
+
+	/**
+	 * @return The number of <tt>bin</tt> values stored compressed by fields
+	 *         with <tt>compress_binary_threshold</tt>.
+	 */
+	public static long compressedBinaryValues() {
+		return compressedBinaryValues.sum();
+	}
+
+	/**
+	 * @return The number of values whose tokens were decoded while they were
+	 *         indexed, see {@link PreAnalyzedTokenPipeline}.
+	 */
+	public static long pipelinedValues() {
+		return pipelinedValues.sum();
+	}
+
+	static void addMalformedValue() {
+		malformedValues.increment();
+	}
+
+	static void addMalformedTokens(int count) {
+		malformedTokens.add(count);
+	}
+
+	static void addPredecodedValue() {
+		predecodedValues.increment();
+	}
+
+	static void addCompressedBinaryValue() {
+		compressedBinaryValues.increment();
+	}
+
+	static void addPipelinedValue() {
+		pipelinedValues.increment();
+	}
+}
@@ -27,6 +27,7 @@ import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
 import org.apache.lucene.analysis.tokenattributes.*;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
@@ -34,16 +35,23 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.search.intervals.IntervalsSource;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
 import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.suggest.document.SuggestField;
+import org.apache.lucene.store.ByteBuffersDataOutput;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.automaton.Automata;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.Operations;
+import org.elasticsearch.common.Explicit;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentParser.Token;
 import org.elasticsearch.common.xcontent.json.JsonXContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.analysis.AnalyzerScope;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.fielddata.IndexFieldData;
@@ -51,12 +59,62 @@ import org.elasticsearch.index.mapper.*;
 import org.elasticsearch.index.query.QueryShardContext;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 public class PreAnalyzedMapper extends FieldMapper {
 
 	public static final String CONTENT_TYPE = "preanalyzed";
 
+	/**
+	 * The suffix of the stored field name that holds the tokens of a field
+	 * with <tt>synthetic_source</tt> in {@link PreAnalyzedBinaryFormat}.
+	 */
+	public static final String TOKENS_FIELD_SUFFIX = "._tokens";
+
+	/**
+	 * The name of the sub field holding the number of tokens of a field with
+	 * <tt>token_count</tt>.
+	 */
+	public static final String TOKEN_COUNT_FIELD_NAME = "token_count";
+
+	/**
+	 * The name of the completion sub field of a field with
+	 * <tt>completion</tt>.
+	 */
+	public static final String COMPLETION_FIELD_NAME = "completion";
+
+	/**
+	 * The maximum number of flag names, one per bit of the flags.
+	 */
+	public static final int MAX_FLAG_DICTIONARY_SIZE = Integer.SIZE;
+
+	/**
+	 * The frozen Lucene field types of the stored and indexed parts of the
+	 * preanalyzed fields, guarded by the map itself. There are only a few
+	 * distinct configurations, so mappings with many preanalyzed fields share
+	 * them instead of holding a copy per field. Keys and values are weakly
+	 * referenced, so a field type is dropped once no mapper uses it anymore,
+	 * e.g. after its index has been deleted.
+	 */
+	private static final Map<FieldType, WeakReference<FieldType>> LUCENE_FIELD_TYPES = new WeakHashMap<>();
+
+	/**
+	 * @return The shared, frozen instance equal to <tt>fieldType</tt>.
+	 */
+	static FieldType internFieldType(FieldType fieldType) {
+		synchronized (LUCENE_FIELD_TYPES) {
+			WeakReference<FieldType> reference = LUCENE_FIELD_TYPES.get(fieldType);
+			FieldType interned = reference != null ? reference.get() : null;
+			if (interned == null) {
+				fieldType.freeze();
+				LUCENE_FIELD_TYPES.put(fieldType, new WeakReference<>(fieldType));
+				interned = fieldType;
+			}
+			return interned;
+		}
+	}
+
 	public static class Defaults {
 
 		public static final MappedFieldType FIELD_TYPE = new PreanalyzedFieldType(new TextFieldMapper.TextFieldType());
@@ -65,20 +123,168 @@ public class PreAnalyzedMapper extends FieldMapper {
 			FIELD_TYPE.freeze();
 		}
 
+		public static final boolean SYNTHETIC_SOURCE = false;
+
+		public static final boolean INDEX_FLAGS = false;
+
+		public static final Explicit<Boolean> IGNORE_MALFORMED = new Explicit<>(false, false);
+
+		public static final TokenOrder TOKEN_ORDER = TokenOrder.STRICT;
+
+		public static final boolean BOUNDARIES = false;
+
+		public static final int BOUNDARY_POSITION_GAP = 100;
+
+	}
+
+	/**
+	 * The values of the <tt>token_order</tt> option.
+	 */
+	public enum TokenOrder {
+		/**
+		 * Tokens must be in index order, out of order tokens are malformed.
+		 */
+		STRICT,
+		/**
+		 * Tokens are brought into index order after parsing, see
+		 * {@link PreAnalyzedTokens#repairOrder(int)}.
+		 */
+		REPAIR;
+
+		public static TokenOrder fromString(String value) {
+			for (TokenOrder tokenOrder : values()) {
+				if (tokenOrder.name().equalsIgnoreCase(value))
+					return tokenOrder;
+			}
+			throw new IllegalArgumentException("Unknown token order [" + value + "]");
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase(Locale.ROOT);
+		}
 	}
 	
 	// This builder builds the whole mapper. Especially, it builds the field
 	// mappers which will parse the actual sent documents.
 	public static class Builder extends FieldMapper.Builder<Builder, PreAnalyzedMapper> {
 
+		private boolean syntheticSource = Defaults.SYNTHETIC_SOURCE;
+		private TokenCountSettings tokenCount;
+		private CompletionSettings completion;
+		private CompletionFieldMapper.Builder completionBuilder;
+		private PreAnalyzedDictionary typeDictionary;
+		private PreAnalyzedDictionary flagDictionary;
+		private boolean indexFlags = Defaults.INDEX_FLAGS;
+		private Boolean ignoreMalformed;
+		private TokenOrder tokenOrder = Defaults.TOKEN_ORDER;
+		private boolean boundaries = Defaults.BOUNDARIES;
+		private int boundaryPositionGap = Defaults.BOUNDARY_POSITION_GAP;
+		private IndexTokensSettings indexTokens;
+		private PreAnalyzedTokenFiles tokenFiles = PreAnalyzedTokenFiles.DISABLED;
+		private PreAnalyzedPredecoder predecoder = PreAnalyzedPredecoder.DISABLED;
+
 		protected Builder(String name) {
 			super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
 			builder = this;
 		}
 
+		public Builder syntheticSource(boolean syntheticSource) {
+			this.syntheticSource = syntheticSource;
+			return builder;
+		}
+
+		public Builder tokenCount(TokenCountSettings tokenCount) {
+			this.tokenCount = tokenCount;
+			return builder;
+		}
+
+		public Builder completion(CompletionSettings completion, CompletionFieldMapper.Builder completionBuilder) {
+			this.completion = completion;
+			this.completionBuilder = completionBuilder;
+			return builder;
+		}
+
+		public Builder typeDictionary(PreAnalyzedDictionary typeDictionary) {
+			this.typeDictionary = typeDictionary;
+			return builder;
+		}
+
+		public Builder flagDictionary(PreAnalyzedDictionary flagDictionary) {
+			this.flagDictionary = flagDictionary;
+			return builder;
+		}
+
+		public Builder indexFlags(boolean indexFlags) {
+			this.indexFlags = indexFlags;
+			return builder;
+		}
+
+		public Builder ignoreMalformed(boolean ignoreMalformed) {
+			this.ignoreMalformed = ignoreMalformed;
+			return builder;
+		}
+
+		public Builder tokenOrder(TokenOrder tokenOrder) {
+			this.tokenOrder = tokenOrder;
+			return builder;
+		}
+
+		public Builder boundaries(boolean boundaries) {
+			this.boundaries = boundaries;
+			return builder;
+		}
+
+		public Builder boundaryPositionGap(int boundaryPositionGap) {
+			this.boundaryPositionGap = boundaryPositionGap;
+			return builder;
+		}
+
+		public Builder tokenFiles(PreAnalyzedTokenFiles tokenFiles) {
+			this.tokenFiles = tokenFiles;
+			return builder;
+		}
+
+		public Builder indexTokens(IndexTokensSettings indexTokens) {
+			this.indexTokens = indexTokens;
+			return builder;
+		}
+
+		public Builder compressBinaryThreshold(long compressBinaryThreshold) {
+			((PreanalyzedFieldType) fieldType).setCompressBinaryThreshold(compressBinaryThreshold);
+			return builder;
+		}
+
+		public Builder predecoder(PreAnalyzedPredecoder predecoder) {
+			this.predecoder = predecoder;
+			return builder;
+		}
+
+		protected Explicit<Boolean> ignoreMalformed(BuilderContext context) {
+			if (ignoreMalformed != null) {
+				return new Explicit<>(ignoreMalformed, true);
+			}
+			if (context.indexSettings() != null) {
+				return new Explicit<>(IGNORE_MALFORMED_SETTING.get(context.indexSettings()), false);
+			}
+			return Defaults.IGNORE_MALFORMED;
+		}
+
 		@Override
 		public PreAnalyzedMapper build(BuilderContext context) {
 			setupFieldType(context);
+			if (syntheticSource && !fieldType.stored()) {
+				throw new MapperParsingException("[synthetic_source] requires [store] to be enabled for field [" + name
+						+ "] because the value is synthesized from the stored field value and tokens");
+			}
+			if (indexFlags && fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+				throw new MapperParsingException("[index_flags] requires [index_options] to include positions for field ["
+						+ name + "] because the flags are indexed into the payloads");
+			}
+			if (boundaries && fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+				throw new MapperParsingException("[boundaries] requires [index_options] to include positions for field ["
+						+ name + "] because the boundaries are positions");
+			}
 
 			// A preanalyzed field actually consists of two fields: an analyzed
 			// field with a TokenStream value parsed from the JSON in the sent
@@ -95,15 +301,35 @@ public class PreAnalyzedMapper extends FieldMapper {
 			fieldTypeText.setStoreTermVectorPositions(false);
 			fieldTypeText.setStoreTermVectorOffsets(false);
 			fieldTypeText.setStoreTermVectorPayloads(false);
+			fieldTypeText = internFieldType(fieldTypeText);
 			// The indexed part inherits all properties from the actually parsed
 			// fieldType with the exception of the stored property which just
 			// went into the fieldTypeText fieldType above.
 			// We cannot change the fieldType directly because this would just
-			// switch off storage off the field completely.
-			MappedFieldType fieldTypeIndexed = fieldType.clone();
+			// switch off storage off the field completely. Lucene only needs
+			// the index options, so a plain FieldType does instead of a clone
+			// of the whole MappedFieldType.
+			FieldType fieldTypeIndexed = new FieldType(fieldType);
 			fieldTypeIndexed.setStored(false);
+			fieldTypeIndexed = internFieldType(fieldTypeIndexed);
+			// The token count and completion are sub fields, built just like
+			// multi fields, but filled from the parsed tokens.
+			NumberFieldMapper tokenCountMapper = null;
+			CompletionFieldMapper completionMapper = null;
+			context.path().add(name);
+			if (tokenCount != null) {
+				tokenCountMapper = new NumberFieldMapper.Builder(TOKEN_COUNT_FIELD_NAME,
+						NumberFieldMapper.NumberType.INTEGER).build(context);
+			}
+			if (completion != null) {
+				completionMapper = completionBuilder.build(context);
+			}
+			context.path().remove();
 			return new PreAnalyzedMapper(name, fieldType, defaultFieldType, context.indexSettings(),
-					multiFieldsBuilder.build(this, context), copyTo, fieldTypeText, fieldTypeIndexed);
+					multiFieldsBuilder.build(this, context), copyTo, fieldTypeText, fieldTypeIndexed, syntheticSource,
+					tokenCount, tokenCountMapper, completion, completionMapper, typeDictionary, flagDictionary,
+					indexFlags, ignoreMalformed(context), tokenOrder, boundaries, boundaryPositionGap, indexTokens,
+					tokenFiles, predecoder);
 		}
 
 	}
@@ -121,16 +347,100 @@ public class PreAnalyzedMapper extends FieldMapper {
 	 *  }
 	 * </pre>
 	 * 
-	 * Since the preanalyzed field type does not define any properties of its
-	 * own, parsing the mapping is completely default parsing by
+	 * Besides the properties of its own listed below, parsing the mapping is
+	 * default parsing by
 	 * {@link TypeParsers#parseField(org.elasticsearch.index.mapper.FieldMapper.Builder, String, Map, org.elasticsearch.index.mapper.Mapper.TypeParser.ParserContext)}
 	 * .
+	 * <ul>
+	 * <li><tt>synthetic_source</tt>: Stores the tokens in
+	 * {@link PreAnalyzedBinaryFormat} next to the stored field value so that
+	 * the field can be excluded from <tt>_source</tt> and is synthesized again
+	 * when the source is fetched by a search.</li>
+	 * <li><tt>token_count</tt>: Either <tt>true</tt> or an object with the
+	 * optional properties <tt>exclude_stacked</tt> and <tt>exclude_types</tt>.
+	 * Indexes the number of tokens of each value into the integer sub field
+	 * <tt>token_count</tt>, optionally without tokens with a position
+	 * increment of 0 or of the given types.</li>
+	 * <li><tt>completion</tt>: An object with the required property
+	 * <tt>types</tt> and the optional properties <tt>input</tt>
+	 * (<tt>covered_text</tt> or <tt>term</tt>), <tt>weight</tt>
+	 * (<tt>payload</tt> or <tt>none</tt>), <tt>max_input_length</tt> and the
+	 * analyzer settings of the <tt>completion</tt> field type. Feeds the
+	 * tokens of the given types into the completion sub field
+	 * <tt>completion</tt>.</li>
+	 * <li><tt>type_dictionary</tt>: An array of token types. The type of a
+	 * token may then be given as its index in the array, e.g.
+	 * <tt>"y":2</tt>. Unknown codes are rejected.</li>
+	 * <li><tt>flag_dictionary</tt>: An array of at most 32 flag names, the
+	 * name at index <tt>i</tt> standing for the flag bit <tt>1 &lt;&lt; i</tt>.
+	 * The flags of a token may then be given as a flag name, a flag code or
+	 * an array of those, e.g. <tt>"f":["negated", 3]</tt>. Unknown codes are
+	 * rejected.</li>
+	 * <li><tt>index_flags</tt>: Indexes the token flags in front of the
+	 * token payloads as defined by {@link PreAnalyzedFlagsPayload} so that
+	 * matches can be restricted to flagged tokens at search time.</li>
+	 * <li><tt>ignore_malformed</tt>: Skips values that cannot be parsed and
+	 * single malformed tokens instead of rejecting the document. The field is
+	 * then recorded in <tt>_ignored</tt> and counted by
+	 * {@link PreAnalyzedIndexingStats}. Defaults to the
+	 * <tt>index.mapping.ignore_malformed</tt> index setting.</li>
+	 * <li><tt>token_order</tt>: <tt>strict</tt> (default) or <tt>repair</tt>.
+	 * With <tt>repair</tt>, negative position increments and backwards
+	 * offsets are accepted and the tokens are sorted into index order after
+	 * parsing, see {@link PreAnalyzedTokens#repairOrder(int)}.</li>
+	 * <li><tt>boundaries</tt>: Separates the sentences and sections marked by
+	 * <tt>"b"</tt> by <tt>boundary_position_gap</tt> (default 100) empty
+	 * positions and indexes their positions as {@link PreAnalyzedBoundaries}
+	 * so that matches can be restricted to a single sentence or section.</li>
+	 * <li><tt>index_tokens</tt>: An object with the optional properties
+	 * <tt>include_types</tt>, <tt>exclude_types</tt>, <tt>include_flags</tt>,
+	 * <tt>exclude_flags</tt>, <tt>min_length</tt> and <tt>max_length</tt>.
+	 * Only the tokens passing all of them are indexed, the positions of the
+	 * others are kept empty. All tokens are still stored for
+	 * <tt>synthetic_source</tt> and counted by <tt>token_count</tt>.</li>
+	 * <li><tt>compress_binary_threshold</tt>: A byte size, e.g.
+	 * <tt>64kb</tt>. Stored <tt>bin</tt> values of at least this size are
+	 * compressed, see {@link PreAnalyzedStoredBinary}. They are decompressed
+	 * when they are fetched.</li>
+	 * </ul>
+	 * Instead of <tt>tokens</tt>, values may reference tokens in local files
+	 * by <tt>file</tt>, see {@link PreAnalyzedTokenFiles}. With the
+	 * <tt>index.preanalyzed.parallel_decode</tt> index setting, values are
+	 * decoded ahead of indexing by {@link PreAnalyzedPredecoder}.
 	 * 
 	 * @author faessler
 	 *
 	 */
 	public static class TypeParser implements Mapper.TypeParser {
 
+		private final PreAnalyzedTokenFiles tokenFiles;
+		private final PreAnalyzedPredecoder predecoder;
+
+		public TypeParser() {
+			this(PreAnalyzedTokenFiles.DISABLED);
+		}
+
+		/**
+		 * @param tokenFiles
+		 *            The token files that may be referenced by values of the
+		 *            parsed fields.
+		 */
+		public TypeParser(PreAnalyzedTokenFiles tokenFiles) {
+			this(tokenFiles, PreAnalyzedPredecoder.DISABLED);
+		}
+
+		/**
+		 * @param tokenFiles
+		 *            The token files that may be referenced by values of the
+		 *            parsed fields.
+		 * @param predecoder
+		 *            Decodes the values of bulk requests ahead of indexing.
+		 */
+		public TypeParser(PreAnalyzedTokenFiles tokenFiles, PreAnalyzedPredecoder predecoder) {
+			this.tokenFiles = tokenFiles;
+			this.predecoder = predecoder;
+		}
+
 		// This method parses the mapping (is a field stored? token vectors?
 		// etc.), it has nothing to do with an actual
 		// sent document.
@@ -138,14 +448,129 @@ public class PreAnalyzedMapper extends FieldMapper {
 		public org.elasticsearch.index.mapper.Mapper.Builder<?, ?> parse(String name, Map<String, Object> node,
 				ParserContext parserContext) throws MapperParsingException {
 			PreAnalyzedMapper.Builder builder = new PreAnalyzedMapper.Builder(name);
+			builder.tokenFiles(tokenFiles);
+			builder.predecoder(predecoder);
+			// the multi fields must not take the names of the generated sub
+			// fields
+			Object multiFieldsNode = node.get("fields");
 			TypeParsers.parseTextField(builder, name, node, parserContext);
+			// resolved when the flag_dictionary is known
+			Object indexTokensNode = null;
+			for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
+				Map.Entry<String, Object> entry = iterator.next();
+				String propName = entry.getKey();
+				Object propNode = entry.getValue();
+				if (propName.equals("synthetic_source")) {
+					builder.syntheticSource(XContentMapValues.nodeBooleanValue(propNode, "synthetic_source"));
+					iterator.remove();
+				} else if (propName.equals("token_count")) {
+					builder.tokenCount(TokenCountSettings.parse(name, propNode));
+					iterator.remove();
+				} else if (propName.equals("completion")) {
+					parseCompletion(builder, name, propNode, parserContext);
+					iterator.remove();
+				} else if (propName.equals("type_dictionary")) {
+					builder.typeDictionary(
+							PreAnalyzedDictionary.parse(name, "type_dictionary", propNode, Integer.MAX_VALUE));
+					iterator.remove();
+				} else if (propName.equals("flag_dictionary")) {
+					builder.flagDictionary(PreAnalyzedDictionary.parse(name, "flag_dictionary", propNode,
+							MAX_FLAG_DICTIONARY_SIZE));
+					iterator.remove();
+				} else if (propName.equals("index_flags")) {
+					builder.indexFlags(XContentMapValues.nodeBooleanValue(propNode, "index_flags"));
+					iterator.remove();
+				} else if (propName.equals("ignore_malformed")) {
+					builder.ignoreMalformed(XContentMapValues.nodeBooleanValue(propNode, name + ".ignore_malformed"));
+					iterator.remove();
+				} else if (propName.equals("token_order")) {
+					try {
+						builder.tokenOrder(TokenOrder.fromString(XContentMapValues.nodeStringValue(propNode, null)));
+					} catch (IllegalArgumentException e) {
+						throw new MapperParsingException("[token_order] of field [" + name
+								+ "] must be one of [strict, repair] but was [" + propNode + "]");
+					}
+					iterator.remove();
+				} else if (propName.equals("boundaries")) {
+					builder.boundaries(XContentMapValues.nodeBooleanValue(propNode, name + ".boundaries"));
+					iterator.remove();
+				} else if (propName.equals("boundary_position_gap")) {
+					int gap = XContentMapValues.nodeIntegerValue(propNode, -1);
+					if (gap < 0) {
+						throw new MapperParsingException("[boundary_position_gap] of field [" + name
+								+ "] must be a non-negative integer but was [" + propNode + "]");
+					}
+					builder.boundaryPositionGap(gap);
+					iterator.remove();
+				} else if (propName.equals("index_tokens")) {
+					indexTokensNode = propNode;
+					iterator.remove();
+				} else if (propName.equals("compress_binary_threshold")) {
+					builder.compressBinaryThreshold(ByteSizeValue.parseBytesSizeValue(
+							XContentMapValues.nodeStringValue(propNode, null), name + ".compress_binary_threshold")
+							.getBytes());
+					iterator.remove();
+				}
+			}
+			if (multiFieldsNode instanceof Map) {
+				Map<?, ?> multiFields = (Map<?, ?>) multiFieldsNode;
+				if (builder.tokenCount != null && multiFields.containsKey(TOKEN_COUNT_FIELD_NAME))
+					throw new MapperParsingException("The multi field [" + TOKEN_COUNT_FIELD_NAME + "] of field [" + name
+							+ "] conflicts with the sub field of [token_count], rename it");
+				if (builder.completion != null && multiFields.containsKey(COMPLETION_FIELD_NAME))
+					throw new MapperParsingException("The multi field [" + COMPLETION_FIELD_NAME + "] of field [" + name
+							+ "] conflicts with the sub field of [completion], rename it");
+			}
+			if (indexTokensNode != null)
+				builder.indexTokens(IndexTokensSettings.parse(name, indexTokensNode, builder.flagDictionary));
+			// The index analyzer is not used for indexing since the tokens are
+			// given. It is, however, used to generate term vectors from the
+			// _source, thus it must decode the preanalyzed JSON.
+			NamedAnalyzer indexAnalyzer = builder.fieldType().indexAnalyzer();
+			if (indexAnalyzer == null) {
+				indexAnalyzer = parserContext.getIndexAnalyzers().getDefaultIndexAnalyzer();
+				builder.searchAnalyzer(parserContext.getIndexAnalyzers().getDefaultSearchAnalyzer());
+				builder.searchQuoteAnalyzer(parserContext.getIndexAnalyzers().getDefaultSearchQuoteAnalyzer());
+			}
+			builder.indexAnalyzer(new NamedAnalyzer(indexAnalyzer.name(), indexAnalyzer.scope(),
+					new PreAnalyzedAnalyzer(indexAnalyzer,
+							decoderSettings(builder.typeDictionary, builder.flagDictionary,
+									builder.ignoreMalformed != null ? builder.ignoreMalformed
+											: IGNORE_MALFORMED_SETTING.get(parserContext.mapperService().getIndexSettings().getSettings()),
+									builder.fieldType().indexOptions(), builder.tokenOrder),
+							builder.boundaries ? builder.boundaryPositionGap : 0, builder.indexTokens, tokenFiles)));
 			return builder;
 		}
 
+		private void parseCompletion(PreAnalyzedMapper.Builder builder, String name, Object propNode,
+				ParserContext parserContext) {
+			Map<String, Object> completionNode = new HashMap<>(
+					XContentMapValues.nodeMapValue(propNode, name + ".completion"));
+			CompletionSettings completion = CompletionSettings.parse(name, completionNode);
+			if (completionNode.containsKey("contexts") || completionNode.containsKey("fields")) {
+				throw new MapperParsingException("[contexts] and [fields] are not supported on [completion] of field ["
+						+ name + "]");
+			}
+			// the analyzer settings are left to the completion field type
+			CompletionFieldMapper.Builder completionBuilder = (CompletionFieldMapper.Builder) new CompletionFieldMapper.TypeParser()
+					.parse(COMPLETION_FIELD_NAME, completionNode, parserContext);
+			completionBuilder.maxInputLength(completion.maxInputLength);
+			DocumentMapperParser.checkNoRemainingFields(name + ".completion", completionNode,
+					parserContext.indexVersionCreated());
+			builder.completion(completion, completionBuilder);
+		}
+
 	}
 
 	public static final class PreanalyzedFieldType extends org.elasticsearch.index.mapper.StringFieldType {
             private TextFieldMapper.TextFieldType delegateType;
+		/**
+		 * Whether {@link #delegateType} is frozen and may be referenced by
+		 * clones of this field type. It is only cloned once a clone is
+		 * changed, which field types of existing mappings never are.
+		 */
+		private boolean delegateShared;
+		private long compressBinaryThreshold = PreAnalyzedStoredBinary.NO_COMPRESSION;
 
         public PreanalyzedFieldType(TextFieldMapper.TextFieldType delegateType) {
             this.delegateType = delegateType;
@@ -153,9 +578,34 @@ public class PreAnalyzedMapper extends FieldMapper {
 
         public PreanalyzedFieldType(PreanalyzedFieldType ref) {
             super(ref);
-			this.delegateType = ref.delegateType.clone();
+			if (ref.delegateShared) {
+				this.delegateType = ref.delegateType;
+				this.delegateShared = true;
+			} else {
+				this.delegateType = ref.delegateType.clone();
+			}
+			this.compressBinaryThreshold = ref.compressBinaryThreshold;
         }
 
+		/**
+		 * @return The delegate to change, cloned first if it is shared.
+		 */
+		private TextFieldMapper.TextFieldType mutableDelegateType() {
+			checkIfFrozen();
+			if (delegateShared) {
+				delegateType = delegateType.clone();
+				delegateShared = false;
+			}
+			return delegateType;
+		}
+
+		@Override
+		public void freeze() {
+			super.freeze();
+			delegateType.freeze();
+			delegateShared = true;
+		}
+
         @Override
         public PreanalyzedFieldType clone() {
             return new PreanalyzedFieldType(this);
@@ -164,7 +614,7 @@ public class PreAnalyzedMapper extends FieldMapper {
         @Override
         public void setName(String name) {
             super.setName(name);
-            delegateType.setName(name);
+            mutableDelegateType().setName(name);
         }
 
         @Override
@@ -173,7 +623,7 @@ public class PreAnalyzedMapper extends FieldMapper {
                 return false;
             }
             PreanalyzedFieldType that = (PreanalyzedFieldType) o;
-            return that.delegateType.equals(delegateType);
+            return that.delegateType.equals(delegateType) && that.compressBinaryThreshold == compressBinaryThreshold;
         }
 
         @Override
@@ -186,7 +636,7 @@ public class PreAnalyzedMapper extends FieldMapper {
         }
 
         public void setFielddata(boolean fielddata) {
-            delegateType.setFielddata(fielddata);
+            mutableDelegateType().setFielddata(fielddata);
         }
 
         public double fielddataMinFrequency() {
@@ -194,7 +644,7 @@ public class PreAnalyzedMapper extends FieldMapper {
         }
 
         public void setFielddataMinFrequency(double fielddataMinFrequency) {
-          delegateType.setFielddataMinFrequency(fielddataMinFrequency);
+          mutableDelegateType().setFielddataMinFrequency(fielddataMinFrequency);
         }
 
         public double fielddataMaxFrequency() {
@@ -202,15 +652,39 @@ public class PreAnalyzedMapper extends FieldMapper {
         }
 
         public void setFielddataMaxFrequency(double fielddataMaxFrequency) {
-            delegateType.setFielddataMaxFrequency(fielddataMaxFrequency());
+            mutableDelegateType().setFielddataMaxFrequency(fielddataMaxFrequency);
         }
 
+		/**
+		 * @return The size from which <tt>bin</tt> values are stored
+		 *         compressed or {@link PreAnalyzedStoredBinary#NO_COMPRESSION}.
+		 */
+		public long compressBinaryThreshold() {
+			return compressBinaryThreshold;
+		}
+
+		public void setCompressBinaryThreshold(long compressBinaryThreshold) {
+			checkIfFrozen();
+			this.compressBinaryThreshold = compressBinaryThreshold;
+		}
+
+		/**
+		 * Restores the original bytes of stored <tt>bin</tt> values, see
+		 * {@link PreAnalyzedStoredBinary}.
+		 */
+		@Override
+		public Object valueForDisplay(Object value) {
+			if (value instanceof BytesRef)
+				return PreAnalyzedStoredBinary.decode((BytesRef) value, compressBinaryThreshold);
+			return super.valueForDisplay(value);
+		}
+
         public int fielddataMinSegmentSize() {
             return delegateType.fielddataMinSegmentSize();
         }
 
         public void setFielddataMinSegmentSize(int fielddataMinSegmentSize) {
-            delegateType.setFielddataMinSegmentSize(fielddataMinSegmentSize);
+            mutableDelegateType().setFielddataMinSegmentSize(fielddataMinSegmentSize);
         }
 
         @Override
@@ -262,6 +736,12 @@ public class PreAnalyzedMapper extends FieldMapper {
         @Override
         public void checkCompatibility(MappedFieldType other, List<String> conflicts) {
             delegateType.checkCompatibility(other, conflicts);
+			// the stored values are only readable with the threshold they
+			// were written with
+			if (other instanceof PreanalyzedFieldType
+					&& ((PreanalyzedFieldType) other).compressBinaryThreshold != compressBinaryThreshold) {
+				conflicts.add("mapper [" + name() + "] has different [compress_binary_threshold] values");
+			}
         }
     }
 
@@ -272,7 +752,22 @@ public class PreAnalyzedMapper extends FieldMapper {
 	 * stream which is used for indexing.
 	 */
 	private FieldType fieldTypeText;
-	private MappedFieldType fieldTypeIndexed;
+	private FieldType fieldTypeIndexed;
+	private boolean syntheticSource;
+	private TokenCountSettings tokenCount;
+	private NumberFieldMapper tokenCountMapper;
+	private CompletionSettings completion;
+	private CompletionFieldMapper completionMapper;
+	private PreAnalyzedDictionary typeDictionary;
+	private PreAnalyzedDictionary flagDictionary;
+	private boolean indexFlags;
+	private Explicit<Boolean> ignoreMalformed;
+	private TokenOrder tokenOrder;
+	private boolean boundaries;
+	private int boundaryPositionGap;
+	private IndexTokensSettings indexTokens;
+	private PreAnalyzedTokenFiles tokenFiles;
+	private PreAnalyzedPredecoder predecoder;
 	private static final JsonFactory jsonFactory;
 
 	static {
@@ -281,10 +776,105 @@ public class PreAnalyzedMapper extends FieldMapper {
 
 	public PreAnalyzedMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType,
 			Settings indexSettings, MultiFields multiFields, CopyTo copyTo, FieldType fieldTypeText,
-			MappedFieldType fieldTypeIndexed) {
+			FieldType fieldTypeIndexed, boolean syntheticSource, TokenCountSettings tokenCount,
+			NumberFieldMapper tokenCountMapper, CompletionSettings completion, CompletionFieldMapper completionMapper,
+			PreAnalyzedDictionary typeDictionary, PreAnalyzedDictionary flagDictionary, boolean indexFlags,
+			Explicit<Boolean> ignoreMalformed, TokenOrder tokenOrder, boolean boundaries, int boundaryPositionGap,
+			IndexTokensSettings indexTokens, PreAnalyzedTokenFiles tokenFiles, PreAnalyzedPredecoder predecoder) {
 		super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
 		this.fieldTypeText = fieldTypeText;
 		this.fieldTypeIndexed = fieldTypeIndexed;
+		this.syntheticSource = syntheticSource;
+		this.tokenCount = tokenCount;
+		this.tokenCountMapper = tokenCountMapper;
+		this.completion = completion;
+		this.completionMapper = completionMapper;
+		this.typeDictionary = typeDictionary;
+		this.flagDictionary = flagDictionary;
+		this.indexFlags = indexFlags;
+		this.ignoreMalformed = ignoreMalformed;
+		this.tokenOrder = tokenOrder;
+		this.boundaries = boundaries;
+		this.boundaryPositionGap = boundaryPositionGap;
+		this.indexTokens = indexTokens;
+		this.tokenFiles = tokenFiles;
+		this.predecoder = predecoder;
+	}
+
+	/**
+	 * @return Whether the tokens of this field are stored so that the field
+	 *         value can be synthesized when it is excluded from
+	 *         <tt>_source</tt>.
+	 */
+	public boolean syntheticSource() {
+		return syntheticSource;
+	}
+
+	/**
+	 * @return The <tt>flag_dictionary</tt> of this field or <tt>null</tt>.
+	 */
+	public PreAnalyzedDictionary flagDictionary() {
+		return flagDictionary;
+	}
+
+	/**
+	 * @return Whether the token flags are indexed into the payloads.
+	 */
+	public boolean indexFlags() {
+		return indexFlags;
+	}
+
+	/**
+	 * @return The size from which stored <tt>bin</tt> values are compressed
+	 *         or {@link PreAnalyzedStoredBinary#NO_COMPRESSION}.
+	 */
+	public long compressBinaryThreshold() {
+		return ((PreanalyzedFieldType) fieldType()).compressBinaryThreshold();
+	}
+
+	/**
+	 * @return Whether the sentence and section boundaries are indexed as
+	 *         {@link PreAnalyzedBoundaries}.
+	 */
+	public boolean boundaries() {
+		return boundaries;
+	}
+
+	@Override
+	public Iterator<Mapper> iterator() {
+		if (tokenCountMapper == null && completionMapper == null)
+			return super.iterator();
+		List<Mapper> subMappers = new ArrayList<>();
+		super.iterator().forEachRemaining(subMappers::add);
+		if (tokenCountMapper != null)
+			subMappers.add(tokenCountMapper);
+		if (completionMapper != null)
+			subMappers.add(completionMapper);
+		return subMappers.iterator();
+	}
+
+	@Override
+	public FieldMapper updateFieldType(Map<String, MappedFieldType> fullNameToFieldType) {
+		PreAnalyzedMapper updated = (PreAnalyzedMapper) super.updateFieldType(fullNameToFieldType);
+		if (tokenCountMapper != null) {
+			NumberFieldMapper updatedTokenCountMapper = (NumberFieldMapper) tokenCountMapper
+					.updateFieldType(fullNameToFieldType);
+			if (updatedTokenCountMapper != tokenCountMapper) {
+				if (updated == this)
+					updated = (PreAnalyzedMapper) clone();
+				updated.tokenCountMapper = updatedTokenCountMapper;
+			}
+		}
+		if (completionMapper != null) {
+			CompletionFieldMapper updatedCompletionMapper = (CompletionFieldMapper) completionMapper
+					.updateFieldType(fullNameToFieldType);
+			if (updatedCompletionMapper != completionMapper) {
+				if (updated == this)
+					updated = (PreAnalyzedMapper) clone();
+				updated.completionMapper = updatedCompletionMapper;
+			}
+		}
+		return updated;
 	}
 
 	@Override
@@ -293,42 +883,165 @@ public class PreAnalyzedMapper extends FieldMapper {
 		if (null == preAnalyzedJson)
 			return;
 
-		try (XContentParser parser = new JsonXContentParser(null, new NoopDeprecationHandler(), jsonFactory.createParser(preAnalyzedJson))) {
-			Tuple<PreAnalyzedStoredValue, TokenStream> valueAndTokenStream;
-			try {
-				valueAndTokenStream = parsePreAnalyzedFieldContents(parser);
-			} catch (MapperParsingException e) {
-				throw new MapperParsingException("Could not read preanalyzed field value of document", e);
-			}
-
-			// We actually create two fields: First, a TokenStream (cannot be
-			// stored!) field for the analyzed part of the
-			// preanalyzed field. That is done next up.
-			// Further below, if the field should also be stored, we also create
-			// a new, un-analyzed but stored field with
-			// the same name.
-			// This will give us a stored and analyzed field in the index
-			// eventually.
-			if (fieldType().indexOptions() != IndexOptions.NONE && fieldType().tokenized()) {
-				TokenStream ts = valueAndTokenStream.v2();
-
-				if (ts != null) {
-					Field field = new Field(fieldTypeIndexed.name(), ts, fieldTypeIndexed);
-					fields.add(field);
-				}
+		Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> valueAndTokenStream;
+		try {
+			PreAnalyzedPredecoder.Decoded predecoded = predecoder.take(context.sourceToParse(), this, preAnalyzedJson);
+			if (predecoded != null)
+				valueAndTokenStream = predecoded.get();
+			else if (pipelinedDecode(context, preAnalyzedJson))
+				valueAndTokenStream = parsePreAnalyzedFieldContents(preAnalyzedJson, true);
+			else
+				valueAndTokenStream = parsePreAnalyzedFieldContents(preAnalyzedJson);
+		} catch (MapperParsingException e) {
+			if (ignoreMalformed.value()) {
+				context.addIgnoredField(fieldType().name());
+				PreAnalyzedIndexingStats.addMalformedValue();
+				return;
 			}
+			throw new MapperParsingException("Could not read preanalyzed field value of document", e);
+		}
+		PreAnalyzedStoredValue storedValue = valueAndTokenStream.v1();
+		int malformedTokens = valueAndTokenStream.v2() != null ? valueAndTokenStream.v2().malformedTokens() : 0;
+		// tokens whose payload is no valid weight are malformed, too
+		Map<String, Integer> completionInputs = null;
+		if (completionMapper != null && valueAndTokenStream.v2() != null) {
+			String str = PreAnalyzedStoredValue.VALUE_TYPE.STRING == storedValue.type ? (String) storedValue.value : null;
+			completionInputs = new LinkedHashMap<>();
+			malformedTokens += completion.inputs(valueAndTokenStream.v2().tokens(), str, ignoreMalformed.value(),
+					completionInputs);
+		}
+		if (malformedTokens > 0) {
+			context.addIgnoredField(fieldType().name());
+			PreAnalyzedIndexingStats.addMalformedTokens(malformedTokens);
+		}
 
-			PreAnalyzedStoredValue storedValue = valueAndTokenStream.v1();
-			if (fieldTypeText.stored() && null != storedValue.value) {
-				Field field;
-				if (PreAnalyzedStoredValue.VALUE_TYPE.STRING == storedValue.type) {
-					field = new Field(fieldType().name(), (String) storedValue.value, fieldTypeText);
-				} else {
-					field = new Field(fieldType().name(), (BytesRef) storedValue.value, fieldTypeText);
-				}
+		// We actually create two fields: First, a TokenStream (cannot be
+		// stored!) field for the analyzed part of the
+		// preanalyzed field. That is done next up.
+		// Further below, if the field should also be stored, we also create
+		// a new, un-analyzed but stored field with
+		// the same name.
+		// This will give us a stored and analyzed field in the index
+		// eventually.
+		if (fieldType().indexOptions() != IndexOptions.NONE && fieldType().tokenized()) {
+			PreAnalyzedTokenStream ts = valueAndTokenStream.v2();
+
+			if (ts != null) {
+				if (PreAnalyzedStoredValue.VALUE_TYPE.STRING == valueAndTokenStream.v1().type)
+					ts.setFinalOffset(((String) valueAndTokenStream.v1().value).length());
+				ts.setIndexFlags(indexFlags);
+				ts.setIndexTokens(indexTokens);
+				Field field = new Field(fieldType().name(), ts, fieldTypeIndexed);
 				fields.add(field);
+				if (boundaries) {
+					ts.setBoundaryGap(boundaryPositionGap);
+					// one table for all values of the field in the document
+					String boundariesName = fieldType().name() + PreAnalyzedBoundaries.FIELD_SUFFIX;
+					PreAnalyzedBoundaries.DocValuesField boundariesField = (PreAnalyzedBoundaries.DocValuesField) context
+							.doc().getByKey(boundariesName);
+					if (boundariesField == null) {
+						boundariesField = new PreAnalyzedBoundaries.DocValuesField(boundariesName);
+						context.doc().addWithKey(boundariesName, boundariesField);
+					}
+					boundariesField.addValue(ts.tokens(), boundaryPositionGap,
+							fieldType().indexAnalyzer().getPositionIncrementGap(fieldType().name()));
+				}
 			}
 		}
+
+		if (fieldTypeText.stored() && null != storedValue.value) {
+			Field field;
+			if (PreAnalyzedStoredValue.VALUE_TYPE.STRING == storedValue.type) {
+				field = new Field(fieldType().name(), (String) storedValue.value, fieldTypeText);
+			} else {
+				field = new Field(fieldType().name(), (BytesRef) storedValue.value, fieldTypeText);
+			}
+			fields.add(field);
+		}
+
+		// With a synthetic source, the tokens are stored in their compact
+		// binary form. Together with the stored value they suffice to
+		// restore the original field value at fetch time.
+		if (syntheticSource && valueAndTokenStream.v2() != null) {
+			ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+			PreAnalyzedBinaryFormat.write(valueAndTokenStream.v2().tokens(), out);
+			fields.add(new StoredField(fieldType().name() + TOKENS_FIELD_SUFFIX, out.toArrayCopy()));
+		}
+
+		// The token count is taken from the parsed tokens, there is no
+		// need to analyze the value again.
+		if (tokenCountMapper != null) {
+			int count = valueAndTokenStream.v2() != null ? tokenCount.count(valueAndTokenStream.v2().tokens()) : 0;
+			MappedFieldType countFieldType = tokenCountMapper.fieldType();
+			fields.addAll(NumberFieldMapper.NumberType.INTEGER.createFields(countFieldType.name(), count,
+					countFieldType.indexOptions() != IndexOptions.NONE, countFieldType.hasDocValues(),
+					countFieldType.stored()));
+		}
+
+		if (completionInputs != null) {
+			for (Map.Entry<String, Integer> input : completionInputs.entrySet())
+				context.doc().add(new SuggestField(completionMapper.fieldType().name(), input.getKey(), input.getValue()));
+		}
+	}
+
+	@Override
+	protected void doMerge(Mapper mergeWith) {
+		super.doMerge(mergeWith);
+		PreAnalyzedMapper mw = (PreAnalyzedMapper) mergeWith;
+		if (this.syntheticSource != mw.syntheticSource) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different synthetic_source settings, current ["
+					+ this.syntheticSource + "], merged [" + mw.syntheticSource + "]");
+		}
+		if (!Objects.equals(this.tokenCount, mw.tokenCount)) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different token_count settings, current ["
+					+ this.tokenCount + "], merged [" + mw.tokenCount + "]");
+		}
+		if (this.tokenCountMapper != null) {
+			this.tokenCountMapper = (NumberFieldMapper) this.tokenCountMapper.merge(mw.tokenCountMapper);
+		}
+		if (!Objects.equals(this.completion, mw.completion)) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different completion settings, current ["
+					+ this.completion + "], merged [" + mw.completion + "]");
+		}
+		if (this.completionMapper != null) {
+			this.completionMapper = (CompletionFieldMapper) this.completionMapper.merge(mw.completionMapper);
+		}
+		// the dictionaries are also known to the index analyzer which is not
+		// replaced by merging
+		if (!Objects.equals(this.typeDictionary, mw.typeDictionary)) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different type_dictionary settings, current ["
+					+ this.typeDictionary + "], merged [" + mw.typeDictionary + "]");
+		}
+		if (!Objects.equals(this.flagDictionary, mw.flagDictionary)) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different flag_dictionary settings, current ["
+					+ this.flagDictionary + "], merged [" + mw.flagDictionary + "]");
+		}
+		if (this.indexFlags != mw.indexFlags) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different index_flags settings, current ["
+					+ this.indexFlags + "], merged [" + mw.indexFlags + "]");
+		}
+		// like the search analyzer, the index analyzer of the field type is
+		// not replaced by merging and keeps its ignore_malformed setting
+		if (mw.ignoreMalformed.explicit() && this.ignoreMalformed.value() != mw.ignoreMalformed.value()) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different ignore_malformed settings, current ["
+					+ this.ignoreMalformed.value() + "], merged [" + mw.ignoreMalformed.value() + "]");
+		}
+		if (this.tokenOrder != mw.tokenOrder) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different token_order settings, current ["
+					+ this.tokenOrder + "], merged [" + mw.tokenOrder + "]");
+		}
+		if (this.boundaries != mw.boundaries) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different boundaries settings, current ["
+					+ this.boundaries + "], merged [" + mw.boundaries + "]");
+		}
+		if (this.boundaryPositionGap != mw.boundaryPositionGap) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different boundary_position_gap settings, current ["
+					+ this.boundaryPositionGap + "], merged [" + mw.boundaryPositionGap + "]");
+		}
+		if (!Objects.equals(this.indexTokens, mw.indexTokens)) {
+			throw new IllegalArgumentException("mapper [" + name() + "] has different index_tokens settings, current ["
+					+ this.indexTokens + "], merged [" + mw.indexTokens + "]");
+		}
 	}
 	
 	/**
@@ -341,6 +1054,85 @@ public class PreAnalyzedMapper extends FieldMapper {
 	protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, Params params) throws IOException {
 		super.doXContentBody(builder, includeDefaults, params);
 		doXContentAnalyzers(builder, includeDefaults);
+		if (includeDefaults || syntheticSource != Defaults.SYNTHETIC_SOURCE) {
+			builder.field("synthetic_source", syntheticSource);
+		}
+		if (tokenCount != null) {
+			tokenCount.toXContent(builder);
+		} else if (includeDefaults) {
+			builder.field("token_count", false);
+		}
+		if (completion != null) {
+			builder.startObject("completion");
+			completion.toXContent(builder);
+			CompletionFieldMapper.CompletionFieldType completionFieldType = completionMapper.fieldType();
+			builder.field("analyzer", completionFieldType.indexAnalyzer().name());
+			if (!completionFieldType.indexAnalyzer().name().equals(completionFieldType.searchAnalyzer().name()))
+				builder.field("search_analyzer", completionFieldType.searchAnalyzer().name());
+			builder.field("preserve_separators", completionFieldType.preserveSep());
+			builder.field("preserve_position_increments", completionFieldType.preservePositionIncrements());
+			builder.endObject();
+		}
+		if (typeDictionary != null)
+			typeDictionary.toXContent(builder, "type_dictionary");
+		if (flagDictionary != null)
+			flagDictionary.toXContent(builder, "flag_dictionary");
+		if (includeDefaults || indexFlags != Defaults.INDEX_FLAGS) {
+			builder.field("index_flags", indexFlags);
+		}
+		if (includeDefaults || ignoreMalformed.explicit()) {
+			builder.field("ignore_malformed", ignoreMalformed.value());
+		}
+		if (includeDefaults || tokenOrder != Defaults.TOKEN_ORDER) {
+			builder.field("token_order", tokenOrder.toString());
+		}
+		if (includeDefaults || boundaries != Defaults.BOUNDARIES) {
+			builder.field("boundaries", boundaries);
+		}
+		if (includeDefaults || boundaryPositionGap != Defaults.BOUNDARY_POSITION_GAP) {
+			builder.field("boundary_position_gap", boundaryPositionGap);
+		}
+		if (indexTokens != null)
+			indexTokens.toXContent(builder);
+		long compressBinaryThreshold = compressBinaryThreshold();
+		if (includeDefaults || compressBinaryThreshold != PreAnalyzedStoredBinary.NO_COMPRESSION) {
+			builder.field("compress_binary_threshold", new ByteSizeValue(compressBinaryThreshold).getStringRep());
+		}
+	}
+
+	/**
+	 * Parses a preanalyzed field value, see
+	 * {@link #parsePreAnalyzedFieldContents(XContentParser, String)}. This is also
+	 * called concurrently by {@link PreAnalyzedPredecoder}.
+	 * 
+	 * @param preAnalyzedJson
+	 *            The preanalyzed JSON.
+	 * @return A tuple, containing the plain text value and a TokenStream with
+	 *         the pre-analyzed tokens.
+	 */
+	Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> parsePreAnalyzedFieldContents(String preAnalyzedJson) {
+		return parsePreAnalyzedFieldContents(preAnalyzedJson, false);
+	}
+
+	/**
+	 * Parses a preanalyzed field value, see
+	 * {@link #parsePreAnalyzedFieldContents(String)}.
+	 * 
+	 * @param pipelined
+	 *            Whether the tokens are only checked for well-formed JSON and
+	 *            then decoded while they are indexed, see
+	 *            {@link PreAnalyzedTokenPipeline}.
+	 */
+	private Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> parsePreAnalyzedFieldContents(String preAnalyzedJson,
+			boolean pipelined) {
+		try (XContentParser parser = new JsonXContentParser(null, new NoopDeprecationHandler(), jsonFactory.createParser(preAnalyzedJson))) {
+			return parsePreAnalyzedFieldContents(parser, pipelined ? preAnalyzedJson : null);
+		} catch (IOException e) {
+			throw new MapperParsingException(
+					"The input document could not be parsed as a preanalyzed field value for field "
+							+ fieldType().name() + ".",
+					e);
+		}
 	}
 
 	/**
@@ -349,38 +1141,66 @@ public class PreAnalyzedMapper extends FieldMapper {
 	 * specification can be found at the link below.
 	 * 
 	 * @param parser The parser for the input document to be indexed.
+	 * @param pipelinedJson The preanalyzed JSON if its tokens are decoded
+	 *            while they are indexed or <tt>null</tt>.
 	 * @return A tuple, containing the plain text value and a TokenStream with
 	 *         the pre-analyzed tokens.
 	 * @see <a href="http://wiki.apache.org/solr/JsonPreAnalyzedParser">http://
 	 *      wiki.apache.org/solr/JsonPreAnalyzedParser</a>
 	 */
-	private Tuple<PreAnalyzedStoredValue, TokenStream> parsePreAnalyzedFieldContents(XContentParser parser) {
+	private Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> parsePreAnalyzedFieldContents(XContentParser parser,
+			String pipelinedJson) {
 		try {
+			int tokenArrays = 0;
 
 			Token currentToken;
 			String currentFieldName = "";
 			String version = null;
 			PreAnalyzedStoredValue storedValue = new PreAnalyzedStoredValue();
 			PreAnalyzedTokenStream ts = null;
+			if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+				throw new MapperParsingException("The value of the preanalyzed field " + fieldType().name()
+						+ " is no JSON object.");
+			}
 			while ((currentToken = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+				if (currentToken == null) {
+					throw new MapperParsingException("Unexpected end of the preanalyzed value of field "
+							+ fieldType().name() + ".");
+				}
 				if (currentToken == XContentParser.Token.FIELD_NAME) {
 					currentFieldName = parser.currentName();
 				} else if (currentToken == XContentParser.Token.VALUE_STRING) {
-					if ("v".equals(currentFieldName)) {
+					if (PreAnalyzedFormat.VERSION_KEY.equals(currentFieldName)) {
 						version = parser.text();
-						if (!"1".equals(version)) {
+						if (!PreAnalyzedFormat.VERSION.equals(version)) {
 							throw new MapperParsingException("Version of pre-analyzed field format is \"" + version
 									+ "\" which is not supported.");
 						}
-					} else if ("str".equals(currentFieldName)) {
+					} else if (PreAnalyzedFormat.STRING_KEY.equals(currentFieldName)) {
 						storedValue.value = parser.text();
 						storedValue.type = PreAnalyzedStoredValue.VALUE_TYPE.STRING;
-					} else if ("bin".equals(currentFieldName)) {
-						storedValue.value = parser.binaryValue();
+					} else if (PreAnalyzedFormat.BINARY_KEY.equals(currentFieldName)) {
+						// the binary value is only decoded if it is stored,
+						// straight from the characters of the parser
+						if (fieldTypeText.stored())
+							storedValue.value = PreAnalyzedStoredBinary.encode(parser.textCharacters(),
+									parser.textOffset(), parser.textLength(), compressBinaryThreshold());
 						storedValue.type = PreAnalyzedStoredValue.VALUE_TYPE.BINARY;
 					}
-				} else if ("tokens".equals(currentFieldName) && currentToken == XContentParser.Token.START_ARRAY) {
-					ts = new PreAnalyzedTokenStream(parser);
+				} else if (PreAnalyzedFormat.TOKENS_KEY.equals(currentFieldName) && currentToken == XContentParser.Token.START_ARRAY) {
+					if (pipelinedJson != null) {
+						// the JSON is still read through so that syntax errors
+						// fail the value before anything is indexed
+						parser.skipChildren();
+						ts = new PreAnalyzedTokenStream(newTokenPipeline(pipelinedJson, tokenArrays));
+					} else {
+						ts = new PreAnalyzedTokenStream(parser, decoderSettings());
+					}
+					++tokenArrays;
+				} else if (PreAnalyzedFormat.FILE_KEY.equals(currentFieldName) && currentToken == XContentParser.Token.START_OBJECT) {
+					ts = new PreAnalyzedTokenStream(tokenFiles, parser, decoderSettings());
+				} else if (currentToken == XContentParser.Token.START_ARRAY || currentToken == XContentParser.Token.START_OBJECT) {
+					parser.skipChildren();
 				}
 			}
 
@@ -388,9 +1208,15 @@ public class PreAnalyzedMapper extends FieldMapper {
 				throw new MapperParsingException("No version of pre-analyzed field format has been specified for field "
 						+ fieldType().name());
 			}
+			// the str value may follow the tokens, so the order is repaired
+			// when the whole value has been read
+			if (ts != null && tokenOrder == TokenOrder.REPAIR) {
+				ts.tokens().repairOrder(PreAnalyzedStoredValue.VALUE_TYPE.STRING == storedValue.type
+						? ((String) storedValue.value).length() : -1);
+			}
 
-			return new Tuple<PreAnalyzedStoredValue, TokenStream>(storedValue, ts);
-		} catch (IOException e) {
+			return new Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream>(storedValue, ts);
+		} catch (IOException | IllegalArgumentException | IllegalStateException e) {
 			throw new MapperParsingException(
 					"The input document could not be parsed as a preanalyzed field value for field "
 							+ fieldType().name() + ".",
@@ -398,16 +1224,170 @@ public class PreAnalyzedMapper extends FieldMapper {
 		}
 	}
 
+	/**
+	 * @return How the <tt>tokens</tt> of a value of this field are decoded.
+	 */
+	private PreAnalyzedTokenDecoder.Settings decoderSettings() {
+		return decoderSettings(typeDictionary, flagDictionary, ignoreMalformed.value(), fieldTypeIndexed.indexOptions(),
+				tokenOrder);
+	}
+
+	/**
+	 * @return How the <tt>tokens</tt> of a field with the given options are
+	 *         decoded, by the mapper as well as by the index analyzer. Start
+	 *         offsets must not go backwards if offsets are indexed.
+	 */
+	private static PreAnalyzedTokenDecoder.Settings decoderSettings(PreAnalyzedDictionary typeDictionary,
+			PreAnalyzedDictionary flagDictionary, boolean ignoreMalformed, IndexOptions indexOptions,
+			TokenOrder tokenOrder) {
+		return PreAnalyzedTokenDecoder.Settings.DEFAULT.withDictionaries(typeDictionary, flagDictionary)
+				.withIgnoreMalformed(ignoreMalformed)
+				.withCheckOffsetOrder(
+						indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0)
+				.withRepairOrder(tokenOrder == TokenOrder.REPAIR);
+	}
+
+	/**
+	 * @return Whether the tokens of <tt>preAnalyzedJson</tt> are decoded
+	 *         while they are indexed because the value is at least as long
+	 *         as {@link PreAnalyzedTokenPipeline#PIPELINED_DECODE_THRESHOLD_SETTING}.
+	 *         Options that need all tokens before the value is indexed, like
+	 *         <tt>token_count</tt> or <tt>ignore_malformed</tt>, rule it out.
+	 */
+	private boolean pipelinedDecode(ParseContext context, String preAnalyzedJson) {
+		if (predecoder.executor() == null || context.indexSettings() == null)
+			return false;
+		long threshold = context.indexSettings().getValue(PreAnalyzedTokenPipeline.PIPELINED_DECODE_THRESHOLD_SETTING)
+				.getBytes();
+		if (threshold < 0 || preAnalyzedJson.length() < threshold)
+			return false;
+		return fieldType().indexOptions() != IndexOptions.NONE && fieldType().tokenized() && !syntheticSource
+				&& tokenCount == null && completion == null && !boundaries && tokenOrder == TokenOrder.STRICT
+				&& !ignoreMalformed.value();
+	}
+
+	/**
+	 * Creates the pipeline decoding the tokens of <tt>preAnalyzedJson</tt>.
+	 * 
+	 * @param tokenArrays
+	 *            The number of <tt>tokens</tt> arrays in front of the one to
+	 *            decode.
+	 */
+	private PreAnalyzedTokenPipeline newTokenPipeline(String preAnalyzedJson, int tokenArrays) {
+		PreAnalyzedIndexingStats.addPipelinedValue();
+		return new PreAnalyzedTokenPipeline(predecoder.executor(), pipeline -> {
+			try (XContentParser parser = new JsonXContentParser(null, new NoopDeprecationHandler(),
+					jsonFactory.createParser(preAnalyzedJson))) {
+				parser.nextToken();
+				int skippedArrays = 0;
+				Token currentToken;
+				String currentFieldName = null;
+				while ((currentToken = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+					if (currentToken == XContentParser.Token.FIELD_NAME) {
+						currentFieldName = parser.currentName();
+					} else if (PreAnalyzedFormat.TOKENS_KEY.equals(currentFieldName)
+							&& currentToken == XContentParser.Token.START_ARRAY && skippedArrays++ == tokenArrays) {
+						PreAnalyzedTokenDecoder.decode(parser, decoderSettings(), pipeline);
+						return;
+					} else if (currentToken == XContentParser.Token.START_ARRAY
+							|| currentToken == XContentParser.Token.START_OBJECT) {
+						parser.skipChildren();
+					}
+				}
+			} catch (IOException | IllegalArgumentException | IllegalStateException e) {
+				throw new MapperParsingException(
+						"The input document could not be parsed as a preanalyzed field value for field "
+								+ fieldType().name() + ".",
+						e);
+			}
+		}, () -> parsePreAnalyzedFieldContents(preAnalyzedJson).v2().tokens());
+	}
+
+	/**
+	 * The inverse of
+	 * {@link #parsePreAnalyzedFieldContents(XContentParser, String)}: Writes the
+	 * stored value and the tokens of a field back into the Solr JSON
+	 * PreAnalyzed format. This is used to synthesize the <tt>_source</tt> of
+	 * fields with <tt>synthetic_source</tt>.
+	 * 
+	 * @param storedValue
+	 *            The value of the stored field, either a String for
+	 *            <tt>str</tt> or a {@link BytesRef} for <tt>bin</tt>.
+	 * @param tokens
+	 *            The tokens of the field value.
+	 * @return The preanalyzed JSON.
+	 * @throws IOException
+	 *             If writing the JSON fails.
+	 */
+	public static String toPreAnalyzedJson(Object storedValue, PreAnalyzedTokens tokens) throws IOException {
+		XContentBuilder builder = XContentFactory.jsonBuilder();
+		builder.startObject().field(PreAnalyzedFormat.VERSION_KEY, PreAnalyzedFormat.VERSION);
+		if (storedValue instanceof BytesRef) {
+			BytesRef binary = (BytesRef) storedValue;
+			builder.field(PreAnalyzedFormat.BINARY_KEY).value(binary.bytes, binary.offset, binary.length);
+		} else if (storedValue != null) {
+			builder.field(PreAnalyzedFormat.STRING_KEY, storedValue.toString());
+		}
+		builder.startArray(PreAnalyzedFormat.TOKENS_KEY);
+		for (int i = 0; i < tokens.size(); i++) {
+			builder.startObject();
+			builder.field(PreAnalyzedFormat.TERM_KEY, tokens.term(i));
+			builder.field(PreAnalyzedFormat.START_OFFSET_KEY, tokens.startOffset(i));
+			builder.field(PreAnalyzedFormat.END_OFFSET_KEY, tokens.endOffset(i));
+			builder.field(PreAnalyzedFormat.POSITION_INCREMENT_KEY, tokens.positionIncrement(i));
+			if (tokens.positionLength(i) != 1)
+				builder.field(PreAnalyzedFormat.POSITION_LENGTH_KEY, tokens.positionLength(i));
+			if (tokens.payload(i) != null)
+				builder.field(PreAnalyzedFormat.PAYLOAD_KEY, tokens.payload(i).utf8ToString());
+			if (tokens.flags(i) != 0)
+				builder.field(PreAnalyzedFormat.FLAGS_KEY, Integer.toString(tokens.flags(i)));
+			if (tokens.type(i) != null)
+				builder.field(PreAnalyzedFormat.TYPE_KEY, tokens.type(i));
+			if (tokens.boundary(i) == PreAnalyzedTokens.SENTENCE_BOUNDARY)
+				builder.field(PreAnalyzedFormat.BOUNDARY_KEY, PreAnalyzedFormat.SENTENCE_BOUNDARY);
+			else if (tokens.boundary(i) == PreAnalyzedTokens.SECTION_BOUNDARY)
+				builder.field(PreAnalyzedFormat.BOUNDARY_KEY, PreAnalyzedFormat.SECTION_BOUNDARY);
+			builder.endObject();
+		}
+		builder.endArray();
+		builder.endObject();
+		return Strings.toString(builder);
+	}
+
+	/**
+	 * Extracts the <tt>str</tt> value from preanalyzed JSON without decoding
+	 * the tokens, e.g. to highlight values read from the <tt>_source</tt>.
+	 * 
+	 * @param preAnalyzedJson
+	 *            The preanalyzed JSON.
+	 * @return The <tt>str</tt> value or <tt>null</tt> if there is none.
+	 * @throws IOException
+	 *             If the JSON cannot be read.
+	 */
+	public static String parseStringValue(String preAnalyzedJson) throws IOException {
+		try (XContentParser parser = new JsonXContentParser(null, new NoopDeprecationHandler(), jsonFactory.createParser(preAnalyzedJson))) {
+			if (parser.nextToken() != Token.START_OBJECT)
+				return null;
+			Token currentToken;
+			String currentFieldName = null;
+			while ((currentToken = parser.nextToken()) != Token.END_OBJECT && currentToken != null) {
+				if (currentToken == Token.FIELD_NAME) {
+					currentFieldName = parser.currentName();
+				} else if (currentToken == Token.START_ARRAY || currentToken == Token.START_OBJECT) {
+					parser.skipChildren();
+				} else if (currentToken == Token.VALUE_STRING && PreAnalyzedFormat.STRING_KEY.equals(currentFieldName)) {
+					return parser.text();
+				}
+			}
+			return null;
+		}
+	}
+
 	public static class PreAnalyzedTokenStream extends TokenStream {
-		private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
-		private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
-		private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
-		private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
-		private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
-		private final FlagsAttribute flagsAtt = addAttribute(FlagsAttribute.class);
-		private XContentParser parser;
-		private ArrayList<Map<String, Object>> tokenList;
-		private int tokenIndex;
+		private final PreAnalyzedTokenIterator iterator = new PreAnalyzedTokenIterator(this);
+		/** The pipeline whose tokens this stream emits. */
+		private PreAnalyzedTokenPipeline pipeline;
+		private int malformedTokens;
 
 		/**
 		 * <p>
@@ -427,137 +1407,546 @@ public class PreAnalyzedMapper extends FieldMapper {
 		 *      ://wiki.apache.org/solr/JsonPreAnalyzedParser</a>
 		 */
 		PreAnalyzedTokenStream(XContentParser parser) throws IOException {
-			this.parser = parser;
-			parsePreanalyzedTokens();
-			reset();
+			this(parser, PreAnalyzedTokenDecoder.Settings.DEFAULT);
 		}
 
-		private void parsePreanalyzedTokens() throws NumberFormatException, IOException {
-			tokenList = new ArrayList<>();
-			if (parser.currentToken() != XContentParser.Token.START_ARRAY)
-				throw new IllegalStateException(
-						"The parser is expected to point to the beginning of the array of preanalyzed tokens but the current token type was "
-								+ parser.currentToken());
+		/**
+		 * Creates a <tt>PreAnalyzedTokenStream</tt> that validates each token
+		 * while parsing so that it is never rejected by the indexing chain.
+		 * 
+		 * @param settings
+		 *            - How the tokens are decoded, e.g. whether malformed
+		 *            tokens are skipped and counted, see
+		 *            {@link #malformedTokens()}, instead of failing with a
+		 *            {@link MapperParsingException}.
+		 * @see #PreAnalyzedTokenStream(XContentParser)
+		 */
+		PreAnalyzedTokenStream(XContentParser parser, PreAnalyzedTokenDecoder.Settings settings) throws IOException {
+			PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+			this.malformedTokens = PreAnalyzedTokenDecoder.decode(parser, settings, tokens);
+			iterator.setTokens(tokens);
+		}
 
-			Token currentToken;
-			Map<String, Object> tokenMap = null;
-			while ((currentToken = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
-				if (currentToken == Token.START_OBJECT)
-					tokenMap = new HashMap<>();
-				// First clear all attributes for the case that some attributes
-				// are sometimes but not always specified.
-				clearAttributes();
-
-				boolean termFound = false;
-				int start = -1;
-				int end = -1;
-				String currentFieldName = null;
-				while ((currentToken = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
-					if (currentToken == XContentParser.Token.FIELD_NAME) {
-						currentFieldName = parser.currentName();
-					} else if (currentToken == XContentParser.Token.VALUE_STRING) {
-						if ("t".equals(currentFieldName)) {
-							char[] tokenBuffer = parser.textCharacters();
-							char[] bufferCopy = new char[parser.textLength()];
-							System.arraycopy(tokenBuffer, parser.textOffset(), bufferCopy, 0, bufferCopy.length);
-							tokenMap.put("t", bufferCopy);
-							termFound = true;
-						} else if ("p".equals(currentFieldName)) {
-							// since ES 1.x - at least 1.3 - we have to make a
-							// copy of the incoming BytesRef because the
-							// byte[] referenced by the input is longer than the
-							// actual information, just containing
-							// zeros, which can cause problems with Base64
-							// encoding. All we do is trim the byte array to
-							// its actual length.
-//							BytesRef inputBytes = parser.utf8Bytes();
-//							byte[] byteArray = new byte[inputBytes.length];
-//							System.arraycopy(inputBytes.bytes, 0, byteArray, 0, inputBytes.length);
-							byte[] byteArray = parser.charBuffer().toString().getBytes("UTF-8");
-							BytesRef bytesRef = new BytesRef(byteArray);
-							tokenMap.put("p", bytesRef);
-						} else if ("f".equals(currentFieldName)) {
-							tokenMap.put("f", Integer.decode(parser.text()));
-						} else if ("y".equals(currentFieldName)) {
-							tokenMap.put("y", parser.text());
-						}
-					} else if (currentToken == XContentParser.Token.VALUE_NUMBER) {
-						if ("s".equals(currentFieldName)) {
-							start = parser.intValue();
-						} else if ("e".equals(currentFieldName)) {
-							end = parser.intValue();
-						} else if ("i".equals(currentFieldName)) {
-							tokenMap.put("i", parser.intValue());
-						}
-					}
+		/**
+		 * Creates a <tt>PreAnalyzedTokenStream</tt> over the tokens of the
+		 * token file reference the parser points to, which are validated
+		 * like the tokens of preanalyzed JSON.
+		 * 
+		 * @see #PreAnalyzedTokenStream(XContentParser,
+		 *      PreAnalyzedTokenDecoder.Settings)
+		 */
+		PreAnalyzedTokenStream(PreAnalyzedTokenFiles tokenFiles, XContentParser parser,
+				PreAnalyzedTokenDecoder.Settings settings) throws IOException {
+			PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+			this.malformedTokens = tokenFiles.read(parser, settings, tokens);
+			iterator.setTokens(tokens);
+		}
+
+		/**
+		 * Creates a <tt>PreAnalyzedTokenStream</tt> emitting the tokens that
+		 * are decoded while it is consumed, see
+		 * {@link PreAnalyzedTokenPipeline}. {@link #tokens()} then only holds
+		 * the chunk currently emitted.
+		 * 
+		 * @param pipeline
+		 *            - The pipeline the tokens are read from.
+		 */
+		PreAnalyzedTokenStream(PreAnalyzedTokenPipeline pipeline) {
+			this.pipeline = pipeline;
+			iterator.setTokens(new PreAnalyzedTokens());
+			iterator.setPipeline(pipeline);
+		}
+
+		/**
+		 * Creates a <tt>PreAnalyzedTokenStream</tt> over already parsed or
+		 * decoded tokens, e.g. from {@link PreAnalyzedBinaryFormat}.
+		 * 
+		 * @param tokens
+		 *            - The tokens to emit.
+		 */
+		public PreAnalyzedTokenStream(PreAnalyzedTokens tokens) {
+			iterator.setTokens(tokens);
+		}
+
+		/**
+		 * @return The buffer of tokens emitted by this stream.
+		 */
+		public PreAnalyzedTokens tokens() {
+			return iterator.tokens();
+		}
+
+		/**
+		 * @return The number of malformed tokens that were skipped while
+		 *         parsing because malformed tokens are ignored.
+		 */
+		public int malformedTokens() {
+			return malformedTokens;
+		}
+
+		/**
+		 * Sets the offset reported at the end of the stream, typically the
+		 * length of the <tt>str</tt> value. Lucene adds it to the offsets of
+		 * subsequent values of the same field so that the offsets of all values
+		 * refer to their concatenation, as expected by highlighting. Without
+		 * it, the largest end offset of the tokens is used.
+		 */
+		public void setFinalOffset(int finalOffset) {
+			iterator.setFinalOffset(finalOffset);
+		}
+
+		/**
+		 * Sets whether the token flags are emitted as part of the payload, as
+		 * defined by {@link PreAnalyzedFlagsPayload}, to be indexed.
+		 */
+		public void setIndexFlags(boolean indexFlags) {
+			iterator.setIndexFlags(indexFlags);
+		}
+
+		/**
+		 * Sets the number of positions left empty in front of each token
+		 * starting a sentence or section, see
+		 * {@link PreAnalyzedTokens#positionIncrement(int, int)}.
+		 */
+		public void setBoundaryGap(int boundaryGap) {
+			iterator.setBoundaryGap(boundaryGap);
+		}
+
+		/**
+		 * Sets which tokens are emitted to be indexed, <tt>null</tt> for all.
+		 * The positions of the other tokens are kept empty.
+		 */
+		public void setIndexTokens(IndexTokensSettings indexTokens) {
+			iterator.setIndexTokens(indexTokens);
+		}
+
+		@Override
+		public final boolean incrementToken() throws IOException {
+			return iterator.next();
+		}
+
+		@Override
+		public void end() throws IOException {
+			super.end();
+			iterator.end();
+		}
+
+		/**
+		 * Sets the stream state right to the beginning of the token buffer.
+		 */
+		@Override
+		public void reset() throws IOException {
+			iterator.reset();
+			if (pipeline != null)
+				pipeline.start();
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (pipeline != null)
+				pipeline.close();
+		}
+	}
+
+	/**
+	 * The settings of the <tt>index_tokens</tt> option, determining which
+	 * tokens are indexed. Flag names are resolved by the
+	 * <tt>flag_dictionary</tt> into masks when the mapping is parsed, so
+	 * checking a token takes a set lookup for its type and some bit and length
+	 * comparisons.
+	 */
+	public static class IndexTokensSettings {
+		private final Set<String> includeTypes;
+		private final Set<String> excludeTypes;
+		private final List<String> includeFlags;
+		private final List<String> excludeFlags;
+		private final int includeFlagMask;
+		private final int excludeFlagMask;
+		private final int minLength;
+		private final int maxLength;
+
+		IndexTokensSettings(Set<String> includeTypes, Set<String> excludeTypes, List<String> includeFlags,
+				List<String> excludeFlags, int includeFlagMask, int excludeFlagMask, int minLength, int maxLength) {
+			this.includeTypes = includeTypes;
+			this.excludeTypes = excludeTypes;
+			this.includeFlags = includeFlags;
+			this.excludeFlags = excludeFlags;
+			this.includeFlagMask = includeFlagMask;
+			this.excludeFlagMask = excludeFlagMask;
+			this.minLength = minLength;
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * Parses the <tt>index_tokens</tt> mapping property.
+		 * 
+		 * @param flagDictionary
+		 *            The <tt>flag_dictionary</tt> of the field or
+		 *            <tt>null</tt>.
+		 */
+		static IndexTokensSettings parse(String name, Object propNode, PreAnalyzedDictionary flagDictionary) {
+			if (!(propNode instanceof Map))
+				throw new MapperParsingException("[index_tokens] of field [" + name + "] must be an object");
+			Set<String> includeTypes = Collections.emptySet();
+			Set<String> excludeTypes = Collections.emptySet();
+			List<String> includeFlags = Collections.emptyList();
+			List<String> excludeFlags = Collections.emptyList();
+			int minLength = 0;
+			int maxLength = Integer.MAX_VALUE;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) propNode).entrySet()) {
+				String propName = entry.getKey().toString();
+				if (propName.equals("include_types")) {
+					includeTypes = new HashSet<>(Arrays.asList(XContentMapValues.nodeStringArrayValue(entry.getValue())));
+				} else if (propName.equals("exclude_types")) {
+					excludeTypes = new HashSet<>(Arrays.asList(XContentMapValues.nodeStringArrayValue(entry.getValue())));
+				} else if (propName.equals("include_flags")) {
+					includeFlags = Arrays.asList(XContentMapValues.nodeStringArrayValue(entry.getValue()));
+				} else if (propName.equals("exclude_flags")) {
+					excludeFlags = Arrays.asList(XContentMapValues.nodeStringArrayValue(entry.getValue()));
+				} else if (propName.equals("min_length")) {
+					minLength = XContentMapValues.nodeIntegerValue(entry.getValue(), -1);
+				} else if (propName.equals("max_length")) {
+					maxLength = XContentMapValues.nodeIntegerValue(entry.getValue(), -1);
+				} else {
+					throw new MapperParsingException(
+							"unknown parameter [" + propName + "] on [index_tokens] of field [" + name + "]");
 				}
+			}
+			if (minLength < 0 || maxLength < minLength) {
+				throw new MapperParsingException("[min_length] and [max_length] on [index_tokens] of field [" + name
+						+ "] must be non-negative and [min_length] must not exceed [max_length]");
+			}
+			return new IndexTokensSettings(includeTypes, excludeTypes, includeFlags, excludeFlags,
+					flagMask(name, includeFlags, flagDictionary), flagMask(name, excludeFlags, flagDictionary),
+					minLength, maxLength);
+		}
+
+		/**
+		 * @return The bits of flag names of the <tt>flag_dictionary</tt> and of
+		 *         integer flag values.
+		 */
+		private static int flagMask(String name, List<String> flags, PreAnalyzedDictionary flagDictionary) {
+			int mask = 0;
+			for (String flag : flags) {
+				int code = flagDictionary != null ? flagDictionary.code(flag.toCharArray(), 0, flag.length()) : -1;
+				if (code >= 0) {
+					mask |= 1 << code;
+					continue;
+				}
+				long value = PreAnalyzedTokenDecoder.decodeInt(flag.toCharArray(), 0, flag.length());
+				if (value == PreAnalyzedTokenDecoder.INVALID_FLAGS)
+					throw new MapperParsingException("Unknown flag [" + flag + "] on [index_tokens] of field [" + name
+							+ "], it is neither in the flag_dictionary nor an integer");
+				mask |= (int) value;
+			}
+			return mask;
+		}
 
-				tokenMap.put("s", start != -1 ? start : 0);
-				tokenMap.put("e", end != -1 ? end : 0);
+		/**
+		 * @return Whether the token at <tt>index</tt> is indexed.
+		 */
+		boolean accept(PreAnalyzedTokens tokens, int index) {
+			int length = tokens.termLength(index);
+			if (length < minLength || length > maxLength)
+				return false;
+			int flags = tokens.flags(index);
+			if ((flags & excludeFlagMask) != 0 || (includeFlagMask != 0 && (flags & includeFlagMask) == 0))
+				return false;
+			if (includeTypes.isEmpty() && excludeTypes.isEmpty())
+				return true;
+			String type = tokens.type(index) != null ? tokens.type(index) : TypeAttribute.DEFAULT_TYPE;
+			return (includeTypes.isEmpty() || includeTypes.contains(type)) && !excludeTypes.contains(type);
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			builder.startObject("index_tokens");
+			if (!includeTypes.isEmpty())
+				builder.array("include_types", new TreeSet<>(includeTypes).toArray(new String[0]));
+			if (!excludeTypes.isEmpty())
+				builder.array("exclude_types", new TreeSet<>(excludeTypes).toArray(new String[0]));
+			if (!includeFlags.isEmpty())
+				builder.array("include_flags", includeFlags.toArray(new String[0]));
+			if (!excludeFlags.isEmpty())
+				builder.array("exclude_flags", excludeFlags.toArray(new String[0]));
+			if (minLength != 0)
+				builder.field("min_length", minLength);
+			if (maxLength != Integer.MAX_VALUE)
+				builder.field("max_length", maxLength);
+			builder.endObject();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (o == null || getClass() != o.getClass())
+				return false;
+			IndexTokensSettings that = (IndexTokensSettings) o;
+			return includeTypes.equals(that.includeTypes) && excludeTypes.equals(that.excludeTypes)
+					&& includeFlagMask == that.includeFlagMask && excludeFlagMask == that.excludeFlagMask
+					&& minLength == that.minLength && maxLength == that.maxLength;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(includeTypes, excludeTypes, includeFlagMask, excludeFlagMask, minLength, maxLength);
+		}
+
+		@Override
+		public String toString() {
+			return "include_types=" + includeTypes + ", exclude_types=" + excludeTypes + ", include_flags="
+					+ includeFlags + ", exclude_flags=" + excludeFlags + ", min_length=" + minLength
+					+ ", max_length=" + maxLength;
+		}
+	}
+
+	/**
+	 * The settings of the <tt>token_count</tt> option, determining which
+	 * tokens are counted.
+	 */
+	public static class TokenCountSettings {
+		private final boolean excludeStacked;
+		private final Set<String> excludeTypes;
+
+		public TokenCountSettings(boolean excludeStacked, Set<String> excludeTypes) {
+			this.excludeStacked = excludeStacked;
+			this.excludeTypes = excludeTypes;
+		}
 
-				if (!termFound) {
-					throw new IllegalArgumentException(
-							"There is at least one token object in the pre-analyzed field value where no actual term string is specified.");
+		/**
+		 * Parses the <tt>token_count</tt> mapping property.
+		 * 
+		 * @return The settings or <tt>null</tt> if the token count is
+		 *         disabled.
+		 */
+		static TokenCountSettings parse(String name, Object propNode) {
+			if (!(propNode instanceof Map))
+				return XContentMapValues.nodeBooleanValue(propNode, name + ".token_count")
+						? new TokenCountSettings(false, Collections.emptySet()) : null;
+			boolean excludeStacked = false;
+			Set<String> excludeTypes = Collections.emptySet();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) propNode).entrySet()) {
+				String propName = entry.getKey().toString();
+				if (propName.equals("exclude_stacked")) {
+					excludeStacked = XContentMapValues.nodeBooleanValue(entry.getValue(),
+							name + ".token_count.exclude_stacked");
+				} else if (propName.equals("exclude_types")) {
+					excludeTypes = new HashSet<>(Arrays.asList(XContentMapValues.nodeStringArrayValue(entry.getValue())));
+				} else {
+					throw new MapperParsingException(
+							"unknown parameter [" + propName + "] on [token_count] of field [" + name + "]");
 				}
-				tokenList.add(tokenMap);
+			}
+			return new TokenCountSettings(excludeStacked, excludeTypes);
+		}
+
+		/**
+		 * @return The number of tokens that are not excluded.
+		 */
+		int count(PreAnalyzedTokens tokens) {
+			int count = 0;
+			for (int i = 0; i < tokens.size(); i++) {
+				if (excludeStacked && tokens.positionIncrement(i) == 0)
+					continue;
+				if (!excludeTypes.isEmpty() && excludeTypes
+						.contains(tokens.type(i) != null ? tokens.type(i) : TypeAttribute.DEFAULT_TYPE))
+					continue;
+				++count;
+			}
+			return count;
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			if (!excludeStacked && excludeTypes.isEmpty()) {
+				builder.field("token_count", true);
+			} else {
+				builder.startObject("token_count");
+				builder.field("exclude_stacked", excludeStacked);
+				if (!excludeTypes.isEmpty())
+					builder.array("exclude_types", new TreeSet<>(excludeTypes).toArray(new String[0]));
+				builder.endObject();
 			}
 		}
 
 		@Override
-		public final boolean incrementToken() throws IOException {
-			if (tokenIndex < tokenList.size()) {
-				Map<String, Object> t = tokenList.get(tokenIndex);
-				char[] termChars = (char[]) t.get("t");
-				BytesRef payload = (BytesRef) t.get("p");
-				Integer flags = (Integer) t.get("f");
-				String type = (String) t.get("y");
-				Integer start = (Integer) t.get("s");
-				Integer end = (Integer) t.get("e");
-				Integer posInc = (Integer) t.get("i");
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (o == null || getClass() != o.getClass())
+				return false;
+			TokenCountSettings that = (TokenCountSettings) o;
+			return excludeStacked == that.excludeStacked && excludeTypes.equals(that.excludeTypes);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(excludeStacked, excludeTypes);
+		}
+
+		@Override
+		public String toString() {
+			return "exclude_stacked=" + excludeStacked + ", exclude_types=" + excludeTypes;
+		}
+	}
+
+	/**
+	 * The settings of the <tt>completion</tt> option, determining which tokens
+	 * are fed into the completion sub field and how.
+	 */
+	public static class CompletionSettings {
+		public enum Input {
+			COVERED_TEXT, TERM
+		}
+
+		private final Set<String> types;
+		private final Input input;
+		private final boolean weightFromPayload;
+		private final int maxInputLength;
+
+		public CompletionSettings(Set<String> types, Input input, boolean weightFromPayload, int maxInputLength) {
+			this.types = types;
+			this.input = input;
+			this.weightFromPayload = weightFromPayload;
+			this.maxInputLength = maxInputLength;
+		}
 
+		/**
+		 * Parses and removes the preanalyzed specific properties of the
+		 * <tt>completion</tt> mapping property.
+		 */
+		static CompletionSettings parse(String name, Map<String, Object> completionNode) {
+			Object typesNode = completionNode.remove("types");
+			if (typesNode == null)
+				throw new MapperParsingException("[types] must be set on [completion] of field [" + name + "]");
+			Set<String> types = new HashSet<>(Arrays.asList(XContentMapValues.nodeStringArrayValue(typesNode)));
+			Input input = Input.COVERED_TEXT;
+			Object inputNode = completionNode.remove("input");
+			if (inputNode != null) {
 				try {
-					// First clear all attributes for the case that some
-					// attributes
-					// are sometimes but not always specified.
-					clearAttributes();
-
-					if (null != termChars)
-						termAtt.copyBuffer(termChars, 0, termChars.length);
-					if (null != payload)
-						payloadAtt.setPayload(payload);
-					if (null != flags)
-						flagsAtt.setFlags(flags);
-					if (null != type)
-						typeAtt.setType(type);
-					if (null != posInc)
-						posIncrAtt.setPositionIncrement(posInc);
-
-					if (null != start && null != end && -1 != start && -1 != end) {
-						offsetAtt.setOffset(start, end);
-
-						++tokenIndex;
-
-						return true;
-					}
-				} catch (Exception e) {
-					throw new RuntimeException("Exception occurred at token term: " + new String(termChars)
-							+ ", start: " + start + ", end: " + end + ", positionIncrement: " + posInc, e);
+					input = Input.valueOf(inputNode.toString().toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					throw new MapperParsingException("[input] on [completion] of field [" + name
+							+ "] must be one of [covered_text, term] but was [" + inputNode + "]");
 				}
 			}
-			return false;
+			boolean weightFromPayload = false;
+			Object weightNode = completionNode.remove("weight");
+			if (weightNode != null) {
+				if ("payload".equals(weightNode.toString()))
+					weightFromPayload = true;
+				else if (!"none".equals(weightNode.toString()))
+					throw new MapperParsingException("[weight] on [completion] of field [" + name
+							+ "] must be one of [payload, none] but was [" + weightNode + "]");
+			}
+			int maxInputLength = CompletionFieldMapper.Defaults.DEFAULT_MAX_INPUT_LENGTH;
+			Object maxInputLengthNode = completionNode.remove("max_input_length");
+			if (maxInputLengthNode != null)
+				maxInputLength = XContentMapValues.nodeIntegerValue(maxInputLengthNode);
+			return new CompletionSettings(types, input, weightFromPayload, maxInputLength);
+		}
+
+		/**
+		 * Collects the completion inputs of the tokens with one of the
+		 * configured types.
+		 * 
+		 * @param str
+		 *            The <tt>str</tt> value, if given, to take the covered
+		 *            text from. Otherwise, the token term is used.
+		 * @param ignoreMalformed
+		 *            Whether tokens without a valid weight are skipped
+		 *            instead of failing with a
+		 *            {@link MapperParsingException}.
+		 * @param inputs
+		 *            Receives the inputs mapped to their highest weight.
+		 * @return The number of tokens that were skipped because their
+		 *         weight is malformed.
+		 */
+		int inputs(PreAnalyzedTokens tokens, String str, boolean ignoreMalformed, Map<String, Integer> inputs) {
+			int malformedTokens = 0;
+			for (int i = 0; i < tokens.size(); i++) {
+				if (!types.contains(tokens.type(i) != null ? tokens.type(i) : TypeAttribute.DEFAULT_TYPE))
+					continue;
+				String value;
+				int start = tokens.startOffset(i);
+				int end = tokens.endOffset(i);
+				if (input == Input.COVERED_TEXT && str != null && start >= 0 && start < end && end <= str.length())
+					value = str.substring(start, end);
+				else
+					value = tokens.term(i);
+				if (value.trim().isEmpty())
+					continue;
+				if (value.length() > maxInputLength) {
+					int length = maxInputLength;
+					if (Character.isHighSurrogate(value.charAt(length - 1)))
+						++length;
+					value = value.substring(0, length);
+				}
+				int weight = weight(tokens, i, ignoreMalformed);
+				if (weight < 0)
+					++malformedTokens;
+				else
+					inputs.merge(value, weight, Math::max);
+			}
+			return malformedTokens;
 		}
 
 		/**
-		 * Creates a new parser reading the input data and sets the parser state
-		 * right to the beginning of the actual token list.
+		 * @return The weight of the token or -1 if it is malformed and
+		 *         malformed tokens are ignored.
 		 */
+		private int weight(PreAnalyzedTokens tokens, int index, boolean ignoreMalformed) {
+			if (!weightFromPayload || tokens.payload(index) == null)
+				return 1;
+			String payload = tokens.payload(index).utf8ToString().trim();
+			long weight;
+			try {
+				weight = Long.parseLong(payload);
+			} catch (NumberFormatException e) {
+				if (ignoreMalformed)
+					return -1;
+				throw new MapperParsingException("The payload of token [" + tokens.term(index)
+						+ "] must be an integer to be used as completion weight but was [" + payload + "]");
+			}
+			if (weight < 0 || weight > Integer.MAX_VALUE) {
+				if (ignoreMalformed)
+					return -1;
+				throw new MapperParsingException("The completion weight of token [" + tokens.term(index)
+						+ "] must be in the interval [0..2147483647] but was [" + weight + "]");
+			}
+			return (int) weight;
+		}
+
+		void toXContent(XContentBuilder builder) throws IOException {
+			builder.array("types", new TreeSet<>(types).toArray(new String[0]));
+			builder.field("input", input.name().toLowerCase(Locale.ROOT));
+			builder.field("weight", weightFromPayload ? "payload" : "none");
+			builder.field("max_input_length", maxInputLength);
+		}
+
 		@Override
-		public void reset() throws IOException {
-			tokenIndex = 0;
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (o == null || getClass() != o.getClass())
+				return false;
+			CompletionSettings that = (CompletionSettings) o;
+			return types.equals(that.types) && input == that.input && weightFromPayload == that.weightFromPayload
+					&& maxInputLength == that.maxInputLength;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(types, input, weightFromPayload, maxInputLength);
+		}
+
+		@Override
+		public String toString() {
+			return "types=" + types + ", input=" + input + ", weight_from_payload=" + weightFromPayload
+					+ ", max_input_length=" + maxInputLength;
 		}
 	}
 
-	private static class PreAnalyzedStoredValue {
+	static class PreAnalyzedStoredValue {
 		Object value;
 		VALUE_TYPE type;
 
@@ -0,0 +1,317 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemRequest;
+import org.elasticsearch.action.bulk.BulkShardRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.SourceToParse;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper.PreAnalyzedStoredValue;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper.PreAnalyzedTokenStream;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+
+/**
+ * <p>
+ * Decodes the preanalyzed values of the documents of a bulk shard request in
+ * parallel before they are indexed. Indexing parses the documents of a shard
+ * one after the other; with {@link #PARALLEL_DECODE_SETTING}, the documents
+ * are handed to the {@link #EXECUTOR} thread pool as soon as the shard
+ * request arrives and each preanalyzed value is decoded into its token
+ * buffer there. When the mapper reaches a value, it takes the ready tokens
+ * instead of decoding the JSON itself. A document whose decoding has not
+ * started yet is cancelled and decoded by the mapper as usual, one that is
+ * being decoded is waited for. Thus, decoding runs ahead of indexing but
+ * never holds it up.
+ * </p>
+ * <p>
+ * Documents are only decoded ahead when the primary of the shard is
+ * allocated on the node that receives the shard request, because the tokens
+ * cannot be handed to another node. Values that were not decoded ahead, e.g.
+ * because the thread pool queue is full, are decoded by the mapper. Failures
+ * are raised by the mapper just as if it had decoded the value, so
+ * <tt>ignore_malformed</tt> behaves the same either way.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedPredecoder implements IndexEventListener {
+
+	/**
+	 * Whether the preanalyzed values of bulk requests are decoded in parallel
+	 * before indexing.
+	 */
+	public static final Setting<Boolean> PARALLEL_DECODE_SETTING = Setting.boolSetting(
+			"index.preanalyzed.parallel_decode", false, Property.IndexScope, Property.Dynamic);
+
+	/**
+	 * The name of the fixed thread pool decoding the values, sized by
+	 * <tt>thread_pool.preanalyzed_decode.size</tt> and
+	 * <tt>thread_pool.preanalyzed_decode.queue_size</tt>.
+	 */
+	public static final String EXECUTOR = "preanalyzed_decode";
+
+	/** Values are never decoded ahead. */
+	public static final PreAnalyzedPredecoder DISABLED = new PreAnalyzedPredecoder();
+
+	private static final Releasable NOOP = () -> {
+	};
+
+	private final ConcurrentMap<Index, IndexService> indices = new ConcurrentHashMap<>();
+	/** The decodings of the pending documents by index name and id. */
+	private final ConcurrentMap<Tuple<String, String>, DocumentDecoding> documents = new ConcurrentHashMap<>();
+	private volatile ExecutorService executor;
+
+	/**
+	 * @return The builder of the {@link #EXECUTOR} thread pool with a thread
+	 *         per processor.
+	 */
+	public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+		return new FixedExecutorBuilder(settings, EXECUTOR, EsExecutors.numberOfProcessors(settings), 1000,
+				"thread_pool." + EXECUTOR);
+	}
+
+	/**
+	 * Enables decoding ahead on the given executor.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return The executor of the {@link #EXECUTOR} thread pool, which also
+	 *         runs the helpers of {@link PreAnalyzedTokenPipeline}, or
+	 *         <tt>null</tt> if there is none.
+	 */
+	ExecutorService executor() {
+		return executor;
+	}
+
+	@Override
+	public void afterIndexCreated(IndexService indexService) {
+		indices.put(indexService.index(), indexService);
+	}
+
+	@Override
+	public void beforeIndexRemoved(IndexService indexService, IndexRemovalReason reason) {
+		indices.remove(indexService.index(), indexService);
+	}
+
+	/**
+	 * Starts decoding the preanalyzed values of the indexed documents of
+	 * <tt>request</tt> if its index has {@link #PARALLEL_DECODE_SETTING}
+	 * enabled and the primary of its shard is allocated on this node.
+	 *
+	 * @return Discards the decoded values that have not been taken by the
+	 *         mapper. Must be released when the request has been executed.
+	 */
+	public Releasable predecode(BulkShardRequest request) {
+		ExecutorService executor = this.executor;
+		IndexService indexService = indices.get(request.shardId().getIndex());
+		if (executor == null || indexService == null
+				|| !indexService.getIndexSettings().getValue(PARALLEL_DECODE_SETTING))
+			return NOOP;
+		IndexShard shard = indexService.getShardOrNull(request.shardId().id());
+		if (shard == null || !shard.routingEntry().primary())
+			return NOOP;
+		DocumentMapper documentMapper = indexService.mapperService().documentMapper();
+		if (documentMapper == null)
+			return NOOP;
+		List<PreAnalyzedMapper> mappers = new ArrayList<>();
+		for (Mapper mapper : documentMapper.mappers()) {
+			if (mapper instanceof PreAnalyzedMapper)
+				mappers.add((PreAnalyzedMapper) mapper);
+		}
+		if (mappers.isEmpty())
+			return NOOP;
+
+		List<Tuple<Tuple<String, String>, DocumentDecoding>> submitted = new ArrayList<>();
+		for (BulkItemRequest item : request.items()) {
+			DocWriteRequest<?> itemRequest = item.request();
+			if (!(itemRequest instanceof IndexRequest) || itemRequest.id() == null)
+				continue;
+			Tuple<String, String> key = new Tuple<>(request.shardId().getIndexName(), itemRequest.id());
+			DocumentDecoding decoding = new DocumentDecoding((IndexRequest) itemRequest, mappers);
+			// a document indexed twice by the same request is decoded by the
+			// mapper the second time
+			if (documents.putIfAbsent(key, decoding) != null)
+				continue;
+			try {
+				executor.execute(decoding);
+			} catch (RejectedExecutionException e) {
+				documents.remove(key, decoding);
+				break;
+			}
+			submitted.add(new Tuple<>(key, decoding));
+		}
+		return () -> {
+			for (Tuple<Tuple<String, String>, DocumentDecoding> document : submitted) {
+				document.v2().cancel(false);
+				documents.remove(document.v1(), document.v2());
+			}
+		};
+	}
+
+	/**
+	 * Takes the decoded value of a field of the parsed document.
+	 *
+	 * @return The decoded value or <tt>null</tt> if the value has not been
+	 *         decoded ahead and must be decoded by the mapper.
+	 */
+	Decoded take(SourceToParse source, PreAnalyzedMapper mapper, String preAnalyzedJson) {
+		if (documents.isEmpty())
+			return null;
+		DocumentDecoding decoding = documents.get(new Tuple<>(source.index(), source.id()));
+		// a document that is still waiting in the queue is decoded right
+		// here, there is no point in waiting for it
+		if (decoding == null || decoding.cancel(false))
+			return null;
+		try {
+			String field = mapper.fieldType().name();
+			Decoded decoded = decoding.get().remove(new Tuple<>(field, decoding.nextValueIndex(field)));
+			if (decoded == null || decoded.mapper != mapper || !decoded.isValueOf(preAnalyzedJson))
+				return null;
+			PreAnalyzedIndexingStats.addPredecodedValue();
+			return decoded;
+		} catch (ExecutionException | CancellationException e) {
+			// e.g. a malformed source, which is reported by the mapping
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * A preanalyzed value decoded by the mapper of its field. Instead of the
+	 * JSON, whose copy would be kept alive beside the source until the value
+	 * is taken, only its length and hash are kept to check that the mapper
+	 * takes the value it parses.
+	 */
+	static final class Decoded {
+		private final PreAnalyzedMapper mapper;
+		private final int jsonLength;
+		private final int jsonHash;
+		private final Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> value;
+		private final MapperParsingException failure;
+
+		private Decoded(PreAnalyzedMapper mapper, String json,
+				Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> value, MapperParsingException failure) {
+			this.mapper = mapper;
+			this.jsonLength = json.length();
+			this.jsonHash = json.hashCode();
+			this.value = value;
+			this.failure = failure;
+		}
+
+		private boolean isValueOf(String json) {
+			return json.length() == jsonLength && json.hashCode() == jsonHash;
+		}
+
+		/**
+		 * @return The stored value and the tokens of the value.
+		 * @throws MapperParsingException
+		 *             If the value could not be decoded.
+		 */
+		Tuple<PreAnalyzedStoredValue, PreAnalyzedTokenStream> get() {
+			if (failure != null)
+				throw failure;
+			return value;
+		}
+	}
+
+	/**
+	 * Decodes the preanalyzed values of a document, keyed by field name and
+	 * the index of the value among the values of the field, in the order of
+	 * the source.
+	 */
+	private static final class DocumentDecoding extends FutureTask<Map<Tuple<String, Integer>, Decoded>> {
+
+		/** The number of values taken by the mapper, by field name. */
+		private final ConcurrentMap<String, AtomicInteger> takenValues = new ConcurrentHashMap<>();
+
+		DocumentDecoding(IndexRequest request, List<PreAnalyzedMapper> mappers) {
+			super(() -> decode(request, mappers));
+		}
+
+		/**
+		 * @return The index of the value of <tt>field</tt> the mapper parses
+		 *         next.
+		 */
+		private int nextValueIndex(String field) {
+			return takenValues.computeIfAbsent(field, k -> new AtomicInteger()).getAndIncrement();
+		}
+
+		private static Map<Tuple<String, Integer>, Decoded> decode(IndexRequest request,
+				List<PreAnalyzedMapper> mappers) {
+			Map<String, Object> source = XContentHelper.convertToMap(request.source(), false, request.getContentType())
+					.v2();
+			Map<Tuple<String, Integer>, Decoded> decoded = new ConcurrentHashMap<>();
+			for (PreAnalyzedMapper mapper : mappers) {
+				String field = mapper.fieldType().name();
+				int valueIndex = 0;
+				for (Object value : XContentMapValues.extractRawValues(field, source)) {
+					// the mapper takes every value that is not null
+					if (value == null)
+						continue;
+					Tuple<String, Integer> key = new Tuple<>(field, valueIndex++);
+					if (!(value instanceof String))
+						continue;
+					String json = (String) value;
+					try {
+						decoded.put(key, new Decoded(mapper, json, mapper.parsePreAnalyzedFieldContents(json), null));
+					} catch (MapperParsingException e) {
+						decoded.put(key, new Decoded(mapper, json, null, e));
+					}
+				}
+			}
+			return decoded;
+		}
+	}
+}
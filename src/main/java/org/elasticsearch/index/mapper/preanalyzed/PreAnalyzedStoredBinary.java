@@ -0,0 +1,237 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * <p>
+ * Decodes the Base64 <tt>bin</tt> values of preanalyzed fields into the
+ * bytes to store and restores them at fetch time.
+ * </p>
+ * <p>
+ * The Base64 characters are decoded right from the buffer of the JSON parser
+ * into a buffer that is reused by the decoding thread, so the only array
+ * allocated per value is the stored one. With the
+ * <tt>compress_binary_threshold</tt> mapping option, each stored value starts
+ * with a header byte: {@link #RAW} followed by the bytes, or, for values of at
+ * least the threshold that shrink, {@link #LZ4} followed by the original
+ * length as a VInt and the bytes compressed with Lucene's
+ * {@link CompressionMode#FAST}.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+final class PreAnalyzedStoredBinary {
+
+	/** Header of a stored value that is not compressed. */
+	static final byte RAW = 0;
+	/** Header of a stored value compressed with LZ4. */
+	static final byte LZ4 = 1;
+
+	/** <tt>compress_binary_threshold</tt> is not set. */
+	static final long NO_COMPRESSION = -1;
+
+	private static final byte[] BASE64 = new byte[128];
+
+	static {
+		Arrays.fill(BASE64, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++)
+			BASE64[alphabet.charAt(i)] = (byte) i;
+	}
+
+	/**
+	 * The largest buffer kept by a thread. Larger values get buffers that are
+	 * released once the value is encoded, so a single huge value does not pin
+	 * its size on every write thread.
+	 */
+	static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The decoded and compressed bytes of the last value of each thread, up
+	 * to {@link #MAX_RETAINED_BUFFER_SIZE}.
+	 */
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	private static final class Buffers {
+		private byte[] decoded = BytesRef.EMPTY_BYTES;
+		private GrowableByteArrayDataOutput compressed = new GrowableByteArrayDataOutput(1024);
+		private final Compressor compressor = CompressionMode.FAST.newCompressor();
+
+		/**
+		 * Drops the buffers that have grown beyond
+		 * {@link #MAX_RETAINED_BUFFER_SIZE}.
+		 */
+		private void release() {
+			if (decoded.length > MAX_RETAINED_BUFFER_SIZE)
+				decoded = BytesRef.EMPTY_BYTES;
+			if (compressed.getBytes().length > MAX_RETAINED_BUFFER_SIZE)
+				compressed = new GrowableByteArrayDataOutput(1024);
+		}
+	}
+
+	/**
+	 * @return The size of the buffers the calling thread keeps, for testing.
+	 */
+	static long retainedBufferSize() {
+		Buffers buffers = BUFFERS.get();
+		return buffers.decoded.length + buffers.compressed.getBytes().length;
+	}
+
+	private PreAnalyzedStoredBinary() {
+	}
+
+	/**
+	 * Decodes a Base64 <tt>bin</tt> value into the bytes to store.
+	 *
+	 * @param chars
+	 *            The characters of the value, e.g. the text buffer of the
+	 *            parser.
+	 * @param compressThreshold
+	 *            The <tt>compress_binary_threshold</tt> of the field or
+	 *            {@link #NO_COMPRESSION}.
+	 * @return The stored value, with a header if
+	 *         <tt>compressThreshold</tt> is set.
+	 * @throws IllegalArgumentException
+	 *             If the value is no valid Base64.
+	 */
+	static BytesRef encode(char[] chars, int offset, int length, long compressThreshold) {
+		Buffers buffers = BUFFERS.get();
+		try {
+			return encode(chars, offset, length, compressThreshold, buffers);
+		} finally {
+			buffers.release();
+		}
+	}
+
+	private static BytesRef encode(char[] chars, int offset, int length, long compressThreshold, Buffers buffers) {
+		buffers.decoded = ArrayUtil.grow(buffers.decoded, length / 4 * 3 + 3);
+		int decodedLength = decodeBase64(chars, offset, length, buffers.decoded);
+		if (compressThreshold == NO_COMPRESSION)
+			return new BytesRef(Arrays.copyOf(buffers.decoded, decodedLength));
+
+		if (decodedLength >= compressThreshold) {
+			GrowableByteArrayDataOutput out = buffers.compressed;
+			out.reset();
+			try {
+				out.writeByte(LZ4);
+				out.writeVInt(decodedLength);
+				buffers.compressor.compress(buffers.decoded, 0, decodedLength, out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (out.getPosition() < decodedLength + 1) {
+				PreAnalyzedIndexingStats.addCompressedBinaryValue();
+				return new BytesRef(Arrays.copyOf(out.getBytes(), out.getPosition()));
+			}
+		}
+		byte[] stored = new byte[decodedLength + 1];
+		stored[0] = RAW;
+		System.arraycopy(buffers.decoded, 0, stored, 1, decodedLength);
+		return new BytesRef(stored);
+	}
+
+	/**
+	 * The inverse of {@link #encode(char[], int, int, long)}.
+	 *
+	 * @param stored
+	 *            A stored value of a field with the given
+	 *            <tt>compress_binary_threshold</tt>.
+	 * @return The original bytes of the <tt>bin</tt> value.
+	 */
+	static BytesRef decode(BytesRef stored, long compressThreshold) {
+		if (compressThreshold == NO_COMPRESSION || stored.length == 0)
+			return stored;
+		if (stored.bytes[stored.offset] == RAW)
+			return new BytesRef(stored.bytes, stored.offset + 1, stored.length - 1);
+		if (stored.bytes[stored.offset] != LZ4)
+			throw new IllegalStateException("Unknown header [" + stored.bytes[stored.offset] + "] of stored binary value");
+		ByteArrayDataInput in = new ByteArrayDataInput(stored.bytes, stored.offset + 1, stored.length - 1);
+		int originalLength = in.readVInt();
+		BytesRef original = new BytesRef();
+		try {
+			CompressionMode.FAST.newDecompressor().decompress(in, originalLength, 0, originalLength, original);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return original;
+	}
+
+	/**
+	 * Decodes Base64 with or without padding and ignoring whitespace, like
+	 * the JSON parser does.
+	 *
+	 * @return The number of decoded bytes.
+	 */
+	private static int decodeBase64(char[] chars, int offset, int length, byte[] decoded) {
+		int decodedLength = 0;
+		int quantum = 0;
+		int sextets = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			char c = chars[i];
+			if (c <= ' ')
+				continue;
+			if (c == '=') {
+				// only padding and whitespace may follow
+				for (int j = i + 1; j < end; j++) {
+					if (chars[j] != '=' && chars[j] > ' ')
+						throw new IllegalArgumentException("Illegal character after Base64 padding at index " + j);
+				}
+				break;
+			}
+			int sextet = c < 128 ? BASE64[c] : -1;
+			if (sextet < 0)
+				throw new IllegalArgumentException("Illegal Base64 character [" + c + "] at index " + (i - offset));
+			quantum = quantum << 6 | sextet;
+			if (++sextets == 4) {
+				decoded[decodedLength++] = (byte) (quantum >> 16);
+				decoded[decodedLength++] = (byte) (quantum >> 8);
+				decoded[decodedLength++] = (byte) quantum;
+				quantum = 0;
+				sextets = 0;
+			}
+		}
+		switch (sextets) {
+		case 0:
+			break;
+		case 2:
+			decoded[decodedLength++] = (byte) (quantum >> 4);
+			break;
+		case 3:
+			decoded[decodedLength++] = (byte) (quantum >> 10);
+			decoded[decodedLength++] = (byte) (quantum >> 2);
+			break;
+		default:
+			throw new IllegalArgumentException("Truncated Base64 value");
+		}
+		return decodedLength;
+	}
+}
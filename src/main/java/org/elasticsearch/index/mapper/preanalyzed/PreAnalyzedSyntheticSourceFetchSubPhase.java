@@ -0,0 +1,195 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.lookup.SourceLookup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <p>
+ * Restores the values of preanalyzed fields with <tt>synthetic_source</tt>
+ * into the <tt>_source</tt> of search hits.
+ * </p>
+ * <p>
+ * Such fields are meant to be excluded from the <tt>_source</tt> via the
+ * <tt>_source.excludes</tt> mapping. Their values are then synthesized from
+ * the stored field value and the tokens stored in
+ * {@link PreAnalyzedBinaryFormat}. Values are only added where the source
+ * does not already contain the field and where the source filtering of the
+ * request would let them through. Nested hits and fields below arrays of
+ * objects are not supported and left untouched.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedSyntheticSourceFetchSubPhase implements FetchSubPhase {
+
+	private static final String MAPPERS_CACHE_KEY = "preanalyzed_synthetic_source_mappers";
+
+	@Override
+	public void hitExecute(SearchContext context, HitContext hitContext) throws IOException {
+		SearchHit hit = hitContext.hit();
+		if (context.sourceRequested() == false || hit.hasSource() == false || hit.getNestedIdentity() != null)
+			return;
+		List<PreAnalyzedMapper> mappers = syntheticSourceMappers(context, hitContext);
+		if (mappers.isEmpty())
+			return;
+
+		Tuple<XContentType, Map<String, Object>> source = null;
+		SyntheticSourceFieldsVisitor visitor = new SyntheticSourceFieldsVisitor(mappers);
+		hitContext.reader().document(hitContext.docId(), visitor);
+		for (PreAnalyzedMapper mapper : mappers) {
+			String name = mapper.fieldType().name();
+			List<Object> storedValues = visitor.values.getOrDefault(name, Collections.emptyList());
+			List<Object> tokenValues = visitor.values.getOrDefault(name + PreAnalyzedMapper.TOKENS_FIELD_SUFFIX,
+					Collections.emptyList());
+			// the stored values and tokens can only be reassembled if each
+			// value came with a "str" or "bin"
+			if (tokenValues.isEmpty() || storedValues.size() != tokenValues.size())
+				continue;
+			if (isIncluded(context, name) == false)
+				continue;
+			if (source == null)
+				source = SourceLookup.sourceAsMapAndType(hit.getSourceRef());
+
+			List<Object> values = new ArrayList<>(tokenValues.size());
+			for (int i = 0; i < tokenValues.size(); i++) {
+				byte[] tokenBytes = (byte[]) tokenValues.get(i);
+				PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+				PreAnalyzedBinaryFormat.read(new ByteArrayDataInput(tokenBytes), tokenBytes.length, tokens);
+				Object storedValue = storedValues.get(i);
+				if (storedValue instanceof BytesRef)
+					storedValue = PreAnalyzedStoredBinary.decode((BytesRef) storedValue, mapper.compressBinaryThreshold());
+				values.add(PreAnalyzedMapper.toPreAnalyzedJson(storedValue, tokens));
+			}
+			putIfAbsent(source.v2(), name, values.size() == 1 ? values.get(0) : values);
+		}
+
+		if (source != null) {
+			try {
+				XContentBuilder builder = XContentFactory.contentBuilder(source.v1());
+				builder.map(source.v2());
+				hit.sourceRef(BytesReference.bytes(builder));
+			} catch (IOException e) {
+				throw new ElasticsearchException("Error synthesizing source of preanalyzed fields", e);
+			}
+		}
+	}
+
+	private List<PreAnalyzedMapper> syntheticSourceMappers(SearchContext context, HitContext hitContext) {
+		@SuppressWarnings("unchecked")
+		List<PreAnalyzedMapper> mappers = (List<PreAnalyzedMapper>) hitContext.cache().get(MAPPERS_CACHE_KEY);
+		if (mappers == null) {
+			mappers = new ArrayList<>();
+			DocumentMapper documentMapper = context.mapperService().documentMapper();
+			if (documentMapper != null) {
+				for (Mapper mapper : documentMapper.mappers()) {
+					if (mapper instanceof PreAnalyzedMapper && ((PreAnalyzedMapper) mapper).syntheticSource())
+						mappers.add((PreAnalyzedMapper) mapper);
+				}
+			}
+			hitContext.cache().put(MAPPERS_CACHE_KEY, mappers);
+		}
+		return mappers;
+	}
+
+	/**
+	 * Checks whether the source filtering of the request would keep the field
+	 * with the given full path.
+	 */
+	private boolean isIncluded(SearchContext context, String fullPath) {
+		if (context.fetchSourceContext().includes().length == 0 && context.fetchSourceContext().excludes().length == 0)
+			return true;
+		Map<String, Object> probe = new HashMap<>();
+		putIfAbsent(probe, fullPath, "");
+		return context.fetchSourceContext().getFilter().apply(probe).isEmpty() == false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putIfAbsent(Map<String, Object> source, String fullPath, Object value) {
+		String[] path = fullPath.split("\\.");
+		Map<String, Object> current = source;
+		for (int i = 0; i < path.length - 1; i++) {
+			Object child = current.get(path[i]);
+			if (child == null) {
+				child = new LinkedHashMap<String, Object>();
+				current.put(path[i], child);
+			} else if (child instanceof Map == false) {
+				// arrays of objects cannot be restored because the association
+				// of values to objects is lost
+				return;
+			}
+			current = (Map<String, Object>) child;
+		}
+		current.putIfAbsent(path[path.length - 1], value);
+	}
+
+	private static class SyntheticSourceFieldsVisitor extends StoredFieldVisitor {
+		private final Set<String> fieldNames = new HashSet<>();
+		private final Map<String, List<Object>> values = new HashMap<>();
+
+		SyntheticSourceFieldsVisitor(List<PreAnalyzedMapper> mappers) {
+			for (PreAnalyzedMapper mapper : mappers) {
+				fieldNames.add(mapper.fieldType().name());
+				fieldNames.add(mapper.fieldType().name() + PreAnalyzedMapper.TOKENS_FIELD_SUFFIX);
+			}
+		}
+
+		@Override
+		public Status needsField(FieldInfo fieldInfo) {
+			return fieldNames.contains(fieldInfo.name) ? Status.YES : Status.NO;
+		}
+
+		@Override
+		public void binaryField(FieldInfo fieldInfo, byte[] value) {
+			if (fieldInfo.name.endsWith(PreAnalyzedMapper.TOKENS_FIELD_SUFFIX))
+				add(fieldInfo.name, value);
+			else
+				add(fieldInfo.name, new BytesRef(value));
+		}
+
+		@Override
+		public void stringField(FieldInfo fieldInfo, byte[] value) {
+			add(fieldInfo.name, new String(value, StandardCharsets.UTF_8));
+		}
+
+		private void add(String field, Object value) {
+			values.computeIfAbsent(field, k -> new ArrayList<>()).add(value);
+		}
+	}
+}
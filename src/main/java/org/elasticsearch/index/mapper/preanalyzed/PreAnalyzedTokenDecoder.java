@@ -0,0 +1,469 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.index.mapper.MapperParsingException;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Decodes the <tt>tokens</tt> array of preanalyzed JSON into
+ * {@link PreAnalyzedTokens}, either all at once or chunk by chunk into a
+ * {@link PreAnalyzedTokenPipeline}. Each token is validated while it is
+ * decoded so that it is never rejected by the indexing chain, as configured
+ * by the {@link Settings}. Tokens read from token files are validated the
+ * same way.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+final class PreAnalyzedTokenDecoder {
+	/**
+	 * Returned by {@link #parseFlag()} for flags that cannot be decoded.
+	 * It is no valid int value.
+	 */
+	static final long INVALID_FLAGS = Long.MIN_VALUE;
+	private static final String MISSING_TERM = "no term is specified";
+	private static final String INVALID_FLAGS_REASON = "the flags are neither an integer nor in the flag_dictionary";
+	private static final String UNKNOWN_TYPE_CODE = "the type code is not in the type_dictionary";
+	private static final String INVALID_OFFSETS = "the start offset is negative or greater than the end offset";
+	private static final String BACKWARDS_OFFSETS = "the start offset is less than that of the previous token";
+	private static final String NEGATIVE_POSITION_INCREMENT = "the position increment is negative";
+	private static final String INVALID_POSITION_LENGTH = "the position length is less than 1";
+	private static final String INVALID_BOUNDARY = "the boundary is neither sentence nor section";
+
+	/**
+	 * How tokens are decoded. Settings are immutable, the <tt>with</tt>
+	 * methods return changed copies.
+	 */
+	static final class Settings {
+		/** No dictionaries, malformed tokens fail and the order is not checked. */
+		static final Settings DEFAULT = new Settings(null, null, false, false, false);
+
+		private final PreAnalyzedDictionary typeDictionary;
+		private final PreAnalyzedDictionary flagDictionary;
+		private final boolean ignoreMalformed;
+		private final boolean checkOffsetOrder;
+		private final boolean repairOrder;
+
+		private Settings(PreAnalyzedDictionary typeDictionary, PreAnalyzedDictionary flagDictionary,
+				boolean ignoreMalformed, boolean checkOffsetOrder, boolean repairOrder) {
+			this.typeDictionary = typeDictionary;
+			this.flagDictionary = flagDictionary;
+			this.ignoreMalformed = ignoreMalformed;
+			this.checkOffsetOrder = checkOffsetOrder;
+			this.repairOrder = repairOrder;
+		}
+
+		/**
+		 * @param typeDictionary
+		 *            The <tt>type_dictionary</tt> of the mapping or
+		 *            <tt>null</tt>.
+		 * @param flagDictionary
+		 *            The <tt>flag_dictionary</tt> of the mapping or
+		 *            <tt>null</tt>.
+		 */
+		Settings withDictionaries(PreAnalyzedDictionary typeDictionary, PreAnalyzedDictionary flagDictionary) {
+			return new Settings(typeDictionary, flagDictionary, ignoreMalformed, checkOffsetOrder, repairOrder);
+		}
+
+		/**
+		 * @param ignoreMalformed
+		 *            Whether malformed tokens are skipped and counted instead
+		 *            of failing with a {@link MapperParsingException}.
+		 */
+		Settings withIgnoreMalformed(boolean ignoreMalformed) {
+			return new Settings(typeDictionary, flagDictionary, ignoreMalformed, checkOffsetOrder, repairOrder);
+		}
+
+		/**
+		 * @param checkOffsetOrder
+		 *            Whether start offsets going backwards are malformed, as
+		 *            they are when offsets are indexed.
+		 */
+		Settings withCheckOffsetOrder(boolean checkOffsetOrder) {
+			return new Settings(typeDictionary, flagDictionary, ignoreMalformed, checkOffsetOrder, repairOrder);
+		}
+
+		/**
+		 * @param repairOrder
+		 *            Whether negative position increments and backwards start
+		 *            offsets are accepted because the caller brings the
+		 *            tokens into order by
+		 *            {@link PreAnalyzedTokens#repairOrder(int)} before they
+		 *            are emitted.
+		 */
+		Settings withRepairOrder(boolean repairOrder) {
+			return new Settings(typeDictionary, flagDictionary, ignoreMalformed, checkOffsetOrder, repairOrder);
+		}
+
+		/**
+		 * @see #withRepairOrder(boolean)
+		 */
+		boolean repairOrder() {
+			return repairOrder;
+		}
+	}
+
+	private final XContentParser parser;
+	private final PreAnalyzedDictionary typeDictionary;
+	private final PreAnalyzedDictionary flagDictionary;
+	private final boolean ignoreMalformed;
+	private final boolean checkOffsetOrder;
+	private final boolean repairOrder;
+	/** The pipeline the chunks are published to or <tt>null</tt>. */
+	private final PreAnalyzedTokenPipeline pipeline;
+	private PreAnalyzedTokens tokens;
+	private int malformedTokens;
+	private int lastStart;
+	// the position increments and boundaries of skipped tokens are added to
+	// the next token so that the positions and sentences of the following
+	// tokens are kept
+	private int skippedPosInc;
+	private int skippedBoundary = PreAnalyzedTokens.NO_BOUNDARY;
+
+	private PreAnalyzedTokenDecoder(XContentParser parser, Settings settings, PreAnalyzedTokens tokens,
+			PreAnalyzedTokenPipeline pipeline) {
+		this.parser = parser;
+		this.typeDictionary = settings.typeDictionary;
+		this.flagDictionary = settings.flagDictionary;
+		this.ignoreMalformed = settings.ignoreMalformed;
+		this.checkOffsetOrder = settings.checkOffsetOrder && !settings.repairOrder;
+		this.repairOrder = settings.repairOrder;
+		this.tokens = tokens;
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Decodes the tokens array the parser points to and appends the tokens to
+	 * <tt>tokens</tt>.
+	 *
+	 * @return The number of malformed tokens that were skipped because
+	 *         malformed tokens are ignored.
+	 */
+	static int decode(XContentParser parser, Settings settings, PreAnalyzedTokens tokens) throws IOException {
+		PreAnalyzedTokenDecoder decoder = new PreAnalyzedTokenDecoder(parser, settings, tokens, null);
+		decoder.decode();
+		return decoder.malformedTokens;
+	}
+
+	/**
+	 * Decodes the tokens array the parser points to on the helper thread of
+	 * <tt>pipeline</tt>, publishing each chunk of
+	 * {@link PreAnalyzedTokenPipeline#CHUNK_SIZE} tokens as soon as it is
+	 * full.
+	 *
+	 * @return The number of malformed tokens that were skipped because
+	 *         malformed tokens are ignored.
+	 */
+	static int decode(XContentParser parser, Settings settings, PreAnalyzedTokenPipeline pipeline)
+			throws IOException {
+		PreAnalyzedTokenDecoder decoder = new PreAnalyzedTokenDecoder(parser, settings, pipeline.producerChunk(),
+				pipeline);
+		decoder.decode();
+		return decoder.malformedTokens;
+	}
+
+	/**
+	 * Validates tokens that have been decoded before, e.g. read from a
+	 * {@link PreAnalyzedTokenFiles token file}, and appends the valid tokens
+	 * to <tt>tokens</tt>.
+	 *
+	 * @return The number of malformed tokens that were skipped because
+	 *         malformed tokens are ignored.
+	 */
+	static int decode(PreAnalyzedTokens source, Settings settings, PreAnalyzedTokens tokens) {
+		PreAnalyzedTokenDecoder decoder = new PreAnalyzedTokenDecoder(null, settings, tokens, null);
+		for (int i = 0; i < source.size(); i++) {
+			decoder.add(source.termBuffer(), source.termStart(i), source.termLength(i), true, source.startOffset(i),
+					source.endOffset(i), source.positionIncrement(i), source.positionLength(i), source.flags(i),
+					source.boundary(i), source.type(i), source.payload(i), null);
+		}
+		return decoder.malformedTokens;
+	}
+
+	private void decode() throws IOException {
+		if (parser.currentToken() != XContentParser.Token.START_ARRAY)
+			throw new IllegalStateException(
+					"The parser is expected to point to the beginning of the array of preanalyzed tokens but the current token type was "
+							+ parser.currentToken());
+
+		Token currentToken;
+		char[] termBuffer = new char[16];
+		while ((currentToken = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+			if (currentToken != XContentParser.Token.START_OBJECT) {
+				if (currentToken == null || !ignoreMalformed)
+					throw new MapperParsingException("Preanalyzed tokens are expected to be JSON objects but found "
+							+ currentToken);
+				parser.skipChildren();
+				++malformedTokens;
+				continue;
+			}
+			boolean termFound = false;
+			int termLength = 0;
+			int start = -1;
+			int end = -1;
+			int posInc = 1;
+			int posLength = 1;
+			int flags = 0;
+			int boundary = PreAnalyzedTokens.NO_BOUNDARY;
+			String type = null;
+			BytesRef payload = null;
+			String currentFieldName = null;
+			// a constant describing the first problem of the token; no
+			// message is built and no exception is thrown per skipped token
+			String malformed = null;
+			while ((currentToken = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+				if (currentToken == XContentParser.Token.FIELD_NAME) {
+					currentFieldName = parser.currentName();
+				} else if (currentToken == XContentParser.Token.VALUE_STRING) {
+					if (PreAnalyzedFormat.TERM_KEY.equals(currentFieldName)) {
+						termLength = parser.textLength();
+						termBuffer = ArrayUtil.grow(termBuffer, termLength);
+						System.arraycopy(parser.textCharacters(), parser.textOffset(), termBuffer, 0, termLength);
+						termFound = true;
+					} else if (PreAnalyzedFormat.PAYLOAD_KEY.equals(currentFieldName)) {
+						// since ES 1.x - at least 1.3 - we have to make a
+						// copy of the incoming BytesRef because the
+						// byte[] referenced by the input is longer than the
+						// actual information, just containing
+						// zeros, which can cause problems with Base64
+						// encoding. All we do is trim the byte array to
+						// its actual length.
+//							BytesRef inputBytes = parser.utf8Bytes();
+//							byte[] byteArray = new byte[inputBytes.length];
+//							System.arraycopy(inputBytes.bytes, 0, byteArray, 0, inputBytes.length);
+						byte[] byteArray = parser.charBuffer().toString().getBytes("UTF-8");
+						payload = new BytesRef(byteArray);
+					} else if (PreAnalyzedFormat.FLAGS_KEY.equals(currentFieldName)) {
+						long flag = parseFlag();
+						if (flag == INVALID_FLAGS)
+							malformed = INVALID_FLAGS_REASON;
+						else
+							flags |= (int) flag;
+					} else if (PreAnalyzedFormat.TYPE_KEY.equals(currentFieldName)) {
+						// known types are taken from the dictionary
+						// without creating a new String
+						if (typeDictionary != null)
+							type = typeDictionary.value(parser.textCharacters(), parser.textOffset(),
+									parser.textLength());
+						if (type == null)
+							type = parser.text();
+					} else if (PreAnalyzedFormat.BOUNDARY_KEY.equals(currentFieldName)) {
+						String value = parser.text();
+						if (PreAnalyzedFormat.SENTENCE_BOUNDARY.equals(value))
+							boundary = PreAnalyzedTokens.SENTENCE_BOUNDARY;
+						else if (PreAnalyzedFormat.SECTION_BOUNDARY.equals(value))
+							boundary = PreAnalyzedTokens.SECTION_BOUNDARY;
+						else
+							malformed = INVALID_BOUNDARY;
+					}
+				} else if (currentToken == XContentParser.Token.VALUE_NUMBER) {
+					if (PreAnalyzedFormat.START_OFFSET_KEY.equals(currentFieldName)) {
+						start = parser.intValue();
+					} else if (PreAnalyzedFormat.END_OFFSET_KEY.equals(currentFieldName)) {
+						end = parser.intValue();
+					} else if (PreAnalyzedFormat.POSITION_INCREMENT_KEY.equals(currentFieldName)) {
+						posInc = parser.intValue();
+					} else if (PreAnalyzedFormat.POSITION_LENGTH_KEY.equals(currentFieldName)) {
+						posLength = parser.intValue();
+					} else if (PreAnalyzedFormat.TYPE_KEY.equals(currentFieldName) && typeDictionary != null) {
+						int code = parser.intValue();
+						type = typeDictionary.value(code);
+						if (type == null) {
+							if (!ignoreMalformed)
+								throw new MapperParsingException("Unknown token type code [" + code
+										+ "], the type_dictionary has " + typeDictionary.size() + " entries");
+							malformed = UNKNOWN_TYPE_CODE;
+						}
+					} else if (PreAnalyzedFormat.FLAGS_KEY.equals(currentFieldName) && flagDictionary != null) {
+						long flag = parseFlag();
+						if (flag == INVALID_FLAGS)
+							malformed = INVALID_FLAGS_REASON;
+						else
+							flags |= (int) flag;
+					}
+				} else if (currentToken == XContentParser.Token.START_ARRAY && PreAnalyzedFormat.FLAGS_KEY.equals(currentFieldName)
+						&& flagDictionary != null) {
+					while ((currentToken = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+						long flag = parseFlag();
+						if (flag == INVALID_FLAGS)
+							malformed = INVALID_FLAGS_REASON;
+						else
+							flags |= (int) flag;
+					}
+				} else if (currentToken == XContentParser.Token.START_ARRAY
+						|| currentToken == XContentParser.Token.START_OBJECT) {
+					parser.skipChildren();
+				}
+			}
+
+			if (start == -1)
+				start = 0;
+			if (end == -1)
+				end = 0;
+			add(termBuffer, 0, termLength, termFound, start, end, posInc, posLength, flags, boundary, type, payload,
+					malformed);
+		}
+	}
+
+	/**
+	 * Validates a token and appends it to the tokens.
+	 *
+	 * @param malformed
+	 *            The problem of the token that has been detected while it
+	 *            was decoded or <tt>null</tt>.
+	 */
+	private void add(char[] termBuffer, int termStart, int termLength, boolean termFound, int start, int end,
+			int posInc, int posLength, int flags, int boundary, String type, BytesRef payload, String malformed) {
+		if (malformed != null) {
+			// already detected while parsing
+		} else if (!termFound) {
+			malformed = MISSING_TERM;
+		} else if (start < 0 || end < start) {
+			malformed = INVALID_OFFSETS;
+		} else if (checkOffsetOrder && start < lastStart) {
+			malformed = BACKWARDS_OFFSETS;
+		} else if (posInc < 0 && !repairOrder) {
+			malformed = NEGATIVE_POSITION_INCREMENT;
+		} else if (posLength < 1) {
+			malformed = INVALID_POSITION_LENGTH;
+		} else if (boundary < PreAnalyzedTokens.NO_BOUNDARY || boundary > PreAnalyzedTokens.SECTION_BOUNDARY) {
+			malformed = INVALID_BOUNDARY;
+		}
+		if (malformed != null) {
+			if (!ignoreMalformed)
+				throw new MapperParsingException("Malformed preanalyzed token "
+						+ (termFound ? "[" + new String(termBuffer, termStart, termLength) + "] " : "")
+						+ "with start offset " + start + ", end offset " + end + " and position increment "
+						+ posInc + ": " + malformed);
+			++malformedTokens;
+			if (posInc > 0 || repairOrder)
+				skippedPosInc += posInc;
+			if (boundary <= PreAnalyzedTokens.SECTION_BOUNDARY)
+				skippedBoundary = Math.max(skippedBoundary, boundary);
+			return;
+		}
+		if (skippedPosInc != 0) {
+			posInc += skippedPosInc;
+			skippedPosInc = 0;
+		}
+		boundary = Math.max(boundary, skippedBoundary);
+		skippedBoundary = PreAnalyzedTokens.NO_BOUNDARY;
+		lastStart = start;
+		int index = tokens.add(termBuffer, termStart, termLength);
+		tokens.setOffsets(index, start, end);
+		tokens.setPositionIncrement(index, posInc);
+		tokens.setPositionLength(index, posLength);
+		tokens.setFlags(index, flags);
+		tokens.setBoundary(index, boundary);
+		tokens.setType(index, type);
+		tokens.setPayload(index, payload);
+		if (pipeline != null && tokens.size() == PreAnalyzedTokenPipeline.CHUNK_SIZE)
+			tokens = pipeline.publish();
+	}
+
+	/**
+	 * Parses the flags value the parser points to. With a
+	 * <tt>flag_dictionary</tt>, flag codes and names are resolved to their
+	 * flag bit. Other strings are decoded as the integer value of the
+	 * flags.
+	 * 
+	 * @return The flags or {@link #INVALID_FLAGS} if the value cannot be
+	 *         decoded and malformed tokens are ignored.
+	 */
+	private long parseFlag() throws IOException {
+		if (flagDictionary != null) {
+			if (parser.currentToken() == XContentParser.Token.VALUE_NUMBER) {
+				int code = parser.intValue();
+				if (code < 0 || code >= flagDictionary.size()) {
+					if (ignoreMalformed)
+						return INVALID_FLAGS;
+					throw new MapperParsingException("Unknown token flag code [" + code
+							+ "], the flag_dictionary has " + flagDictionary.size() + " entries");
+				}
+				return 1 << code;
+			}
+			int code = flagDictionary.code(parser.textCharacters(), parser.textOffset(), parser.textLength());
+			if (code >= 0)
+				return 1 << code;
+		}
+		long flags = decodeInt(parser.textCharacters(), parser.textOffset(), parser.textLength());
+		if (flags == INVALID_FLAGS && !ignoreMalformed) {
+			if (flagDictionary != null)
+				throw new MapperParsingException(
+						"Unknown token flag [" + parser.text() + "], it is neither in the flag_dictionary "
+								+ flagDictionary + " nor an integer");
+			throw new MapperParsingException("Token flags [" + parser.text() + "] are no integer");
+		}
+		return flags;
+	}
+
+	/**
+	 * Decodes an int like {@link Integer#decode(String)}, i.e. in decimal,
+	 * hex (<tt>0x</tt>, <tt>#</tt>) or octal (leading <tt>0</tt>)
+	 * notation, but without creating a String or a
+	 * {@link NumberFormatException}.
+	 * 
+	 * @return The value or {@link #INVALID_FLAGS}.
+	 */
+	static long decodeInt(char[] chars, int offset, int length) {
+		int pos = offset;
+		int end = offset + length;
+		if (pos == end)
+			return INVALID_FLAGS;
+		boolean negative = false;
+		if (chars[pos] == '-' || chars[pos] == '+') {
+			negative = chars[pos] == '-';
+			++pos;
+		}
+		int radix = 10;
+		if (end - pos > 1 && chars[pos] == '0' && (chars[pos + 1] == 'x' || chars[pos + 1] == 'X')) {
+			radix = 16;
+			pos += 2;
+		} else if (pos < end && chars[pos] == '#') {
+			radix = 16;
+			++pos;
+		} else if (end - pos > 1 && chars[pos] == '0') {
+			radix = 8;
+			++pos;
+		}
+		if (pos == end)
+			return INVALID_FLAGS;
+		long value = 0;
+		for (; pos < end; pos++) {
+			int digit = Character.digit(chars[pos], radix);
+			if (digit < 0)
+				return INVALID_FLAGS;
+			value = value * radix + digit;
+			if (value > (long) Integer.MAX_VALUE + 1)
+				return INVALID_FLAGS;
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+			return INVALID_FLAGS;
+		return value;
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MapperParsingException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Reads preanalyzed tokens in {@link PreAnalyzedBinaryFormat} from local
+ * files that are referenced by field values instead of sending the tokens
+ * themselves, e.g.
+ * </p>
+ *
+ * <pre>
+ * {"v":"1","str":"...","file":{"path":"corpus/part-0001.bin","offset":4096,"length":1532}}
+ * </pre>
+ * <p>
+ * Only files below the directories of the node setting
+ * {@link #ALLOWED_PATHS_SETTING} can be referenced, relative paths are
+ * resolved against these directories. Each file is memory-mapped once and the
+ * mapping is kept open across documents, so the tokens of a value are decoded
+ * right from the page cache. At most {@link #MAX_MAPPED_FILES_SETTING} files
+ * stay mapped; the least recently read file is unmapped as soon as no
+ * indexing thread reads from it anymore. Referenced files must not be
+ * modified or truncated while they are mapped; new data should be written to
+ * new files.
+ * </p>
+ * <p>
+ * The security policy of the plugin only grants to read the directory of the
+ * system property {@link #POLICY_PATH_PROPERTY}, which must contain the
+ * allowed directories, see {@link #checkPolicyPath(String)}. The files are
+ * accessed in privileged blocks after they have been resolved against the
+ * allowed directories.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedTokenFiles implements Closeable {
+
+	/**
+	 * The directories containing token files that may be referenced by
+	 * preanalyzed values. Referencing files is disabled if empty.
+	 */
+	public static final Setting<List<String>> ALLOWED_PATHS_SETTING = Setting.listSetting(
+			"preanalyzed.token_files.allowed_paths", Collections.emptyList(), Function.identity(), Property.NodeScope);
+
+	/**
+	 * The maximum number of token files that are kept memory-mapped.
+	 */
+	public static final Setting<Integer> MAX_MAPPED_FILES_SETTING = Setting.intSetting(
+			"preanalyzed.token_files.max_mapped_files", 256, 1, Property.NodeScope);
+
+	/**
+	 * The system property naming the directory the security policy of the
+	 * plugin grants read access to, set in <tt>jvm.options</tt>. Nothing is
+	 * granted without it.
+	 */
+	public static final String POLICY_PATH_PROPERTY = "es.preanalyzed.token_files.path";
+
+	/** Token files are disabled. */
+	public static final PreAnalyzedTokenFiles DISABLED = new PreAnalyzedTokenFiles(Collections.emptyList());
+
+	private final List<Path> allowedPaths;
+	private final int maxMappedFiles;
+	/** The mapped files in the order they have been read, guarded by this. */
+	private final LinkedHashMap<Path, MappedFile> mappedFiles = new LinkedHashMap<>(16, 0.75f, true);
+	private boolean closed;
+
+	public PreAnalyzedTokenFiles(List<String> allowedPaths) {
+		this(allowedPaths, MAX_MAPPED_FILES_SETTING.getDefault(null));
+	}
+
+	public PreAnalyzedTokenFiles(List<String> allowedPaths, int maxMappedFiles) {
+		List<Path> paths = new ArrayList<>(allowedPaths.size());
+		for (String path : allowedPaths)
+			paths.add(Paths.get(path).toAbsolutePath().normalize());
+		this.allowedPaths = Collections.unmodifiableList(paths);
+		this.maxMappedFiles = maxMappedFiles;
+	}
+
+	public List<Path> allowedPaths() {
+		return allowedPaths;
+	}
+
+	/**
+	 * Checks that the allowed directories are below <tt>policyPath</tt>, the
+	 * value of {@link #POLICY_PATH_PROPERTY}, so that the plugin may read them
+	 * under the security manager.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If an allowed directory is not below it.
+	 */
+	public void checkPolicyPath(String policyPath) {
+		Path grantedPath = policyPath != null ? Paths.get(policyPath).toAbsolutePath().normalize() : null;
+		for (Path allowedPath : allowedPaths) {
+			if (grantedPath == null || !allowedPath.startsWith(grantedPath))
+				throw new IllegalArgumentException("The directory [" + allowedPath + "] of ["
+						+ ALLOWED_PATHS_SETTING.getKey() + "] is not below the directory [" + policyPath
+						+ "] the plugin may read, which is set by the system property [" + POLICY_PATH_PROPERTY
+						+ "]");
+		}
+	}
+
+	/**
+	 * Parses the file reference object the parser points to, decodes the
+	 * referenced tokens and appends them to <tt>tokens</tt> after they have
+	 * been validated like the tokens of preanalyzed JSON.
+	 *
+	 * @return The number of malformed tokens that were skipped because
+	 *         malformed tokens are ignored.
+	 */
+	int read(XContentParser parser, PreAnalyzedTokenDecoder.Settings settings, PreAnalyzedTokens tokens)
+			throws IOException {
+		if (parser.currentToken() != XContentParser.Token.START_OBJECT)
+			throw new MapperParsingException("The token file reference is expected to be an object but was "
+					+ parser.currentToken());
+		String path = null;
+		long offset = 0;
+		long length = -1;
+		String currentFieldName = null;
+		XContentParser.Token currentToken;
+		while ((currentToken = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (currentToken == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (PreAnalyzedFormat.FILE_PATH_KEY.equals(currentFieldName)) {
+				path = parser.text();
+			} else if (PreAnalyzedFormat.FILE_OFFSET_KEY.equals(currentFieldName)) {
+				offset = parser.longValue();
+			} else if (PreAnalyzedFormat.FILE_LENGTH_KEY.equals(currentFieldName)) {
+				length = parser.longValue();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (path == null || length == -1)
+			throw new MapperParsingException("The token file reference requires [" + PreAnalyzedFormat.FILE_PATH_KEY
+					+ "] and [" + PreAnalyzedFormat.FILE_LENGTH_KEY + "]");
+		PreAnalyzedTokens fileTokens = new PreAnalyzedTokens();
+		read(path, offset, length, fileTokens);
+		return PreAnalyzedTokenDecoder.decode(fileTokens, settings, tokens);
+	}
+
+	/**
+	 * Decodes the tokens stored at <tt>offset</tt> of the given file and
+	 * appends them to <tt>tokens</tt>. The tokens are not validated.
+	 *
+	 * @param path
+	 *            A path relative to one of the allowed directories or an
+	 *            absolute path below one of them.
+	 * @throws MapperParsingException
+	 *             If the range is not within the file or does not hold
+	 *             tokens in {@link PreAnalyzedBinaryFormat}.
+	 */
+	public void read(String path, long offset, long length, PreAnalyzedTokens tokens) throws IOException {
+		Path file = resolve(path);
+		MappedFile mappedFile = acquire(file);
+		try {
+			if (offset < 0 || length < 0 || offset + length > mappedFile.input.length()) {
+				// the file may have grown since it has been mapped
+				MappedFile remapped = remap(file, mappedFile);
+				release(mappedFile);
+				mappedFile = remapped;
+				if (offset < 0 || length < 0 || offset + length > mappedFile.input.length())
+					throw new MapperParsingException("The range [" + offset + ", " + (offset + length)
+							+ ") is not within the token file [" + path + "] of length "
+							+ mappedFile.input.length());
+			}
+			// slices share the mapped buffers of the file and, unlike the file
+			// input itself, may be read by concurrent indexing threads
+			IndexInput slice = mappedFile.input.slice(path, offset, length);
+			try {
+				PreAnalyzedBinaryFormat.read(slice, length, tokens);
+			} catch (IOException e) {
+				throw new MapperParsingException("The range [" + offset + ", " + (offset + length)
+						+ ") of the token file [" + path + "] does not hold preanalyzed tokens", e);
+			} finally {
+				slice.close();
+			}
+		} finally {
+			release(mappedFile);
+		}
+	}
+
+	/**
+	 * Resolves <tt>path</tt> to a file below one of the allowed directories,
+	 * following symbolic links.
+	 */
+	Path resolve(String path) throws IOException {
+		if (allowedPaths.isEmpty())
+			throw new MapperParsingException("Token files are disabled, the directories that may contain them "
+					+ "must be set by the node setting [" + ALLOWED_PATHS_SETTING.getKey() + "]");
+		for (Path allowedPath : allowedPaths) {
+			Path file = allowedPath.resolve(path).normalize();
+			if (!file.startsWith(allowedPath))
+				continue;
+			Path realFile = doPrivileged(() -> {
+				if (!Files.isRegularFile(file))
+					return null;
+				Path real = file.toRealPath();
+				return real.startsWith(allowedPath.toRealPath()) ? real : null;
+			});
+			if (realFile != null)
+				return realFile;
+		}
+		throw new MapperParsingException("The token file [" + path
+				+ "] does not exist or is not below the allowed directories " + allowedPaths);
+	}
+
+	/**
+	 * @return The mapping of <tt>file</tt>, which must be released after it
+	 *         has been read.
+	 */
+	private synchronized MappedFile acquire(Path file) throws IOException {
+		if (closed)
+			throw new AlreadyClosedException("The token files have been closed");
+		MappedFile mappedFile = mappedFiles.get(file);
+		if (mappedFile == null) {
+			mappedFile = new MappedFile(map(file));
+			mappedFiles.put(file, mappedFile);
+			evict();
+		}
+		mappedFile.references++;
+		return mappedFile;
+	}
+
+	/**
+	 * @return A new mapping of <tt>file</tt> if it has grown since
+	 *         <tt>mappedFile</tt> has been mapped, which must be released
+	 *         after it has been read, like <tt>mappedFile</tt>.
+	 */
+	private synchronized MappedFile remap(Path file, MappedFile mappedFile) throws IOException {
+		MappedFile current = mappedFiles.get(file);
+		if (current == null || current == mappedFile) {
+			if (doPrivileged(() -> Files.size(file)) == mappedFile.input.length()) {
+				current = mappedFile;
+			} else {
+				// slices of the old mapping that are still in use stay valid
+				// since it is not closed before they have been released
+				current = new MappedFile(map(file));
+				if (mappedFiles.remove(file) != null)
+					retire(mappedFile);
+				mappedFiles.put(file, current);
+				evict();
+			}
+		}
+		current.references++;
+		return current;
+	}
+
+	private synchronized void release(MappedFile mappedFile) throws IOException {
+		if (--mappedFile.references == 0 && mappedFile.retired)
+			mappedFile.input.close();
+	}
+
+	/**
+	 * Unmaps the least recently read files above the maximum number of mapped
+	 * files, or retires them until they have been released.
+	 */
+	private void evict() throws IOException {
+		List<MappedFile> evicted = new ArrayList<>();
+		for (Iterator<MappedFile> it = mappedFiles.values().iterator(); mappedFiles.size() > maxMappedFiles;) {
+			evicted.add(it.next());
+			it.remove();
+		}
+		retire(evicted);
+	}
+
+	private void retire(MappedFile mappedFile) throws IOException {
+		retire(Collections.singletonList(mappedFile));
+	}
+
+	private void retire(List<MappedFile> retired) throws IOException {
+		List<IndexInput> toClose = new ArrayList<>(retired.size());
+		for (MappedFile mappedFile : retired) {
+			mappedFile.retired = true;
+			if (mappedFile.references == 0)
+				toClose.add(mappedFile.input);
+		}
+		IOUtils.close(toClose);
+	}
+
+	/**
+	 * @return The number of mapped files, not counting files that are only
+	 *         mapped until they have been released.
+	 */
+	synchronized int mappedFileCount() {
+		return mappedFiles.size();
+	}
+
+	private static IndexInput map(Path file) throws IOException {
+		return doPrivileged(() -> {
+			try (MMapDirectory directory = new MMapDirectory(file.getParent())) {
+				return directory.openInput(file.getFileName().toString(), IOContext.READ);
+			} catch (NoSuchFileException e) {
+				throw new MapperParsingException("The token file [" + file + "] does not exist");
+			}
+		});
+	}
+
+	/**
+	 * Accesses token files with the permissions of the plugin, independently
+	 * of the code that indexes the document.
+	 */
+	private static <T> T doPrivileged(PrivilegedExceptionAction<T> action) throws IOException {
+		SpecialPermission.check();
+		try {
+			return AccessController.doPrivileged(action);
+		} catch (PrivilegedActionException e) {
+			throw (IOException) e.getCause();
+		}
+	}
+
+	/**
+	 * Unmaps all mapped token files, files that are still being read once
+	 * they have been released.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		List<MappedFile> toRetire = new ArrayList<>(mappedFiles.values());
+		mappedFiles.clear();
+		retire(toRetire);
+	}
+
+	private static final class MappedFile {
+		private final IndexInput input;
+		/** The number of reads in progress, guarded by the token files. */
+		private int references;
+		/** Whether the file is not mapped anymore once it has been released. */
+		private boolean retired;
+
+		private MappedFile(IndexInput input) {
+			this.input = input;
+		}
+	}
+}
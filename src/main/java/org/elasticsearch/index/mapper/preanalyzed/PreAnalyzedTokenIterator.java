@@ -0,0 +1,297 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper.IndexTokensSettings;
+
+/**
+ * Emits {@link PreAnalyzedTokens} into the attributes of a token stream, one
+ * token per call of {@link #next()}. The tokens have been validated while
+ * they were decoded. Tokens that are not indexed leave their positions empty,
+ * and the positions of trailing tokens that are not indexed are reported by
+ * {@link #end()}, so they still count for the following values of the field.
+ * A token spanning several positions is emitted again, with the remaining
+ * position length, at each following position it covers, just like the
+ * flattened token graphs of Lucene's <tt>FlattenGraphFilter</tt>. Lucene does
+ * not index position lengths, so this keeps the positions the span and phrase
+ * queries Elasticsearch builds from query token graphs expect.
+ *
+ * @author faessler
+ *
+ */
+final class PreAnalyzedTokenIterator {
+	private final AttributeSource attributes;
+	private final CharTermAttribute termAtt;
+	private final OffsetAttribute offsetAtt;
+	private final PositionIncrementAttribute posIncrAtt;
+	private final PositionLengthAttribute posLenAtt;
+	private final PayloadAttribute payloadAtt;
+	private final TypeAttribute typeAtt;
+	private final FlagsAttribute flagsAtt;
+	private final BytesRef payloadScratch = new BytesRef();
+	private PreAnalyzedTokens tokens;
+	/** The pipeline the chunks following {@link #tokens} are read from. */
+	private PreAnalyzedTokenPipeline pipeline;
+	/** The largest end offset of the chunks emitted before the current one. */
+	private int pipelinedEndOffset = -1;
+	private int tokenIndex;
+	private int trailingPositions;
+	private int finalOffset = -1;
+	private boolean indexFlags;
+	private int boundaryGap;
+	private IndexTokensSettings indexTokens;
+	/** The tokens spanning several positions whose copies are not all emitted. */
+	private final PreAnalyzedTokens spanning = new PreAnalyzedTokens();
+	/** The position of the next copy of each spanning token. */
+	private int[] copyPositions = new int[8];
+	/** The position behind the last position each spanning token covers. */
+	private int[] copyEnds = new int[8];
+	/** The position of the last token read, without boundary gaps. */
+	private int position;
+	/** The position of the last token or copy emitted, without boundary gaps. */
+	private int emittedPosition;
+	private int lastStartOffset;
+	/** The index of the token read but held back behind due copies or -1. */
+	private int heldIndex = -1;
+	/** The position increment of the held token, boundary gaps included. */
+	private int heldIncrement;
+
+	PreAnalyzedTokenIterator(AttributeSource attributes) {
+		this.attributes = attributes;
+		this.termAtt = attributes.addAttribute(CharTermAttribute.class);
+		this.offsetAtt = attributes.addAttribute(OffsetAttribute.class);
+		this.posIncrAtt = attributes.addAttribute(PositionIncrementAttribute.class);
+		this.posLenAtt = attributes.addAttribute(PositionLengthAttribute.class);
+		this.payloadAtt = attributes.addAttribute(PayloadAttribute.class);
+		this.typeAtt = attributes.addAttribute(TypeAttribute.class);
+		this.flagsAtt = attributes.addAttribute(FlagsAttribute.class);
+	}
+
+	/**
+	 * Sets the tokens to emit from the beginning.
+	 */
+	void setTokens(PreAnalyzedTokens tokens) {
+		this.tokens = tokens;
+		reset();
+	}
+
+	/**
+	 * Sets the pipeline whose chunks are emitted after the current tokens.
+	 */
+	void setPipeline(PreAnalyzedTokenPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * @return The tokens currently emitted, the current chunk if they are
+	 *         read from a pipeline.
+	 */
+	PreAnalyzedTokens tokens() {
+		return tokens;
+	}
+
+	/**
+	 * @see PreAnalyzedMapper.PreAnalyzedTokenStream#setFinalOffset(int)
+	 */
+	void setFinalOffset(int finalOffset) {
+		this.finalOffset = finalOffset;
+	}
+
+	/**
+	 * @see PreAnalyzedMapper.PreAnalyzedTokenStream#setIndexFlags(boolean)
+	 */
+	void setIndexFlags(boolean indexFlags) {
+		this.indexFlags = indexFlags;
+	}
+
+	/**
+	 * @see PreAnalyzedMapper.PreAnalyzedTokenStream#setBoundaryGap(int)
+	 */
+	void setBoundaryGap(int boundaryGap) {
+		this.boundaryGap = boundaryGap;
+	}
+
+	/**
+	 * @see PreAnalyzedMapper.PreAnalyzedTokenStream#setIndexTokens(IndexTokensSettings)
+	 */
+	void setIndexTokens(IndexTokensSettings indexTokens) {
+		this.indexTokens = indexTokens;
+	}
+
+	/**
+	 * Sets the attributes to the next token.
+	 *
+	 * @return Whether there was another token.
+	 */
+	boolean next() {
+		if (heldIndex < 0 && !read()) {
+			// the positions covered behind the last token are empty
+			spanning.clear();
+			return false;
+		}
+		int copy = nextCopy();
+		if (copy >= 0) {
+			int copyPosition = copyPositions[copy]++;
+			// a copy in front of the held token takes its own increment, a
+			// copy at its position the whole increment of the held token
+			int increment = copyPosition < position ? copyPosition - emittedPosition : heldIncrement;
+			heldIncrement -= increment;
+			emittedPosition = copyPosition;
+			// the offsets must not go backwards behind the tokens emitted
+			// since the spanning token
+			int startOffset = Math.max(spanning.startOffset(copy), lastStartOffset);
+			emit(spanning, copy, increment, copyEnds[copy] - copyPosition, startOffset,
+					Math.max(spanning.endOffset(copy), startOffset));
+			return true;
+		}
+		int i = heldIndex;
+		heldIndex = -1;
+		emittedPosition = position;
+		lastStartOffset = tokens.startOffset(i);
+		emit(tokens, i, heldIncrement, tokens.positionLength(i), tokens.startOffset(i), tokens.endOffset(i));
+		if (tokens.positionLength(i) > 1) {
+			int index = spanning.add(tokens.termBuffer(), tokens.termStart(i), tokens.termLength(i));
+			spanning.setOffsets(index, tokens.startOffset(i), tokens.endOffset(i));
+			spanning.setFlags(index, tokens.flags(i));
+			spanning.setType(index, tokens.type(i));
+			spanning.setPayload(index, tokens.payload(i));
+			copyPositions = ArrayUtil.grow(copyPositions, index + 1);
+			copyEnds = ArrayUtil.grow(copyEnds, index + 1);
+			copyPositions[index] = position + 1;
+			copyEnds[index] = position + tokens.positionLength(i);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next token that is indexed and holds it back. The positions
+	 * of the tokens that are not indexed are added to its increment.
+	 *
+	 * @return Whether there was another token.
+	 */
+	private boolean read() {
+		int skippedPositions = 0;
+		while (tokenIndex < tokens.size() || nextChunk()) {
+			int i = tokenIndex++;
+			position += tokens.positionIncrement(i);
+			if (indexTokens != null && !indexTokens.accept(tokens, i)) {
+				skippedPositions += tokens.positionIncrement(i, boundaryGap);
+				continue;
+			}
+			heldIndex = i;
+			heldIncrement = skippedPositions + tokens.positionIncrement(i, boundaryGap);
+			return true;
+		}
+		trailingPositions = skippedPositions;
+		return false;
+	}
+
+	/**
+	 * @return The spanning token with the first copy due at or in front of
+	 *         the position of the held token or <tt>-1</tt>.
+	 */
+	private int nextCopy() {
+		int copy = -1;
+		boolean pending = false;
+		for (int j = 0; j < spanning.size(); j++) {
+			if (copyPositions[j] >= copyEnds[j])
+				continue;
+			pending = true;
+			if (copyPositions[j] <= position && (copy < 0 || copyPositions[j] < copyPositions[copy]))
+				copy = j;
+		}
+		if (!pending)
+			spanning.clear();
+		return copy;
+	}
+
+	private void emit(PreAnalyzedTokens source, int i, int positionIncrement, int positionLength, int startOffset,
+			int endOffset) {
+		// First clear all attributes for the case that some
+		// attributes are sometimes but not always specified.
+		attributes.clearAttributes();
+		termAtt.copyBuffer(source.termBuffer(), source.termStart(i), source.termLength(i));
+		if (indexFlags)
+			payloadAtt.setPayload(
+					PreAnalyzedFlagsPayload.encode(source.flags(i), source.payload(i), payloadScratch));
+		else if (null != source.payload(i))
+			payloadAtt.setPayload(source.payload(i));
+		flagsAtt.setFlags(source.flags(i));
+		if (null != source.type(i))
+			typeAtt.setType(source.type(i));
+		posIncrAtt.setPositionIncrement(positionIncrement);
+		posLenAtt.setPositionLength(positionLength);
+		offsetAtt.setOffset(startOffset, endOffset);
+	}
+
+	/**
+	 * Moves on to the next chunk of a pipeline.
+	 *
+	 * @return Whether there is another chunk.
+	 */
+	private boolean nextChunk() {
+		if (pipeline == null)
+			return false;
+		for (int i = 0; i < tokens.size(); i++)
+			pipelinedEndOffset = Math.max(pipelinedEndOffset, tokens.endOffset(i));
+		PreAnalyzedTokens next = pipeline.next();
+		if (next == null)
+			return false;
+		tokens = next;
+		tokenIndex = 0;
+		return true;
+	}
+
+	/**
+	 * Sets the position increment and offset reported at the end of the
+	 * stream, after the attributes have been ended by the stream.
+	 */
+	void end() {
+		posIncrAtt.setPositionIncrement(trailingPositions);
+		int endOffset = Math.max(finalOffset, pipelinedEndOffset);
+		for (int i = 0; i < tokens.size(); i++)
+			endOffset = Math.max(endOffset, tokens.endOffset(i));
+		endOffset = Math.max(endOffset, 0);
+		offsetAtt.setOffset(endOffset, endOffset);
+	}
+
+	/**
+	 * Moves back to the first token.
+	 */
+	void reset() {
+		tokenIndex = 0;
+		trailingPositions = 0;
+		pipelinedEndOffset = -1;
+		spanning.clear();
+		position = -1;
+		emittedPosition = -1;
+		lastStartOffset = 0;
+		heldIndex = -1;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.mapper.MapperParsingException;
+
+/**
+ * <p>
+ * Decodes the tokens of a large preanalyzed value on a helper thread while
+ * Lucene inverts the tokens decoded so far. Without it, the indexing thread
+ * decodes all tokens of a value before Lucene sees the first one.
+ * </p>
+ * <p>
+ * The helper starts when the token stream is reset by Lucene and decodes the
+ * tokens into a bounded ring of {@link PreAnalyzedTokens} chunks, which the
+ * token stream emits one after the other. The ring has a single producer and
+ * a single consumer, so publishing and releasing a chunk is an ordered write
+ * of its sequence number; a side that has to wait spins briefly and then
+ * parks. Chunks are reused, so the memory of a value is bounded by the ring
+ * and not by the number of its tokens.
+ * </p>
+ * <p>
+ * A decoding failure is raised by the token stream after the tokens decoded
+ * before it, which fails the document. Closing the token stream, which Lucene
+ * always does, stops the helper. If the helper has not started shortly after
+ * the first token is requested, e.g. because the thread pool is busy, the
+ * indexing thread decodes the value itself.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedTokenPipeline implements Runnable {
+
+	/**
+	 * The minimum length of preanalyzed values, in characters of their JSON,
+	 * whose tokens are decoded while they are indexed. <tt>-1</tt> (default)
+	 * disables pipelined decoding.
+	 */
+	public static final Setting<ByteSizeValue> PIPELINED_DECODE_THRESHOLD_SETTING = Setting.byteSizeSetting(
+			"index.preanalyzed.pipelined_decode_threshold", new ByteSizeValue(-1), Property.IndexScope,
+			Property.Dynamic);
+
+	/** The number of tokens of a chunk. */
+	static final int CHUNK_SIZE = 512;
+	/** The number of chunks of the ring, a power of two. */
+	private static final int CAPACITY = 8;
+	/** How long the consumer waits for the helper to start. */
+	private static final long START_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int SPINS = 100;
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private static final int NEW = 0;
+	private static final int RUNNING = 1;
+	/** The consumer decodes the value itself. */
+	private static final int STOLEN = 2;
+	private static final int CANCELLED = 3;
+
+	private final Executor executor;
+	private final Consumer<PreAnalyzedTokenPipeline> decoder;
+	private final Supplier<PreAnalyzedTokens> fallback;
+
+	private final AtomicInteger state = new AtomicInteger(NEW);
+	private final PreAnalyzedTokens[] chunks = new PreAnalyzedTokens[CAPACITY];
+	/** The number of chunks published by the producer. */
+	private final AtomicLong tail = new AtomicLong();
+	/** The number of chunks released by the consumer. */
+	private final AtomicLong head = new AtomicLong();
+	private volatile boolean finished;
+	private volatile Throwable failure;
+	private volatile boolean cancelled;
+
+	// only accessed by the consumer
+	private boolean started;
+	private long startTime;
+	private boolean holding;
+	private boolean fallbackTaken;
+
+	/**
+	 * @param executor
+	 *            Runs the helper.
+	 * @param decoder
+	 *            Decodes the tokens on the helper thread into
+	 *            {@link #producerChunk()} and {@link #publish()}.
+	 * @param fallback
+	 *            Decodes all tokens on the indexing thread if the helper does
+	 *            not start in time.
+	 */
+	PreAnalyzedTokenPipeline(Executor executor, Consumer<PreAnalyzedTokenPipeline> decoder,
+			Supplier<PreAnalyzedTokens> fallback) {
+		this.executor = executor;
+		this.decoder = decoder;
+		this.fallback = fallback;
+		for (int i = 0; i < CAPACITY; i++)
+			chunks[i] = new PreAnalyzedTokens();
+	}
+
+	/**
+	 * Starts the helper. Called by the consumer once.
+	 */
+	void start() {
+		if (started)
+			throw new IllegalStateException("The tokens of a pipelined preanalyzed value can only be read once");
+		started = true;
+		startTime = System.nanoTime();
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			state.compareAndSet(NEW, STOLEN);
+		}
+	}
+
+	@Override
+	public void run() {
+		if (!state.compareAndSet(NEW, RUNNING))
+			return;
+		try {
+			decoder.accept(this);
+			finish();
+		} catch (CancellationException e) {
+			// the token stream has been closed
+		} catch (Throwable t) {
+			failure = t;
+			if (t instanceof Error)
+				throw (Error) t;
+		}
+	}
+
+	/**
+	 * @return The chunk the producer decodes the first tokens into.
+	 */
+	PreAnalyzedTokens producerChunk() {
+		PreAnalyzedTokens chunk = chunks[(int) tail.get() & (CAPACITY - 1)];
+		chunk.clear();
+		return chunk;
+	}
+
+	/**
+	 * Hands the current chunk of the producer to the consumer.
+	 *
+	 * @return The chunk to decode the next tokens into, once the consumer has
+	 *         released it.
+	 * @throws CancellationException
+	 *             If the token stream has been closed.
+	 */
+	PreAnalyzedTokens publish() {
+		long published = tail.get() + 1;
+		tail.lazySet(published);
+		for (int spins = 0; published - head.get() >= CAPACITY; spins++) {
+			if (cancelled)
+				throw new CancellationException();
+			await(spins);
+		}
+		if (cancelled)
+			throw new CancellationException();
+		return producerChunk();
+	}
+
+	private void finish() {
+		if (chunks[(int) tail.get() & (CAPACITY - 1)].size() > 0)
+			tail.lazySet(tail.get() + 1);
+		finished = true;
+	}
+
+	/**
+	 * Releases the chunk returned by the previous call and returns the next
+	 * one. Called by the consumer.
+	 *
+	 * @return The next chunk or <tt>null</tt> if all tokens have been read.
+	 * @throws MapperParsingException
+	 *             If the tokens could not be decoded.
+	 */
+	PreAnalyzedTokens next() {
+		if (state.get() == STOLEN)
+			return takeFallback();
+		long consumed = head.get();
+		if (holding) {
+			head.lazySet(++consumed);
+			holding = false;
+		}
+		for (int spins = 0; tail.get() == consumed; spins++) {
+			if (failure != null)
+				throw new MapperParsingException("Could not read preanalyzed field value of document", failure);
+			if (finished) {
+				if (tail.get() == consumed)
+					return null;
+				break;
+			}
+			if (state.get() == NEW && System.nanoTime() - startTime > START_TIMEOUT_NANOS
+					&& state.compareAndSet(NEW, STOLEN))
+				return takeFallback();
+			if (Thread.interrupted()) {
+				close();
+				throw new ThreadInterruptedException(new InterruptedException());
+			}
+			await(spins);
+		}
+		holding = true;
+		return chunks[(int) consumed & (CAPACITY - 1)];
+	}
+
+	private PreAnalyzedTokens takeFallback() {
+		if (fallbackTaken)
+			return null;
+		fallbackTaken = true;
+		return fallback.get();
+	}
+
+	/**
+	 * Stops the helper. Called by the consumer when the token stream is
+	 * closed.
+	 */
+	void close() {
+		cancelled = true;
+		state.compareAndSet(NEW, CANCELLED);
+	}
+
+	private static void await(int spins) {
+		if (spins < SPINS)
+			Thread.onSpinWait();
+		else
+			LockSupport.parkNanos(PARK_NANOS);
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * The client side counterpart of
+ * {@link PreAnalyzedMapper.PreAnalyzedTokenStream}: Drains a Lucene
+ * {@link TokenStream} into the preanalyzed JSON format or into
+ * {@link PreAnalyzedBinaryFormat}. The term, offsets, position increment,
+ * payload, flags and type of each token are written. Terms and payloads are
+ * streamed from the attribute buffers without creating intermediate objects.
+ * </p>
+ * <p>
+ * This class, {@link PreAnalyzedFormat}, {@link PreAnalyzedTokens} and
+ * {@link PreAnalyzedBinaryFormat} only depend on Lucene core and Jackson core
+ * and are packaged into the <tt>client</tt> jar of this project. An instance
+ * reuses its buffers and is not thread safe.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public final class PreAnalyzedTokenStreamSerializer {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final Map<String, Integer> typeCodes;
+	private final PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+	private final StringWriter jsonWriter = new StringWriter();
+	private char[] chars = new char[32];
+
+	public PreAnalyzedTokenStreamSerializer() {
+		this.typeCodes = null;
+	}
+
+	/**
+	 * Creates a serializer writing token types contained in the given
+	 * <tt>type_dictionary</tt> of the field mapping as their codes.
+	 */
+	public PreAnalyzedTokenStreamSerializer(String... typeDictionary) {
+		this.typeCodes = new HashMap<>();
+		for (int i = 0; i < typeDictionary.length; i++)
+			typeCodes.put(typeDictionary[i], i);
+	}
+
+	/**
+	 * Serializes the tokens of <tt>ts</tt> into a preanalyzed JSON string, to
+	 * be sent as the value of a preanalyzed field. The stream is consumed and
+	 * closed.
+	 *
+	 * @param str
+	 *            The value to store or <tt>null</tt>.
+	 */
+	public String toJson(TokenStream ts, String str) throws IOException {
+		jsonWriter.getBuffer().setLength(0);
+		try (JsonGenerator generator = jsonFactory.createGenerator(jsonWriter)) {
+			writeJson(ts, str, generator);
+		}
+		return jsonWriter.toString();
+	}
+
+	/**
+	 * Writes the tokens of <tt>ts</tt> as a preanalyzed JSON object to
+	 * <tt>generator</tt>. The stream is consumed and closed.
+	 *
+	 * @param str
+	 *            The value to store or <tt>null</tt>.
+	 */
+	public void writeJson(TokenStream ts, String str, JsonGenerator generator) throws IOException {
+		try (TokenStream stream = ts) {
+			CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+			OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+			PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+			PositionLengthAttribute posLenAtt = stream.addAttribute(PositionLengthAttribute.class);
+			PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+			FlagsAttribute flagsAtt = stream.addAttribute(FlagsAttribute.class);
+			TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
+
+			generator.writeStartObject();
+			generator.writeStringField(PreAnalyzedFormat.VERSION_KEY, PreAnalyzedFormat.VERSION);
+			if (str != null)
+				generator.writeStringField(PreAnalyzedFormat.STRING_KEY, str);
+			generator.writeArrayFieldStart(PreAnalyzedFormat.TOKENS_KEY);
+			stream.reset();
+			while (stream.incrementToken()) {
+				generator.writeStartObject();
+				generator.writeFieldName(PreAnalyzedFormat.TERM_KEY);
+				generator.writeString(termAtt.buffer(), 0, termAtt.length());
+				generator.writeNumberField(PreAnalyzedFormat.START_OFFSET_KEY, offsetAtt.startOffset());
+				generator.writeNumberField(PreAnalyzedFormat.END_OFFSET_KEY, offsetAtt.endOffset());
+				if (posIncrAtt.getPositionIncrement() != 1)
+					generator.writeNumberField(PreAnalyzedFormat.POSITION_INCREMENT_KEY,
+							posIncrAtt.getPositionIncrement());
+				if (posLenAtt.getPositionLength() != 1)
+					generator.writeNumberField(PreAnalyzedFormat.POSITION_LENGTH_KEY, posLenAtt.getPositionLength());
+				BytesRef payload = payloadAtt.getPayload();
+				if (payload != null && payload.length > 0) {
+					// the mapper indexes the UTF-8 bytes of the payload string
+					chars = ArrayUtil.grow(chars, payload.length);
+					int length = UnicodeUtil.UTF8toUTF16(payload.bytes, payload.offset, payload.length, chars);
+					generator.writeFieldName(PreAnalyzedFormat.PAYLOAD_KEY);
+					generator.writeString(chars, 0, length);
+				}
+				if (flagsAtt.getFlags() != 0) {
+					generator.writeFieldName(PreAnalyzedFormat.FLAGS_KEY);
+					writeDecimal(flagsAtt.getFlags(), generator);
+				}
+				String type = typeAtt.type();
+				if (type != null && !TypeAttribute.DEFAULT_TYPE.equals(type)) {
+					Integer code = typeCodes != null ? typeCodes.get(type) : null;
+					if (code != null)
+						generator.writeNumberField(PreAnalyzedFormat.TYPE_KEY, code);
+					else
+						generator.writeStringField(PreAnalyzedFormat.TYPE_KEY, type);
+				}
+				generator.writeEndObject();
+			}
+			stream.end();
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * Writes the tokens of <tt>ts</tt> in {@link PreAnalyzedBinaryFormat} to
+	 * <tt>out</tt>. The stream is consumed and closed.
+	 */
+	public void writeBinary(TokenStream ts, DataOutput out) throws IOException {
+		PreAnalyzedBinaryFormat.write(collect(ts), out);
+	}
+
+	/**
+	 * Collects the tokens of <tt>ts</tt> into a buffer that is reused by the
+	 * next call of this serializer. The stream is consumed and closed.
+	 */
+	public PreAnalyzedTokens collect(TokenStream ts) throws IOException {
+		tokens.clear();
+		try (TokenStream stream = ts) {
+			CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+			OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+			PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+			PositionLengthAttribute posLenAtt = stream.addAttribute(PositionLengthAttribute.class);
+			PayloadAttribute payloadAtt = stream.addAttribute(PayloadAttribute.class);
+			FlagsAttribute flagsAtt = stream.addAttribute(FlagsAttribute.class);
+			TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				int i = tokens.add(termAtt.buffer(), 0, termAtt.length());
+				tokens.setOffsets(i, offsetAtt.startOffset(), offsetAtt.endOffset());
+				tokens.setPositionIncrement(i, posIncrAtt.getPositionIncrement());
+				tokens.setPositionLength(i, posLenAtt.getPositionLength());
+				tokens.setFlags(i, flagsAtt.getFlags());
+				if (!TypeAttribute.DEFAULT_TYPE.equals(typeAtt.type()))
+					tokens.setType(i, typeAtt.type());
+				BytesRef payload = payloadAtt.getPayload();
+				if (payload != null && payload.length > 0)
+					tokens.setPayload(i, BytesRef.deepCopyOf(payload));
+			}
+			stream.end();
+		}
+		return tokens;
+	}
+
+	/**
+	 * Writes the flags as a decimal string, as expected by the mapper,
+	 * without creating a String.
+	 */
+	private void writeDecimal(int value, JsonGenerator generator) throws IOException {
+		chars = ArrayUtil.grow(chars, 11);
+		long remaining = Math.abs((long) value);
+		int pos = 11;
+		do {
+			chars[--pos] = (char) ('0' + remaining % 10);
+			remaining /= 10;
+		} while (remaining != 0);
+		if (value < 0)
+			chars[--pos] = '-';
+		generator.writeString(chars, pos, 11 - pos);
+	}
+}
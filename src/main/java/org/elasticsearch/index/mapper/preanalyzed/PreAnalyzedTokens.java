@@ -0,0 +1,306 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A buffer of preanalyzed tokens held in parallel primitive arrays.
+ * </p>
+ * <p>
+ * All term characters share one <tt>char[]</tt>, the numeric token attributes
+ * are kept in <tt>int[]</tt> columns and only the optional type and payload
+ * are stored as objects. This avoids the allocation of a map and several boxed
+ * values per token and lets the tokens be serialized into the compact binary
+ * representation of {@link PreAnalyzedBinaryFormat}.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedTokens {
+
+	/** The token continues the current sentence. */
+	public static final int NO_BOUNDARY = 0;
+	/** The token is the first of a new sentence. */
+	public static final int SENTENCE_BOUNDARY = 1;
+	/** The token is the first of a new section, and thus of a new sentence. */
+	public static final int SECTION_BOUNDARY = 2;
+
+	private int size;
+	private char[] termChars = new char[64];
+	private int termCharsLength;
+	private int[] termStarts = new int[8];
+	private int[] termLengths = new int[8];
+	private int[] startOffsets = new int[8];
+	private int[] endOffsets = new int[8];
+	private int[] positionIncrements = new int[8];
+	private int[] positionLengths = new int[8];
+	private int[] flags = new int[8];
+	private int[] boundaries = new int[8];
+	private String[] types = new String[8];
+	private BytesRef[] payloads = new BytesRef[8];
+
+	/**
+	 * Appends a new token with the given term and default attribute values,
+	 * i.e. zero offsets and flags, a position increment and length of 1, no
+	 * boundary and no type or payload.
+	 *
+	 * @return The index of the new token.
+	 */
+	public int add(char[] buffer, int offset, int length) {
+		if (size == termStarts.length) {
+			int newLength = ArrayUtil.oversize(size + 1, Integer.BYTES);
+			termStarts = ArrayUtil.growExact(termStarts, newLength);
+			termLengths = ArrayUtil.growExact(termLengths, newLength);
+			startOffsets = ArrayUtil.growExact(startOffsets, newLength);
+			endOffsets = ArrayUtil.growExact(endOffsets, newLength);
+			positionIncrements = ArrayUtil.growExact(positionIncrements, newLength);
+			positionLengths = ArrayUtil.growExact(positionLengths, newLength);
+			flags = ArrayUtil.growExact(flags, newLength);
+			boundaries = ArrayUtil.growExact(boundaries, newLength);
+			types = ArrayUtil.growExact(types, newLength);
+			payloads = ArrayUtil.growExact(payloads, newLength);
+		}
+		termChars = ArrayUtil.grow(termChars, termCharsLength + length);
+		System.arraycopy(buffer, offset, termChars, termCharsLength, length);
+		int index = size++;
+		termStarts[index] = termCharsLength;
+		termLengths[index] = length;
+		termCharsLength += length;
+		startOffsets[index] = 0;
+		endOffsets[index] = 0;
+		positionIncrements[index] = 1;
+		positionLengths[index] = 1;
+		flags[index] = 0;
+		boundaries[index] = NO_BOUNDARY;
+		types[index] = null;
+		payloads[index] = null;
+		return index;
+	}
+
+	/**
+	 * Removes all tokens while keeping the allocated arrays for reuse.
+	 */
+	public void clear() {
+		// release the object references
+		Arrays.fill(types, 0, size, null);
+		Arrays.fill(payloads, 0, size, null);
+		size = 0;
+		termCharsLength = 0;
+	}
+
+	/**
+	 * <p>
+	 * Brings the tokens into index order. The positions derived from the
+	 * position increments, which may be negative here, are raised to at least
+	 * 0 and the tokens are sorted by position and start offset, keeping the
+	 * order of equal tokens. The position increments are then recomputed from
+	 * the sorted positions and start offsets that still go backwards, i.e.
+	 * across positions, are raised to the previous start offset.
+	 * </p>
+	 * <p>
+	 * The sort permutes an index array over primitive keys and then gathers
+	 * each column once; the term characters are not moved.
+	 * </p>
+	 *
+	 * @param maxOffset
+	 *            The offsets are clamped to this value, typically the length of
+	 *            the <tt>str</tt> value, unless it is negative.
+	 */
+	public void repairOrder(int maxOffset) {
+		if (size == 0)
+			return;
+		long[] keys = new long[size];
+		boolean sorted = true;
+		int position = -1;
+		for (int i = 0; i < size; i++) {
+			position = Math.max(position + positionIncrements[i], 0);
+			if (maxOffset >= 0) {
+				startOffsets[i] = Math.min(startOffsets[i], maxOffset);
+				endOffsets[i] = Math.min(endOffsets[i], maxOffset);
+			}
+			keys[i] = (long) position << 32 | startOffsets[i];
+			sorted &= i == 0 || keys[i - 1] <= keys[i];
+		}
+		if (!sorted) {
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			long[] sortKeys = keys;
+			new InPlaceMergeSorter() {
+				@Override
+				protected int compare(int i, int j) {
+					return Long.compare(sortKeys[order[i]], sortKeys[order[j]]);
+				}
+
+				@Override
+				protected void swap(int i, int j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+				}
+			}.sort(0, size);
+			long[] sortedKeys = new long[size];
+			for (int i = 0; i < size; i++)
+				sortedKeys[i] = keys[order[i]];
+			keys = sortedKeys;
+			termStarts = permute(termStarts, order);
+			termLengths = permute(termLengths, order);
+			startOffsets = permute(startOffsets, order);
+			endOffsets = permute(endOffsets, order);
+			positionLengths = permute(positionLengths, order);
+			flags = permute(flags, order);
+			boundaries = permute(boundaries, order);
+			types = permute(types, order);
+			payloads = permute(payloads, order);
+		}
+		int lastPosition = -1;
+		int lastStart = 0;
+		for (int i = 0; i < size; i++) {
+			position = (int) (keys[i] >>> 32);
+			positionIncrements[i] = position - lastPosition;
+			lastPosition = position;
+			if (startOffsets[i] < lastStart) {
+				startOffsets[i] = lastStart;
+				endOffsets[i] = Math.max(endOffsets[i], lastStart);
+			}
+			lastStart = startOffsets[i];
+		}
+	}
+
+	private int[] permute(int[] column, int[] order) {
+		int[] permuted = new int[column.length];
+		for (int i = 0; i < size; i++)
+			permuted[i] = column[order[i]];
+		return permuted;
+	}
+
+	private <T> T[] permute(T[] column, int[] order) {
+		T[] permuted = Arrays.copyOf(column, column.length);
+		for (int i = 0; i < size; i++)
+			permuted[i] = column[order[i]];
+		return permuted;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The shared character buffer of all terms. Use together with
+	 *         {@link #termStart(int)} and {@link #termLength(int)}.
+	 */
+	public char[] termBuffer() {
+		return termChars;
+	}
+
+	public int termStart(int index) {
+		return termStarts[index];
+	}
+
+	public int termLength(int index) {
+		return termLengths[index];
+	}
+
+	public String term(int index) {
+		return new String(termChars, termStarts[index], termLengths[index]);
+	}
+
+	public int startOffset(int index) {
+		return startOffsets[index];
+	}
+
+	public int endOffset(int index) {
+		return endOffsets[index];
+	}
+
+	public void setOffsets(int index, int startOffset, int endOffset) {
+		startOffsets[index] = startOffset;
+		endOffsets[index] = endOffset;
+	}
+
+	public int positionIncrement(int index) {
+		return positionIncrements[index];
+	}
+
+	public void setPositionIncrement(int index, int positionIncrement) {
+		positionIncrements[index] = positionIncrement;
+	}
+
+	/**
+	 * @return The position increment of the token, widened by
+	 *         <tt>boundaryGap</tt> if the token starts a new sentence or
+	 *         section. The first token needs no gap.
+	 */
+	public int positionIncrement(int index, int boundaryGap) {
+		if (index > 0 && boundaries[index] != NO_BOUNDARY)
+			return positionIncrements[index] + boundaryGap;
+		return positionIncrements[index];
+	}
+
+	public int positionLength(int index) {
+		return positionLengths[index];
+	}
+
+	public void setPositionLength(int index, int positionLength) {
+		positionLengths[index] = positionLength;
+	}
+
+	public int flags(int index) {
+		return flags[index];
+	}
+
+	public void setFlags(int index, int flags) {
+		this.flags[index] = flags;
+	}
+
+	/**
+	 * @return {@link #NO_BOUNDARY}, {@link #SENTENCE_BOUNDARY} or
+	 *         {@link #SECTION_BOUNDARY}.
+	 */
+	public int boundary(int index) {
+		return boundaries[index];
+	}
+
+	public void setBoundary(int index, int boundary) {
+		boundaries[index] = boundary;
+	}
+
+	public String type(int index) {
+		return types[index];
+	}
+
+	public void setType(int index, String type) {
+		types[index] = type;
+	}
+
+	public BytesRef payload(int index) {
+		return payloads[index];
+	}
+
+	public void setPayload(int index, BytesRef payload) {
+		payloads[index] = payload;
+	}
+}
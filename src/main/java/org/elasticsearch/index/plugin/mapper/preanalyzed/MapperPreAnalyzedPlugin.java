@@ -18,18 +18,150 @@
  */
 package org.elasticsearch.index.plugin.mapper.preanalyzed;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsAction;
+import org.elasticsearch.action.admin.indices.preanalyzed.TransportPreAnalyzedStatsAction;
+import org.elasticsearch.action.bulk.preanalyzed.PreAnalyzedBulkDecodeFilter;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.mapper.Mapper.TypeParser;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedHighlighter;
 import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedPredecoder;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedSyntheticSourceFetchSubPhase;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedTokenFiles;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedTokenPipeline;
+import org.elasticsearch.index.query.preanalyzed.SpanBoundaryQueryBuilder;
+import org.elasticsearch.index.query.preanalyzed.SpanFlagsQueryBuilder;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.action.admin.indices.preanalyzed.RestPreAnalyzedStatsAction;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.aggregations.preanalyzed.CooccurrenceAggregationBuilder;
+import org.elasticsearch.search.aggregations.preanalyzed.InternalCooccurrence;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.subphase.highlight.Highlighter;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
-public class MapperPreAnalyzedPlugin extends Plugin implements MapperPlugin {
+public class MapperPreAnalyzedPlugin extends Plugin implements MapperPlugin, SearchPlugin, ActionPlugin {
+
+	private final PreAnalyzedTokenFiles tokenFiles;
+	private final PreAnalyzedPredecoder predecoder;
+
+	public MapperPreAnalyzedPlugin(Settings settings) {
+		this.tokenFiles = new PreAnalyzedTokenFiles(PreAnalyzedTokenFiles.ALLOWED_PATHS_SETTING.get(settings),
+				PreAnalyzedTokenFiles.MAX_MAPPED_FILES_SETTING.get(settings));
+		// fail on startup rather than on each referenced file
+		if (System.getSecurityManager() != null)
+			tokenFiles.checkPolicyPath(System.getProperty(PreAnalyzedTokenFiles.POLICY_PATH_PROPERTY));
+		this.predecoder = new PreAnalyzedPredecoder();
+	}
+
+	@Override
+	public List<Setting<?>> getSettings() {
+		return Arrays.asList(PreAnalyzedTokenFiles.ALLOWED_PATHS_SETTING,
+				PreAnalyzedTokenFiles.MAX_MAPPED_FILES_SETTING, PreAnalyzedPredecoder.PARALLEL_DECODE_SETTING,
+				PreAnalyzedTokenPipeline.PIPELINED_DECODE_THRESHOLD_SETTING);
+	}
+
+	@Override
+	public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+		return Collections.singletonList(PreAnalyzedPredecoder.executorBuilder(settings));
+	}
+
+	@Override
+	public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+			ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+			NamedXContentRegistry xContentRegistry, Environment environment, NodeEnvironment nodeEnvironment,
+			NamedWriteableRegistry namedWriteableRegistry) {
+		predecoder.setExecutor(threadPool.executor(PreAnalyzedPredecoder.EXECUTOR));
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void onIndexModule(IndexModule indexModule) {
+		indexModule.addIndexEventListener(predecoder);
+	}
 
 	@Override
 	public Map<String, TypeParser> getMappers() {
-		return Collections.singletonMap("preanalyzed", new PreAnalyzedMapper.TypeParser());
+		return Collections.singletonMap("preanalyzed", new PreAnalyzedMapper.TypeParser(tokenFiles, predecoder));
+	}
+
+	@Override
+	public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
+		return Collections.singletonList(new PreAnalyzedSyntheticSourceFetchSubPhase());
+	}
+
+	@Override
+	public Map<String, Highlighter> getHighlighters() {
+		return Collections.singletonMap(PreAnalyzedHighlighter.NAME, new PreAnalyzedHighlighter());
+	}
+
+	@Override
+	public List<QuerySpec<?>> getQueries() {
+		return Arrays.asList(
+				new QuerySpec<>(SpanFlagsQueryBuilder.NAME, SpanFlagsQueryBuilder::new,
+						SpanFlagsQueryBuilder::fromXContent),
+				new QuerySpec<>(SpanBoundaryQueryBuilder.NAME, SpanBoundaryQueryBuilder::new,
+						SpanBoundaryQueryBuilder::fromXContent));
+	}
+
+	@Override
+	public List<AggregationSpec> getAggregations() {
+		return Collections.singletonList(new AggregationSpec(CooccurrenceAggregationBuilder.NAME,
+				CooccurrenceAggregationBuilder::new, CooccurrenceAggregationBuilder::parse)
+						.addResultReader(InternalCooccurrence::new));
+	}
+
+	@Override
+	public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+		return Collections.singletonList(
+				new ActionHandler<>(PreAnalyzedStatsAction.INSTANCE, TransportPreAnalyzedStatsAction.class));
+	}
+
+	@Override
+	public List<ActionFilter> getActionFilters() {
+		return Collections.singletonList(new PreAnalyzedBulkDecodeFilter(predecoder));
+	}
+
+	@Override
+	public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+			ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+			IndexNameExpressionResolver indexNameExpressionResolver, Supplier<DiscoveryNodes> nodesInCluster) {
+		return Collections.singletonList(new RestPreAnalyzedStatsAction(settings, restController));
+	}
+
+	@Override
+	public void close() throws IOException {
+		tokenFiles.close();
 	}
 }
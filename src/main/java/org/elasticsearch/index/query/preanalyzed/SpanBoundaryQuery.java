@@ -0,0 +1,174 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.query.preanalyzed;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.spans.FilterSpans;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedBoundaries;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>
+ * Restricts the matches of a span query to those within a single sentence or
+ * section. The boundaries are read per matching document from the
+ * {@link PreAnalyzedBoundaries} of preanalyzed fields with
+ * <tt>boundaries</tt>; documents without boundaries consist of a single
+ * sentence.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class SpanBoundaryQuery extends SpanQuery {
+
+	/**
+	 * The unit the matches must not extend beyond.
+	 */
+	public enum Boundary {
+		SENTENCE, SECTION;
+
+		public static Boundary fromString(String boundary) {
+			return valueOf(boundary.toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final SpanQuery match;
+	private final Boundary boundary;
+
+	public SpanBoundaryQuery(SpanQuery match, Boundary boundary) {
+		this.match = Objects.requireNonNull(match);
+		this.boundary = Objects.requireNonNull(boundary);
+	}
+
+	public SpanQuery getMatch() {
+		return match;
+	}
+
+	public Boundary getBoundary() {
+		return boundary;
+	}
+
+	@Override
+	public String getField() {
+		return match.getField();
+	}
+
+	@Override
+	public SpanWeight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+		SpanWeight matchWeight = match.createWeight(searcher, scoreMode, boost);
+		return new SpanBoundaryWeight(matchWeight, searcher,
+				scoreMode.needsScores() ? getTermStates(matchWeight) : null, boost);
+	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		SpanQuery rewritten = (SpanQuery) match.rewrite(reader);
+		if (rewritten != match)
+			return new SpanBoundaryQuery(rewritten, boundary);
+		return super.rewrite(reader);
+	}
+
+	@Override
+	public String toString(String field) {
+		return "spanBoundary(" + match.toString(field) + ", " + boundary.name().toLowerCase(Locale.ROOT) + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!sameClassAs(other))
+			return false;
+		SpanBoundaryQuery that = (SpanBoundaryQuery) other;
+		return match.equals(that.match) && boundary == that.boundary;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(classHash(), match, boundary);
+	}
+
+	private class SpanBoundaryWeight extends SpanWeight {
+		private final SpanWeight matchWeight;
+		private final String boundariesField;
+
+		SpanBoundaryWeight(SpanWeight matchWeight, IndexSearcher searcher, Map<Term, TermStates> termStates,
+				float boost) throws IOException {
+			super(SpanBoundaryQuery.this, searcher, termStates, boost);
+			this.matchWeight = matchWeight;
+			this.boundariesField = getField() + PreAnalyzedBoundaries.FIELD_SUFFIX;
+		}
+
+		@Override
+		public void extractTermStates(Map<Term, TermStates> contexts) {
+			matchWeight.extractTermStates(contexts);
+		}
+
+		@Override
+		public void extractTerms(Set<Term> terms) {
+			matchWeight.extractTerms(terms);
+		}
+
+		@Override
+		public boolean isCacheable(LeafReaderContext ctx) {
+			return matchWeight.isCacheable(ctx) && DocValues.isCacheable(ctx, boundariesField);
+		}
+
+		@Override
+		public Spans getSpans(LeafReaderContext context, Postings requiredPostings) throws IOException {
+			Spans matchSpans = matchWeight.getSpans(context, requiredPostings);
+			if (matchSpans == null)
+				return null;
+			BinaryDocValues docValues = DocValues.getBinary(context.reader(), boundariesField);
+			PreAnalyzedBoundaries boundaries = new PreAnalyzedBoundaries();
+			boolean sectionsOnly = boundary == Boundary.SECTION;
+			return new FilterSpans(matchSpans) {
+				private int boundariesDoc = -1;
+
+				@Override
+				protected AcceptStatus accept(Spans candidate) throws IOException {
+					// the table is decoded once per document
+					if (candidate.docID() != boundariesDoc) {
+						boundariesDoc = candidate.docID();
+						if (docValues.advanceExact(boundariesDoc))
+							boundaries.read(docValues.binaryValue());
+						else
+							boundaries.clear();
+					}
+					return boundaries.crosses(candidate.startPosition(), candidate.endPosition(), sectionsOnly)
+							? AcceptStatus.NO : AcceptStatus.YES;
+				}
+			};
+		}
+	}
+}
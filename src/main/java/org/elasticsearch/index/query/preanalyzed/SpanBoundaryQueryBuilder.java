@@ -0,0 +1,208 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.query.preanalyzed;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Objects;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.index.query.SpanQueryBuilder;
+
+/**
+ * <p>
+ * Builds a {@link SpanBoundaryQuery}, e.g.
+ * </p>
+ *
+ * <pre>
+ * "span_boundary" : {
+ *     "match" : {
+ *         "span_near" : {
+ *             "clauses" : [
+ *                 { "span_term" : { "text" : "aspirin" } },
+ *                 { "span_term" : { "text" : "headache" } }
+ *             ],
+ *             "slop" : 1000,
+ *             "in_order" : false
+ *         }
+ *     },
+ *     "boundary" : "sentence"
+ * }
+ * </pre>
+ * <p>
+ * <tt>boundary</tt> is <tt>sentence</tt> (default) or <tt>section</tt>. The
+ * field must be a preanalyzed field with <tt>boundaries</tt>.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class SpanBoundaryQueryBuilder extends AbstractQueryBuilder<SpanBoundaryQueryBuilder>
+		implements SpanQueryBuilder {
+	public static final String NAME = "span_boundary";
+
+	private static final ParseField MATCH_FIELD = new ParseField("match");
+	private static final ParseField BOUNDARY_FIELD = new ParseField("boundary");
+
+	private final SpanQueryBuilder matchBuilder;
+	private SpanBoundaryQuery.Boundary boundary = SpanBoundaryQuery.Boundary.SENTENCE;
+
+	/**
+	 * @param matchBuilder
+	 *            The span query whose matches are restricted.
+	 */
+	public SpanBoundaryQueryBuilder(SpanQueryBuilder matchBuilder) {
+		if (matchBuilder == null) {
+			throw new IllegalArgumentException("inner span query cannot be null");
+		}
+		this.matchBuilder = matchBuilder;
+	}
+
+	/**
+	 * Read from a stream.
+	 */
+	public SpanBoundaryQueryBuilder(StreamInput in) throws IOException {
+		super(in);
+		matchBuilder = (SpanQueryBuilder) in.readNamedWriteable(QueryBuilder.class);
+		boundary = in.readEnum(SpanBoundaryQuery.Boundary.class);
+	}
+
+	@Override
+	protected void doWriteTo(StreamOutput out) throws IOException {
+		out.writeNamedWriteable(matchBuilder);
+		out.writeEnum(boundary);
+	}
+
+	public SpanQueryBuilder innerQuery() {
+		return matchBuilder;
+	}
+
+	public SpanBoundaryQueryBuilder boundary(SpanBoundaryQuery.Boundary boundary) {
+		this.boundary = Objects.requireNonNull(boundary);
+		return this;
+	}
+
+	public SpanBoundaryQuery.Boundary boundary() {
+		return boundary;
+	}
+
+	@Override
+	protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(NAME);
+		builder.field(MATCH_FIELD.getPreferredName());
+		matchBuilder.toXContent(builder, params);
+		builder.field(BOUNDARY_FIELD.getPreferredName(), boundary.name().toLowerCase(Locale.ROOT));
+		printBoostAndQueryName(builder);
+		builder.endObject();
+	}
+
+	public static SpanBoundaryQueryBuilder fromXContent(XContentParser parser) throws IOException {
+		float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+
+		SpanQueryBuilder match = null;
+		SpanBoundaryQuery.Boundary boundary = SpanBoundaryQuery.Boundary.SENTENCE;
+		String queryName = null;
+
+		String currentFieldName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_OBJECT) {
+				if (MATCH_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					QueryBuilder query = parseInnerQueryBuilder(parser);
+					if (query instanceof SpanQueryBuilder == false) {
+						throw new ParsingException(parser.getTokenLocation(), "span_boundary [match] must be of type span query");
+					}
+					match = (SpanQueryBuilder) query;
+					if (match.boost() != AbstractQueryBuilder.DEFAULT_BOOST) {
+						throw new ParsingException(parser.getTokenLocation(), NAME + " [" + currentFieldName + "] "
+								+ "as a nested span clause can't have non-default boost value [" + match.boost() + "]");
+					}
+				} else {
+					throw new ParsingException(parser.getTokenLocation(), "[span_boundary] query does not support [" + currentFieldName + "]");
+				}
+			} else {
+				if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					boost = parser.floatValue();
+				} else if (BOUNDARY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					try {
+						boundary = SpanBoundaryQuery.Boundary.fromString(parser.text());
+					} catch (IllegalArgumentException e) {
+						throw new ParsingException(parser.getTokenLocation(),
+								"[span_boundary] [boundary] must be one of [sentence, section] but was [" + parser.text() + "]");
+					}
+				} else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					queryName = parser.text();
+				} else {
+					throw new ParsingException(parser.getTokenLocation(), "[span_boundary] query does not support [" + currentFieldName + "]");
+				}
+			}
+		}
+		if (match == null) {
+			throw new ParsingException(parser.getTokenLocation(), "span_boundary must have [match] span query clause");
+		}
+		SpanBoundaryQueryBuilder queryBuilder = new SpanBoundaryQueryBuilder(match);
+		queryBuilder.boundary(boundary).boost(boost).queryName(queryName);
+		return queryBuilder;
+	}
+
+	@Override
+	protected Query doToQuery(QueryShardContext context) throws IOException {
+		Query innerSpanQuery = matchBuilder.toQuery(context);
+		assert innerSpanQuery instanceof SpanQuery;
+		String field = ((SpanQuery) innerSpanQuery).getField();
+		DocumentMapper documentMapper = context.getMapperService().documentMapper();
+		Mapper mapper = documentMapper != null ? documentMapper.mappers().getMapper(field) : null;
+		if (mapper instanceof PreAnalyzedMapper == false || !((PreAnalyzedMapper) mapper).boundaries()) {
+			throw new QueryShardException(context,
+					"[" + NAME + "] requires field [" + field + "] to be of type [preanalyzed] with [boundaries] enabled");
+		}
+		return new SpanBoundaryQuery((SpanQuery) innerSpanQuery, boundary);
+	}
+
+	@Override
+	protected int doHashCode() {
+		return Objects.hash(matchBuilder, boundary);
+	}
+
+	@Override
+	protected boolean doEquals(SpanBoundaryQueryBuilder other) {
+		return Objects.equals(matchBuilder, other.matchBuilder) && boundary == other.boundary;
+	}
+
+	@Override
+	public String getWriteableName() {
+		return NAME;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.query.preanalyzed;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.spans.FilterSpans;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedFlagsPayload;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>
+ * Restricts the matches of a span query to those where the flags of every
+ * matching token satisfy a mask. The flags are read from the payloads of
+ * preanalyzed fields with <tt>index_flags</tt> while the spans are iterated,
+ * see {@link PreAnalyzedFlagsPayload}.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class SpanFlagsQuery extends SpanQuery {
+
+	/**
+	 * How the flags of a token are matched against the mask.
+	 */
+	public enum Mode {
+		/** All flags of the mask are set. */
+		ALL,
+		/** At least one flag of the mask is set. */
+		ANY,
+		/** No flag of the mask is set. */
+		NONE;
+
+		boolean matches(int flags, int mask) {
+			switch (this) {
+			case ALL:
+				return (flags & mask) == mask;
+			case ANY:
+				return (flags & mask) != 0;
+			default:
+				return (flags & mask) == 0;
+			}
+		}
+
+		public static Mode fromString(String mode) {
+			return valueOf(mode.toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final SpanQuery match;
+	private final int mask;
+	private final Mode mode;
+
+	public SpanFlagsQuery(SpanQuery match, int mask, Mode mode) {
+		this.match = Objects.requireNonNull(match);
+		this.mask = mask;
+		this.mode = Objects.requireNonNull(mode);
+	}
+
+	public SpanQuery getMatch() {
+		return match;
+	}
+
+	public int getMask() {
+		return mask;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	@Override
+	public String getField() {
+		return match.getField();
+	}
+
+	@Override
+	public SpanWeight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+		SpanWeight matchWeight = match.createWeight(searcher, scoreMode, boost);
+		return new SpanFlagsWeight(matchWeight, searcher, scoreMode.needsScores() ? getTermStates(matchWeight) : null,
+				boost);
+	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		SpanQuery rewritten = (SpanQuery) match.rewrite(reader);
+		if (rewritten != match)
+			return new SpanFlagsQuery(rewritten, mask, mode);
+		return super.rewrite(reader);
+	}
+
+	@Override
+	public String toString(String field) {
+		return "spanFlags(" + match.toString(field) + ", " + mode.name().toLowerCase(Locale.ROOT) + ":0x"
+				+ Integer.toHexString(mask) + ")";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!sameClassAs(other))
+			return false;
+		SpanFlagsQuery that = (SpanFlagsQuery) other;
+		return match.equals(that.match) && mask == that.mask && mode == that.mode;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(classHash(), match, mask, mode);
+	}
+
+	private class SpanFlagsWeight extends SpanWeight {
+		private final SpanWeight matchWeight;
+
+		SpanFlagsWeight(SpanWeight matchWeight, IndexSearcher searcher, Map<Term, TermStates> termStates, float boost)
+				throws IOException {
+			super(SpanFlagsQuery.this, searcher, termStates, boost);
+			this.matchWeight = matchWeight;
+		}
+
+		@Override
+		public void extractTermStates(Map<Term, TermStates> contexts) {
+			matchWeight.extractTermStates(contexts);
+		}
+
+		@Override
+		public void extractTerms(Set<Term> terms) {
+			matchWeight.extractTerms(terms);
+		}
+
+		@Override
+		public boolean isCacheable(LeafReaderContext ctx) {
+			return matchWeight.isCacheable(ctx);
+		}
+
+		@Override
+		public Spans getSpans(LeafReaderContext context, Postings requiredPostings) throws IOException {
+			Spans matchSpans = matchWeight.getSpans(context, requiredPostings.atLeast(Postings.PAYLOADS));
+			if (matchSpans == null)
+				return null;
+			FlagsChecker checker = new FlagsChecker();
+			return new FilterSpans(matchSpans) {
+				@Override
+				protected AcceptStatus accept(Spans candidate) throws IOException {
+					checker.reset();
+					candidate.collect(checker);
+					return checker.matches ? AcceptStatus.YES : AcceptStatus.NO;
+				}
+			};
+		}
+	}
+
+	private class FlagsChecker implements SpanCollector {
+		private boolean matches;
+
+		@Override
+		public void collectLeaf(PostingsEnum postings, int position, Term term) throws IOException {
+			if (matches && !mode.matches(PreAnalyzedFlagsPayload.decodeFlags(postings.getPayload()), mask))
+				matches = false;
+		}
+
+		@Override
+		public void reset() {
+			matches = true;
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.query.preanalyzed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedDictionary;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.index.query.SpanQueryBuilder;
+
+/**
+ * <p>
+ * Builds a {@link SpanFlagsQuery}, e.g.
+ * </p>
+ *
+ * <pre>
+ * "span_flags" : {
+ *     "match" : { "span_term" : { "text" : "smoking" } },
+ *     "flags" : ["negated"],
+ *     "mode" : "none"
+ * }
+ * </pre>
+ * <p>
+ * <tt>flags</tt> is either the integer flag mask or an array of names of the
+ * <tt>flag_dictionary</tt> of the field. <tt>mode</tt> is one of
+ * <tt>all</tt> (default), <tt>any</tt> or <tt>none</tt>. The field must be a
+ * preanalyzed field with <tt>index_flags</tt>.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class SpanFlagsQueryBuilder extends AbstractQueryBuilder<SpanFlagsQueryBuilder> implements SpanQueryBuilder {
+	public static final String NAME = "span_flags";
+
+	private static final ParseField MATCH_FIELD = new ParseField("match");
+	private static final ParseField FLAGS_FIELD = new ParseField("flags");
+	private static final ParseField MODE_FIELD = new ParseField("mode");
+
+	private final SpanQueryBuilder matchBuilder;
+	private final int mask;
+	private final String[] flagNames;
+	private SpanFlagsQuery.Mode mode = SpanFlagsQuery.Mode.ALL;
+
+	/**
+	 * @param matchBuilder
+	 *            The span query whose matches are restricted.
+	 * @param mask
+	 *            The flag bits to check.
+	 */
+	public SpanFlagsQueryBuilder(SpanQueryBuilder matchBuilder, int mask) {
+		this(matchBuilder, mask, Strings.EMPTY_ARRAY);
+	}
+
+	/**
+	 * @param matchBuilder
+	 *            The span query whose matches are restricted.
+	 * @param flagNames
+	 *            The names of the flags to check as given by the
+	 *            <tt>flag_dictionary</tt> of the field.
+	 */
+	public SpanFlagsQueryBuilder(SpanQueryBuilder matchBuilder, String... flagNames) {
+		this(matchBuilder, 0, flagNames);
+	}
+
+	private SpanFlagsQueryBuilder(SpanQueryBuilder matchBuilder, int mask, String[] flagNames) {
+		if (matchBuilder == null) {
+			throw new IllegalArgumentException("inner span query cannot be null");
+		}
+		this.matchBuilder = matchBuilder;
+		this.mask = mask;
+		this.flagNames = Objects.requireNonNull(flagNames);
+	}
+
+	/**
+	 * Read from a stream.
+	 */
+	public SpanFlagsQueryBuilder(StreamInput in) throws IOException {
+		super(in);
+		matchBuilder = (SpanQueryBuilder) in.readNamedWriteable(QueryBuilder.class);
+		mask = in.readInt();
+		flagNames = in.readStringArray();
+		mode = in.readEnum(SpanFlagsQuery.Mode.class);
+	}
+
+	@Override
+	protected void doWriteTo(StreamOutput out) throws IOException {
+		out.writeNamedWriteable(matchBuilder);
+		out.writeInt(mask);
+		out.writeStringArray(flagNames);
+		out.writeEnum(mode);
+	}
+
+	public SpanQueryBuilder innerQuery() {
+		return matchBuilder;
+	}
+
+	public SpanFlagsQueryBuilder mode(SpanFlagsQuery.Mode mode) {
+		this.mode = Objects.requireNonNull(mode);
+		return this;
+	}
+
+	public SpanFlagsQuery.Mode mode() {
+		return mode;
+	}
+
+	@Override
+	protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(NAME);
+		builder.field(MATCH_FIELD.getPreferredName());
+		matchBuilder.toXContent(builder, params);
+		if (flagNames.length > 0)
+			builder.array(FLAGS_FIELD.getPreferredName(), flagNames);
+		else
+			builder.field(FLAGS_FIELD.getPreferredName(), mask);
+		builder.field(MODE_FIELD.getPreferredName(), mode.name().toLowerCase(Locale.ROOT));
+		printBoostAndQueryName(builder);
+		builder.endObject();
+	}
+
+	public static SpanFlagsQueryBuilder fromXContent(XContentParser parser) throws IOException {
+		float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+
+		SpanQueryBuilder match = null;
+		Integer mask = null;
+		List<String> flagNames = null;
+		SpanFlagsQuery.Mode mode = SpanFlagsQuery.Mode.ALL;
+		String queryName = null;
+
+		String currentFieldName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_OBJECT) {
+				if (MATCH_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					QueryBuilder query = parseInnerQueryBuilder(parser);
+					if (query instanceof SpanQueryBuilder == false) {
+						throw new ParsingException(parser.getTokenLocation(), "span_flags [match] must be of type span query");
+					}
+					match = (SpanQueryBuilder) query;
+					if (match.boost() != AbstractQueryBuilder.DEFAULT_BOOST) {
+						throw new ParsingException(parser.getTokenLocation(), NAME + " [" + currentFieldName + "] "
+								+ "as a nested span clause can't have non-default boost value [" + match.boost() + "]");
+					}
+				} else {
+					throw new ParsingException(parser.getTokenLocation(), "[span_flags] query does not support [" + currentFieldName + "]");
+				}
+			} else if (token == XContentParser.Token.START_ARRAY) {
+				if (FLAGS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					flagNames = new ArrayList<>();
+					while (parser.nextToken() != XContentParser.Token.END_ARRAY)
+						flagNames.add(parser.text());
+				} else {
+					throw new ParsingException(parser.getTokenLocation(), "[span_flags] query does not support [" + currentFieldName + "]");
+				}
+			} else {
+				if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					boost = parser.floatValue();
+				} else if (FLAGS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					mask = parser.intValue();
+				} else if (MODE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					try {
+						mode = SpanFlagsQuery.Mode.fromString(parser.text());
+					} catch (IllegalArgumentException e) {
+						throw new ParsingException(parser.getTokenLocation(),
+								"[span_flags] [mode] must be one of [all, any, none] but was [" + parser.text() + "]");
+					}
+				} else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					queryName = parser.text();
+				} else {
+					throw new ParsingException(parser.getTokenLocation(), "[span_flags] query does not support [" + currentFieldName + "]");
+				}
+			}
+		}
+		if (match == null) {
+			throw new ParsingException(parser.getTokenLocation(), "span_flags must have [match] span query clause");
+		}
+		if (mask == null && flagNames == null) {
+			throw new ParsingException(parser.getTokenLocation(), "span_flags must have [flags] set for it");
+		}
+		SpanFlagsQueryBuilder queryBuilder = flagNames != null
+				? new SpanFlagsQueryBuilder(match, flagNames.toArray(Strings.EMPTY_ARRAY))
+				: new SpanFlagsQueryBuilder(match, mask);
+		queryBuilder.mode(mode).boost(boost).queryName(queryName);
+		return queryBuilder;
+	}
+
+	@Override
+	protected Query doToQuery(QueryShardContext context) throws IOException {
+		Query innerSpanQuery = matchBuilder.toQuery(context);
+		assert innerSpanQuery instanceof SpanQuery;
+		String field = ((SpanQuery) innerSpanQuery).getField();
+		PreAnalyzedMapper mapper = preAnalyzedMapper(context, field);
+		if (mapper == null || !mapper.indexFlags()) {
+			throw new QueryShardException(context,
+					"[" + NAME + "] requires field [" + field + "] to be of type [preanalyzed] with [index_flags] enabled");
+		}
+		int flags = mask;
+		for (String flagName : flagNames) {
+			PreAnalyzedDictionary dictionary = mapper.flagDictionary();
+			int code = dictionary != null ? dictionary.code(flagName.toCharArray(), 0, flagName.length()) : -1;
+			if (code < 0) {
+				throw new QueryShardException(context, "[" + NAME + "] unknown flag [" + flagName
+						+ "], the flag_dictionary of field [" + field + "] is " + dictionary);
+			}
+			flags |= 1 << code;
+		}
+		return new SpanFlagsQuery((SpanQuery) innerSpanQuery, flags, mode);
+	}
+
+	private static PreAnalyzedMapper preAnalyzedMapper(QueryShardContext context, String field) {
+		DocumentMapper documentMapper = context.getMapperService().documentMapper();
+		if (documentMapper == null)
+			return null;
+		Mapper mapper = documentMapper.mappers().getMapper(field);
+		return mapper instanceof PreAnalyzedMapper ? (PreAnalyzedMapper) mapper : null;
+	}
+
+	@Override
+	protected int doHashCode() {
+		return Objects.hash(matchBuilder, mask, Arrays.hashCode(flagNames), mode);
+	}
+
+	@Override
+	protected boolean doEquals(SpanFlagsQueryBuilder other) {
+		return Objects.equals(matchBuilder, other.matchBuilder) && mask == other.mask
+				&& Arrays.equals(flagNames, other.flagNames) && mode == other.mode;
+	}
+
+	@Override
+	public String getWriteableName() {
+		return NAME;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.rest.action.admin.indices.preanalyzed;
+
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsAction;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * <p>
+ * Returns the token statistics of preanalyzed fields:
+ * </p>
+ *
+ * <pre>
+ * GET /{index}/_preanalyzed/stats?fields=title,abstract&amp;sample_size=1000
+ * </pre>
+ *
+ * @author faessler
+ *
+ */
+public class RestPreAnalyzedStatsAction extends BaseRestHandler {
+
+	public RestPreAnalyzedStatsAction(Settings settings, RestController controller) {
+		super(settings);
+		controller.registerHandler(GET, "/_preanalyzed/stats", this);
+		controller.registerHandler(GET, "/{index}/_preanalyzed/stats", this);
+	}
+
+	@Override
+	public String getName() {
+		return "preanalyzed_stats_action";
+	}
+
+	@Override
+	protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+		PreAnalyzedStatsRequest statsRequest = new PreAnalyzedStatsRequest(
+				Strings.splitStringByCommaToArray(request.param("index")));
+		statsRequest.indicesOptions(IndicesOptions.fromRequest(request, statsRequest.indicesOptions()));
+		statsRequest.fields(Strings.splitStringByCommaToArray(request.param("fields")));
+		statsRequest.sampleSize(request.paramAsInt("sample_size", statsRequest.sampleSize()));
+		return channel -> client.execute(PreAnalyzedStatsAction.INSTANCE, statsRequest,
+				new RestToXContentListener<>(channel));
+	}
+}
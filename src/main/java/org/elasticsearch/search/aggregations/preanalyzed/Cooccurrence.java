@@ -0,0 +1,65 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.search.aggregations.preanalyzed;
+
+import java.util.List;
+
+import org.elasticsearch.search.aggregations.Aggregation;
+
+/**
+ * The result of a {@link CooccurrenceAggregationBuilder
+ * preanalyzed_cooccurrence} aggregation: the pairs of terms that most often
+ * occur within the window of each other.
+ *
+ * @author faessler
+ *
+ */
+public interface Cooccurrence extends Aggregation {
+
+	/**
+	 * Two distinct terms occurring within the window of each other.
+	 */
+	interface Pair {
+
+		/**
+		 * @return The lexicographically smaller term of the pair.
+		 */
+		String getTerm1();
+
+		/**
+		 * @return The lexicographically greater term of the pair.
+		 */
+		String getTerm2();
+
+		/**
+		 * @return The number of documents in which the pair occurs.
+		 */
+		long getDocCount();
+
+		/**
+		 * @return The number of occurrences of the pair.
+		 */
+		long getCount();
+	}
+
+	/**
+	 * @return The pairs sorted by descending document count.
+	 */
+	List<? extends Pair> getPairs();
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.search.aggregations.preanalyzed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregatorFactories.Builder;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * <p>
+ * Counts the pairs of terms of a preanalyzed field that occur within
+ * <tt>window</tt> positions of each other, e.g.
+ * </p>
+ *
+ * <pre>
+ * "genes" : {
+ *     "preanalyzed_cooccurrence" : {
+ *         "field" : "text",
+ *         "prefix" : "GENE:",
+ *         "window" : 5,
+ *         "size" : 10
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * The terms taking part are given either by <tt>terms</tt>, a list of exact
+ * terms, or by <tt>prefix</tt>, of which at most <tt>max_expansions</tt>
+ * terms per segment are used. The pairs are ranked by the number of documents
+ * they occur in. Each shard returns its top <tt>shard_size</tt> pairs, so
+ * counts of pairs that are not in the top list of every shard may be too low,
+ * just like with the <tt>terms</tt> aggregation. The field must be a
+ * preanalyzed field indexed with positions.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+public class CooccurrenceAggregationBuilder extends AbstractAggregationBuilder<CooccurrenceAggregationBuilder> {
+	public static final String NAME = "preanalyzed_cooccurrence";
+
+	public static final int DEFAULT_WINDOW = 5;
+	public static final int DEFAULT_SIZE = 10;
+	public static final int DEFAULT_MAX_EXPANSIONS = 1024;
+
+	static final ParseField FIELD_FIELD = new ParseField("field");
+	static final ParseField TERMS_FIELD = new ParseField("terms");
+	static final ParseField PREFIX_FIELD = new ParseField("prefix");
+	static final ParseField WINDOW_FIELD = new ParseField("window");
+	static final ParseField SIZE_FIELD = new ParseField("size");
+	static final ParseField SHARD_SIZE_FIELD = new ParseField("shard_size");
+	static final ParseField MAX_EXPANSIONS_FIELD = new ParseField("max_expansions");
+	static final ParseField MIN_DOC_COUNT_FIELD = new ParseField("min_doc_count");
+
+	private String field;
+	private String[] terms = Strings.EMPTY_ARRAY;
+	private String prefix;
+	private int window = DEFAULT_WINDOW;
+	private int size = DEFAULT_SIZE;
+	private int shardSize = -1;
+	private int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+	private long minDocCount = 1;
+
+	public CooccurrenceAggregationBuilder(String name) {
+		super(name);
+	}
+
+	protected CooccurrenceAggregationBuilder(CooccurrenceAggregationBuilder clone, Builder factoriesBuilder,
+			Map<String, Object> metaData) {
+		super(clone, factoriesBuilder, metaData);
+		this.field = clone.field;
+		this.terms = clone.terms;
+		this.prefix = clone.prefix;
+		this.window = clone.window;
+		this.size = clone.size;
+		this.shardSize = clone.shardSize;
+		this.maxExpansions = clone.maxExpansions;
+		this.minDocCount = clone.minDocCount;
+	}
+
+	@Override
+	protected AggregationBuilder shallowCopy(Builder factoriesBuilder, Map<String, Object> metaData) {
+		return new CooccurrenceAggregationBuilder(this, factoriesBuilder, metaData);
+	}
+
+	/**
+	 * Read from a stream.
+	 */
+	public CooccurrenceAggregationBuilder(StreamInput in) throws IOException {
+		super(in);
+		field = in.readString();
+		terms = in.readStringArray();
+		prefix = in.readOptionalString();
+		window = in.readVInt();
+		size = in.readVInt();
+		shardSize = in.readInt();
+		maxExpansions = in.readVInt();
+		minDocCount = in.readVLong();
+	}
+
+	@Override
+	protected void doWriteTo(StreamOutput out) throws IOException {
+		out.writeString(field);
+		out.writeStringArray(terms);
+		out.writeOptionalString(prefix);
+		out.writeVInt(window);
+		out.writeVInt(size);
+		out.writeInt(shardSize);
+		out.writeVInt(maxExpansions);
+		out.writeVLong(minDocCount);
+	}
+
+	@Override
+	public CooccurrenceAggregationBuilder subAggregations(Builder subFactories) {
+		throw new AggregationInitializationException(
+				"Aggregator [" + name + "] of type [" + getType() + "] cannot accept sub-aggregations");
+	}
+
+	public CooccurrenceAggregationBuilder field(String field) {
+		this.field = Objects.requireNonNull(field, "[field] must not be null");
+		return this;
+	}
+
+	public String field() {
+		return field;
+	}
+
+	/**
+	 * Sets the exact terms whose co-occurrences are counted.
+	 */
+	public CooccurrenceAggregationBuilder terms(String... terms) {
+		this.terms = Objects.requireNonNull(terms, "[terms] must not be null");
+		return this;
+	}
+
+	public String[] terms() {
+		return terms;
+	}
+
+	/**
+	 * Sets the prefix of the terms whose co-occurrences are counted.
+	 */
+	public CooccurrenceAggregationBuilder prefix(String prefix) {
+		this.prefix = prefix;
+		return this;
+	}
+
+	public String prefix() {
+		return prefix;
+	}
+
+	/**
+	 * Sets the maximum position distance of two co-occurring terms.
+	 */
+	public CooccurrenceAggregationBuilder window(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("[window] must be greater than 0. Found [" + window + "] in [" + name + "]");
+		}
+		this.window = window;
+		return this;
+	}
+
+	public int window() {
+		return window;
+	}
+
+	/**
+	 * Sets the number of pairs that are returned.
+	 */
+	public CooccurrenceAggregationBuilder size(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("[size] must be greater than 0. Found [" + size + "] in [" + name + "]");
+		}
+		this.size = size;
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the number of pairs that each shard returns. Defaults to
+	 * <tt>size * 1.5 + 10</tt>.
+	 */
+	public CooccurrenceAggregationBuilder shardSize(int shardSize) {
+		if (shardSize < 1) {
+			throw new IllegalArgumentException(
+					"[shard_size] must be greater than 0. Found [" + shardSize + "] in [" + name + "]");
+		}
+		this.shardSize = shardSize;
+		return this;
+	}
+
+	public int shardSize() {
+		return shardSize;
+	}
+
+	/**
+	 * Sets the maximum number of terms per segment a <tt>prefix</tt> expands
+	 * to.
+	 */
+	public CooccurrenceAggregationBuilder maxExpansions(int maxExpansions) {
+		if (maxExpansions < 1) {
+			throw new IllegalArgumentException(
+					"[max_expansions] must be greater than 0. Found [" + maxExpansions + "] in [" + name + "]");
+		}
+		this.maxExpansions = maxExpansions;
+		return this;
+	}
+
+	public int maxExpansions() {
+		return maxExpansions;
+	}
+
+	public CooccurrenceAggregationBuilder minDocCount(long minDocCount) {
+		if (minDocCount < 1) {
+			throw new IllegalArgumentException(
+					"[min_doc_count] must be greater than 0. Found [" + minDocCount + "] in [" + name + "]");
+		}
+		this.minDocCount = minDocCount;
+		return this;
+	}
+
+	public long minDocCount() {
+		return minDocCount;
+	}
+
+	@Override
+	protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
+			Builder subFactoriesBuilder) throws IOException {
+		if (field == null) {
+			throw new IllegalArgumentException("[" + NAME + "] [" + name + "] requires [field] to be set");
+		}
+		if ((prefix == null) == (terms.length == 0)) {
+			throw new IllegalArgumentException(
+					"[" + NAME + "] [" + name + "] requires exactly one of [terms] or [prefix] to be set");
+		}
+		int shardSize = this.shardSize > 0 ? Math.max(this.shardSize, size) : (int) (size * 1.5 + 10);
+		return new CooccurrenceAggregatorFactory(name, field, terms, prefix, window, size, shardSize, maxExpansions,
+				minDocCount, context, parent, subFactoriesBuilder, metaData);
+	}
+
+	@Override
+	protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject();
+		builder.field(FIELD_FIELD.getPreferredName(), field);
+		if (prefix != null)
+			builder.field(PREFIX_FIELD.getPreferredName(), prefix);
+		else
+			builder.array(TERMS_FIELD.getPreferredName(), terms);
+		builder.field(WINDOW_FIELD.getPreferredName(), window);
+		builder.field(SIZE_FIELD.getPreferredName(), size);
+		if (shardSize > 0)
+			builder.field(SHARD_SIZE_FIELD.getPreferredName(), shardSize);
+		builder.field(MAX_EXPANSIONS_FIELD.getPreferredName(), maxExpansions);
+		builder.field(MIN_DOC_COUNT_FIELD.getPreferredName(), minDocCount);
+		builder.endObject();
+		return builder;
+	}
+
+	public static CooccurrenceAggregationBuilder parse(String aggregationName, XContentParser parser)
+			throws IOException {
+		CooccurrenceAggregationBuilder builder = new CooccurrenceAggregationBuilder(aggregationName);
+		String currentFieldName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_ARRAY) {
+				if (TERMS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					List<String> terms = new ArrayList<>();
+					while (parser.nextToken() != XContentParser.Token.END_ARRAY)
+						terms.add(parser.text());
+					builder.terms(terms.toArray(Strings.EMPTY_ARRAY));
+				} else {
+					throw new ParsingException(parser.getTokenLocation(),
+							"[" + NAME + "] aggregation does not support [" + currentFieldName + "]");
+				}
+			} else if (token.isValue()) {
+				if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.field(parser.text());
+				} else if (PREFIX_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.prefix(parser.text());
+				} else if (WINDOW_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.window(parser.intValue());
+				} else if (SIZE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.size(parser.intValue());
+				} else if (SHARD_SIZE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.shardSize(parser.intValue());
+				} else if (MAX_EXPANSIONS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.maxExpansions(parser.intValue());
+				} else if (MIN_DOC_COUNT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+					builder.minDocCount(parser.longValue());
+				} else {
+					throw new ParsingException(parser.getTokenLocation(),
+							"[" + NAME + "] aggregation does not support [" + currentFieldName + "]");
+				}
+			} else {
+				throw new ParsingException(parser.getTokenLocation(),
+						"[" + NAME + "] aggregation does not support [" + currentFieldName + "]");
+			}
+		}
+		return builder;
+	}
+
+	@Override
+	protected int doHashCode() {
+		return Objects.hash(field, Arrays.hashCode(terms), prefix, window, size, shardSize, maxExpansions,
+				minDocCount);
+	}
+
+	@Override
+	protected boolean doEquals(Object obj) {
+		CooccurrenceAggregationBuilder other = (CooccurrenceAggregationBuilder) obj;
+		return Objects.equals(field, other.field) && Arrays.equals(terms, other.terms)
+				&& Objects.equals(prefix, other.prefix) && window == other.window && size == other.size
+				&& shardSize == other.shardSize && maxExpansions == other.maxExpansions
+				&& minDocCount == other.minDocCount;
+	}
+
+	@Override
+	public String getType() {
+		return NAME;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.search.aggregations.preanalyzed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongLongHashMap;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongLongCursor;
+
+/**
+ * <p>
+ * Counts co-occurring term pairs by walking the positions of the matching
+ * terms of each collected document.
+ * </p>
+ * <p>
+ * For each segment, the matching terms are resolved once through the terms
+ * dictionary and mapped to shard-wide term ids. For each document, the
+ * positions of all matching terms are gathered as
+ * <tt>position &lt;&lt; 32 | term id</tt>, sorted, and every two distinct
+ * terms within the window are counted as a pair keyed by
+ * <tt>min id &lt;&lt; 32 | max id</tt>. Counts are kept in primitive hash
+ * maps; only the top <tt>shard_size</tt> pairs leave the shard.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+class CooccurrenceAggregator extends MetricsAggregator {
+
+	/**
+	 * Heap cost of the keys and values of one pair in the two count maps,
+	 * charged to the request circuit breaker.
+	 */
+	private static final long PAIR_BYTES = 4 * Long.BYTES;
+
+	private final String field;
+	private final BytesRef[] terms;
+	private final BytesRef prefix;
+	private final int window;
+	private final int size;
+	private final int shardSize;
+	private final int maxExpansions;
+	private final long minDocCount;
+
+	private final BytesRefHash termIds = new BytesRefHash();
+	private final LongLongHashMap docCounts = new LongLongHashMap();
+	private final LongLongHashMap counts = new LongLongHashMap();
+	private final LongHashSet docPairs = new LongHashSet();
+	private long[] entries = new long[64];
+
+	CooccurrenceAggregator(String name, String field, String[] terms, String prefix, int window, int size,
+			int shardSize, int maxExpansions, long minDocCount, SearchContext context, Aggregator parent,
+			List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+		super(name, context, parent, pipelineAggregators, metaData);
+		this.field = field;
+		this.terms = new BytesRef[terms.length];
+		for (int i = 0; i < terms.length; i++)
+			this.terms[i] = new BytesRef(terms[i]);
+		// Seeking the terms in order lets the terms enum reuse its state.
+		Arrays.sort(this.terms);
+		this.prefix = prefix != null ? new BytesRef(prefix) : null;
+		this.window = window;
+		this.size = size;
+		this.shardSize = shardSize;
+		this.maxExpansions = maxExpansions;
+		this.minDocCount = minDocCount;
+	}
+
+	@Override
+	public LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+		Terms fieldTerms = field != null ? ctx.reader().terms(field) : null;
+		if (fieldTerms == null || !fieldTerms.hasPositions())
+			return LeafBucketCollector.NO_OP_COLLECTOR;
+		List<PostingsEnum> postings = new ArrayList<>();
+		int[] ids = new int[8];
+		TermsEnum termsEnum = fieldTerms.iterator();
+		if (prefix == null) {
+			for (BytesRef term : terms) {
+				if (termsEnum.seekExact(term)) {
+					ids = ArrayUtil.grow(ids, postings.size() + 1);
+					ids[postings.size()] = termId(term);
+					postings.add(termsEnum.postings(null, PostingsEnum.POSITIONS));
+				}
+			}
+		} else if (termsEnum.seekCeil(prefix) != TermsEnum.SeekStatus.END) {
+			BytesRef term = termsEnum.term();
+			while (term != null && StringHelper.startsWith(term, prefix) && postings.size() < maxExpansions) {
+				ids = ArrayUtil.grow(ids, postings.size() + 1);
+				ids[postings.size()] = termId(term);
+				postings.add(termsEnum.postings(null, PostingsEnum.POSITIONS));
+				term = termsEnum.next();
+			}
+		}
+		if (postings.size() < 2)
+			return LeafBucketCollector.NO_OP_COLLECTOR;
+		PostingsEnum[] postingsArray = postings.toArray(new PostingsEnum[postings.size()]);
+		int[] termIdsArray = ids;
+		return new LeafBucketCollectorBase(sub, null) {
+			@Override
+			public void collect(int doc, long bucket) throws IOException {
+				assert bucket == 0;
+				collectPairs(doc, postingsArray, termIdsArray);
+			}
+		};
+	}
+
+	private int termId(BytesRef term) {
+		int id = termIds.add(term);
+		return id >= 0 ? id : -1 - id;
+	}
+
+	private void collectPairs(int doc, PostingsEnum[] postings, int[] ids) throws IOException {
+		int numEntries = 0;
+		for (int i = 0; i < postings.length; i++) {
+			PostingsEnum postingsEnum = postings[i];
+			if (postingsEnum.docID() < doc)
+				postingsEnum.advance(doc);
+			if (postingsEnum.docID() != doc)
+				continue;
+			int freq = postingsEnum.freq();
+			entries = ArrayUtil.grow(entries, numEntries + freq);
+			for (int j = 0; j < freq; j++)
+				entries[numEntries++] = (long) postingsEnum.nextPosition() << 32 | ids[i];
+		}
+		if (numEntries < 2)
+			return;
+		Arrays.sort(entries, 0, numEntries);
+		docPairs.clear();
+		for (int i = 0; i < numEntries; i++) {
+			int position = (int) (entries[i] >>> 32);
+			int id = (int) entries[i];
+			for (int j = i + 1; j < numEntries && (int) (entries[j] >>> 32) - position <= window; j++) {
+				int otherId = (int) entries[j];
+				if (otherId == id)
+					continue;
+				long key = id < otherId ? (long) id << 32 | otherId : (long) otherId << 32 | id;
+				if (counts.addTo(key, 1) == 1)
+					addRequestCircuitBreakerBytes(PAIR_BYTES);
+				docPairs.add(key);
+			}
+		}
+		for (LongCursor cursor : docPairs)
+			docCounts.addTo(cursor.value, 1);
+	}
+
+	@Override
+	public InternalAggregation buildAggregation(long bucket) throws IOException {
+		assert bucket == 0;
+		PriorityQueue<long[]> queue = new PriorityQueue<long[]>(Math.min(shardSize, docCounts.size())) {
+			@Override
+			protected boolean lessThan(long[] a, long[] b) {
+				if (a[1] != b[1])
+					return a[1] < b[1];
+				if (a[2] != b[2])
+					return a[2] < b[2];
+				return a[0] > b[0];
+			}
+		};
+		long[] spare = null;
+		for (LongLongCursor cursor : docCounts) {
+			if (spare == null)
+				spare = new long[3];
+			spare[0] = cursor.key;
+			spare[1] = cursor.value;
+			spare[2] = counts.get(cursor.key);
+			spare = queue.insertWithOverflow(spare);
+		}
+		InternalCooccurrence.Pair[] pairs = new InternalCooccurrence.Pair[queue.size()];
+		for (int i = pairs.length - 1; i >= 0; i--) {
+			long[] top = queue.pop();
+			BytesRef term1 = BytesRef.deepCopyOf(termIds.get((int) (top[0] >>> 32), new BytesRef()));
+			BytesRef term2 = BytesRef.deepCopyOf(termIds.get((int) top[0], new BytesRef()));
+			pairs[i] = new InternalCooccurrence.Pair(term1, term2, top[1], top[2]);
+		}
+		return new InternalCooccurrence(name, Arrays.asList(pairs), size, minDocCount, pipelineAggregators(),
+				metaData());
+	}
+
+	@Override
+	public InternalAggregation buildEmptyAggregation() {
+		return new InternalCooccurrence(name, Collections.emptyList(), size, minDocCount, pipelineAggregators(),
+				metaData());
+	}
+
+	@Override
+	public void doClose() {
+		termIds.close();
+	}
+}
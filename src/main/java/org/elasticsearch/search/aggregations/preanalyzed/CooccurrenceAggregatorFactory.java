@@ -0,0 +1,80 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.search.aggregations.preanalyzed;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexOptions;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.preanalyzed.PreAnalyzedMapper;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * @author faessler
+ *
+ */
+class CooccurrenceAggregatorFactory extends AggregatorFactory<CooccurrenceAggregatorFactory> {
+
+	private final String field;
+	private final String[] terms;
+	private final String prefix;
+	private final int window;
+	private final int size;
+	private final int shardSize;
+	private final int maxExpansions;
+	private final long minDocCount;
+	private final boolean mapped;
+
+	CooccurrenceAggregatorFactory(String name, String field, String[] terms, String prefix, int window, int size,
+			int shardSize, int maxExpansions, long minDocCount, SearchContext context, AggregatorFactory<?> parent,
+			AggregatorFactories.Builder subFactoriesBuilder, Map<String, Object> metaData) throws IOException {
+		super(name, context, parent, subFactoriesBuilder, metaData);
+		this.field = field;
+		this.terms = terms;
+		this.prefix = prefix;
+		this.window = window;
+		this.size = size;
+		this.shardSize = shardSize;
+		this.maxExpansions = maxExpansions;
+		this.minDocCount = minDocCount;
+		MappedFieldType fieldType = context.getQueryShardContext().fieldMapper(field);
+		if (fieldType != null && (!PreAnalyzedMapper.CONTENT_TYPE.equals(fieldType.typeName())
+				|| fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0)) {
+			throw new IllegalArgumentException("[" + CooccurrenceAggregationBuilder.NAME + "] requires field [" + field
+					+ "] to be of type [" + PreAnalyzedMapper.CONTENT_TYPE + "] and indexed with positions");
+		}
+		this.mapped = fieldType != null;
+	}
+
+	@Override
+	protected Aggregator createInternal(Aggregator parent, boolean collectsFromSingleBucket,
+			List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) throws IOException {
+		if (collectsFromSingleBucket == false) {
+			return asMultiBucketAggregator(this, context, parent);
+		}
+		return new CooccurrenceAggregator(name, mapped ? field : null, terms, prefix, window, size, shardSize,
+				maxExpansions, minDocCount, context, parent, pipelineAggregators, metaData);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.search.aggregations.preanalyzed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+/**
+ * @author faessler
+ *
+ */
+public class InternalCooccurrence extends InternalAggregation implements Cooccurrence {
+
+	/**
+	 * Orders pairs by descending document count, then by descending number of
+	 * occurrences, then by their terms.
+	 */
+	static final Comparator<Pair> ORDER = Comparator.comparingLong(Pair::getDocCount).reversed()
+			.thenComparing(Comparator.comparingLong(Pair::getCount).reversed())
+			.thenComparing(p -> p.term1).thenComparing(p -> p.term2);
+
+	public static class Pair implements Cooccurrence.Pair, Writeable {
+		private final BytesRef term1;
+		private final BytesRef term2;
+		private final long docCount;
+		private final long count;
+
+		Pair(BytesRef term1, BytesRef term2, long docCount, long count) {
+			boolean ordered = term1.compareTo(term2) < 0;
+			this.term1 = ordered ? term1 : term2;
+			this.term2 = ordered ? term2 : term1;
+			this.docCount = docCount;
+			this.count = count;
+		}
+
+		Pair(StreamInput in) throws IOException {
+			term1 = in.readBytesRef();
+			term2 = in.readBytesRef();
+			docCount = in.readVLong();
+			count = in.readVLong();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			out.writeBytesRef(term1);
+			out.writeBytesRef(term2);
+			out.writeVLong(docCount);
+			out.writeVLong(count);
+		}
+
+		@Override
+		public String getTerm1() {
+			return term1.utf8ToString();
+		}
+
+		@Override
+		public String getTerm2() {
+			return term2.utf8ToString();
+		}
+
+		@Override
+		public long getDocCount() {
+			return docCount;
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(term1, term2, docCount, count);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			Pair other = (Pair) obj;
+			return term1.equals(other.term1) && term2.equals(other.term2) && docCount == other.docCount
+					&& count == other.count;
+		}
+	}
+
+	private final List<Pair> pairs;
+	private final int size;
+	private final long minDocCount;
+
+	InternalCooccurrence(String name, List<Pair> pairs, int size, long minDocCount,
+			List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+		super(name, pipelineAggregators, metaData);
+		this.pairs = pairs;
+		this.size = size;
+		this.minDocCount = minDocCount;
+	}
+
+	/**
+	 * Read from a stream.
+	 */
+	public InternalCooccurrence(StreamInput in) throws IOException {
+		super(in);
+		pairs = in.readList(Pair::new);
+		size = in.readVInt();
+		minDocCount = in.readVLong();
+	}
+
+	@Override
+	protected void doWriteTo(StreamOutput out) throws IOException {
+		out.writeList(pairs);
+		out.writeVInt(size);
+		out.writeVLong(minDocCount);
+	}
+
+	@Override
+	public String getWriteableName() {
+		return CooccurrenceAggregationBuilder.NAME;
+	}
+
+	@Override
+	public List<Pair> getPairs() {
+		return pairs;
+	}
+
+	@Override
+	public InternalCooccurrence doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+		Map<Tuple<BytesRef, BytesRef>, long[]> merged = new HashMap<>();
+		for (InternalAggregation aggregation : aggregations) {
+			for (Pair pair : ((InternalCooccurrence) aggregation).pairs) {
+				long[] sums = merged.computeIfAbsent(new Tuple<>(pair.term1, pair.term2), k -> new long[2]);
+				sums[0] += pair.docCount;
+				sums[1] += pair.count;
+			}
+		}
+		List<Pair> reduced = new ArrayList<>(merged.size());
+		for (Map.Entry<Tuple<BytesRef, BytesRef>, long[]> entry : merged.entrySet()) {
+			long[] sums = entry.getValue();
+			if (reduceContext.isFinalReduce() && sums[0] < minDocCount)
+				continue;
+			reduced.add(new Pair(entry.getKey().v1(), entry.getKey().v2(), sums[0], sums[1]));
+		}
+		reduced.sort(ORDER);
+		if (reduced.size() > size)
+			reduced = new ArrayList<>(reduced.subList(0, size));
+		return new InternalCooccurrence(name, reduced, size, minDocCount, pipelineAggregators(), getMetaData());
+	}
+
+	@Override
+	public Object getProperty(List<String> path) {
+		if (path.isEmpty()) {
+			return this;
+		} else if (path.size() == 1 && "_pair_count".equals(path.get(0))) {
+			return pairs.size();
+		} else {
+			throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+		}
+	}
+
+	@Override
+	public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+		builder.startArray("pairs");
+		for (Pair pair : pairs) {
+			builder.startObject();
+			builder.array("terms", pair.getTerm1(), pair.getTerm2());
+			builder.field(CommonFields.DOC_COUNT.getPreferredName(), pair.docCount);
+			builder.field("count", pair.count);
+			builder.endObject();
+		}
+		builder.endArray();
+		return builder;
+	}
+
+	@Override
+	protected int doHashCode() {
+		return Objects.hash(pairs, size, minDocCount);
+	}
+
+	@Override
+	protected boolean doEquals(Object obj) {
+		InternalCooccurrence other = (InternalCooccurrence) obj;
+		return Objects.equals(pairs, other.pairs) && size == other.size && minDocCount == other.minDocCount;
+	}
+}
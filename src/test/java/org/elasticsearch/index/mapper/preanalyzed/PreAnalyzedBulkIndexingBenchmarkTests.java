@@ -0,0 +1,282 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.LuceneTestCase.SuppressCodecs;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.store.Store;
+import org.elasticsearch.index.plugin.mapper.preanalyzed.MapperPreAnalyzedPlugin;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESIntegTestCase;
+
+/**
+ * <p>
+ * A macro benchmark bulk indexing a synthetic corpus of preanalyzed documents
+ * into an embedded single node cluster. It reports the indexing throughput in
+ * documents and tokens per second, heap usage and garbage collections during
+ * indexing and the size of the resulting index per Lucene file type.
+ * </p>
+ * <p>
+ * The benchmark is skipped unless <tt>-Dtests.preanalyzed.benchmark=true</tt>
+ * is given. The corpus and the mapping are configured by the following system
+ * properties:
+ * </p>
+ * <ul>
+ * <li><tt>tests.preanalyzed.benchmark.docs</tt>: number of documents (10000)</li>
+ * <li><tt>tests.preanalyzed.benchmark.tokens</tt>: tokens per document (200)</li>
+ * <li><tt>tests.preanalyzed.benchmark.stacked</tt>: ratio of additional tokens
+ * stacked onto the same position (0.2)</li>
+ * <li><tt>tests.preanalyzed.benchmark.payload</tt>: payload length of stacked
+ * tokens, 0 for no payloads (0)</li>
+ * <li><tt>tests.preanalyzed.benchmark.store</tt>: whether the field is stored
+ * (false)</li>
+ * <li><tt>tests.preanalyzed.benchmark.term_vector</tt>: the
+ * <tt>term_vector</tt> mapping parameter (no)</li>
+ * <li><tt>tests.preanalyzed.benchmark.bulk</tt>: documents per bulk request
+ * (500)</li>
+ * <li><tt>tests.preanalyzed.benchmark.force_merge</tt>: whether to merge the
+ * index into a single segment before measuring its size (true)</li>
+ * </ul>
+ * <p>
+ * The corpus is derived from the test seed and can thus be reproduced with
+ * <tt>-Dtests.seed</tt>. Since the cluster runs in the JVM of the benchmark,
+ * the heap and GC figures include the document generation.
+ * </p>
+ *
+ * @author faessler
+ *
+ */
+@SuppressCodecs("*") // measure the default codec
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.TEST, numDataNodes = 1, numClientNodes = 0, supportsDedicatedMasters = false)
+public class PreAnalyzedBulkIndexingBenchmarkTests extends ESIntegTestCase {
+
+    private static final String PREFIX = "tests.preanalyzed.benchmark";
+    private static final String INDEX = "benchmark";
+    private static final String[] TYPES = { "NN", "NNP", "VB", "JJ", "DT", "IN" };
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Collections.singleton(MapperPreAnalyzedPlugin.class);
+    }
+
+    public void testBulkIndexing() throws Exception {
+        assumeTrue("enable the benchmark with -D" + PREFIX + "=true", Boolean.getBoolean(PREFIX));
+
+        int numDocs = Integer.getInteger(PREFIX + ".docs", 10000);
+        int tokensPerDoc = Integer.getInteger(PREFIX + ".tokens", 200);
+        double stackedRatio = Double.parseDouble(System.getProperty(PREFIX + ".stacked", "0.2"));
+        int payloadLength = Integer.getInteger(PREFIX + ".payload", 0);
+        boolean store = Boolean.parseBoolean(System.getProperty(PREFIX + ".store", "false"));
+        String termVector = System.getProperty(PREFIX + ".term_vector", "no");
+        int bulkSize = Integer.getInteger(PREFIX + ".bulk", 500);
+        boolean forceMerge = Boolean.parseBoolean(System.getProperty(PREFIX + ".force_merge", "true"));
+
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("store", store).field("term_vector", termVector)
+                .endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate(INDEX)
+                .setSettings(Settings.builder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                        .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0).put("index.refresh_interval", "-1"))
+                .addMapping("document", mapping, XContentType.JSON));
+        ensureGreen(INDEX);
+
+        Random random = new Random(random().nextLong());
+        long numTokens = 0;
+        long indexingNanos = 0;
+        GcStats gcBefore = GcStats.current();
+        for (int from = 0; from < numDocs; from += bulkSize) {
+            BulkRequestBuilder bulk = client().prepareBulk();
+            for (int i = from; i < Math.min(from + bulkSize, numDocs); i++) {
+                XContentBuilder value = jsonBuilder();
+                numTokens += generateValue(random, value, tokensPerDoc, stackedRatio, payloadLength);
+                bulk.add(client().prepareIndex(INDEX, "document", String.valueOf(i))
+                        .setSource(Collections.singletonMap("text", Strings.toString(value))));
+            }
+            long start = System.nanoTime();
+            BulkResponse response = bulk.get();
+            indexingNanos += System.nanoTime() - start;
+            assertFalse(response.buildFailureMessage(), response.hasFailures());
+        }
+        long start = System.nanoTime();
+        refresh(INDEX);
+        flush(INDEX);
+        indexingNanos += System.nanoTime() - start;
+        GcStats gcAfter = GcStats.current();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        if (forceMerge)
+            forceMerge();
+        assertHitCount(client().prepareSearch(INDEX).setSize(0).get(), numDocs);
+
+        double seconds = indexingNanos / 1_000_000_000d;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT,
+                "preanalyzed bulk indexing: docs=%d, tokens/doc=%d, stacked=%.2f, payload=%d, store=%s, term_vector=%s, bulk=%d%n",
+                numDocs, tokensPerDoc, stackedRatio, payloadLength, store, termVector, bulkSize));
+        report.append(String.format(Locale.ROOT, "  time: %.2fs, %.1f docs/s, %.1f tokens/s%n", seconds,
+                numDocs / seconds, numTokens / seconds));
+        report.append(String.format(Locale.ROOT, "  heap: used %s, committed %s, max %s%n",
+                new ByteSizeValue(heap.getUsed()), new ByteSizeValue(heap.getCommitted()),
+                new ByteSizeValue(heap.getMax())));
+        report.append(String.format(Locale.ROOT, "  gc: %d collections, %dms%n", gcAfter.count - gcBefore.count,
+                gcAfter.millis - gcBefore.millis));
+        long total = 0;
+        for (Map.Entry<String, Long> entry : segmentSizes().entrySet()) {
+            report.append(String.format(Locale.ROOT, "  %-9s %s%n", entry.getKey(), new ByteSizeValue(entry.getValue())));
+            total += entry.getValue();
+        }
+        report.append(String.format(Locale.ROOT, "  total: %s, %.1f bytes/token", new ByteSizeValue(total),
+                (double) total / numTokens));
+        logger.info(report.toString());
+    }
+
+    /**
+     * Writes a preanalyzed value of random words with stacked, typed tokens
+     * to <tt>builder</tt>.
+     *
+     * @return The number of written tokens.
+     */
+    private static int generateValue(Random random, XContentBuilder builder, int numWords, double stackedRatio,
+            int payloadLength) throws IOException {
+        StringBuilder str = new StringBuilder();
+        builder.startObject().field("v", "1").startArray("tokens");
+        int numTokens = 0;
+        for (int i = 0; i < numWords; i++) {
+            if (str.length() > 0)
+                str.append(' ');
+            int start = str.length();
+            // a Zipf-like vocabulary so that the postings resemble natural
+            // language
+            str.append('w').append(Integer.toString((int) Math.pow(10000, random.nextDouble()), Character.MAX_RADIX));
+            builder.startObject().field("t", str.substring(start)).field("s", start).field("e", str.length()).endObject();
+            numTokens++;
+            if (random.nextDouble() < stackedRatio) {
+                builder.startObject().field("t", TYPES[random.nextInt(TYPES.length)]).field("s", start)
+                        .field("e", str.length()).field("i", 0).field("y", TYPES[random.nextInt(TYPES.length)]);
+                if (payloadLength > 0) {
+                    char[] payload = new char[payloadLength];
+                    for (int j = 0; j < payload.length; j++)
+                        payload[j] = (char) ('a' + random.nextInt(26));
+                    builder.field("p", new String(payload));
+                }
+                builder.endObject();
+                numTokens++;
+            }
+        }
+        builder.endArray().field("str", str.toString()).endObject();
+        return numTokens;
+    }
+
+    /**
+     * @return The size of the benchmark index per file extension.
+     */
+    private Map<String, Long> segmentSizes() throws IOException {
+        Map<String, Long> sizes = new TreeMap<>();
+        for (IndicesService indicesService : internalCluster().getDataNodeInstances(IndicesService.class)) {
+            IndexService indexService = indicesService.indexService(resolveIndex(INDEX));
+            if (indexService == null)
+                continue;
+            for (IndexShard shard : indexService) {
+                Store store = shard.store();
+                store.incRef();
+                try {
+                    Directory directory = store.directory();
+                    SegmentInfos segmentInfos = Lucene.readSegmentInfos(directory);
+                    addFileSizes(sizes, directory, Collections.singleton(segmentInfos.getSegmentsFileName()));
+                    for (SegmentCommitInfo segment : segmentInfos) {
+                        SegmentInfo info = segment.info;
+                        if (info.getUseCompoundFile()) {
+                            // break the compound file down into the files it
+                            // is made of
+                            try (Directory compound = info.getCodec().compoundFormat().getCompoundReader(directory,
+                                    info, IOContext.READONCE)) {
+                                addFileSizes(sizes, compound, Arrays.asList(compound.listAll()));
+                            }
+                        }
+                        addFileSizes(sizes, directory, segment.files());
+                    }
+                } finally {
+                    store.decRef();
+                }
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Adds the sizes of <tt>files</tt> to their file types, leaving out
+     * compound files which are broken down separately.
+     */
+    private static void addFileSizes(Map<String, Long> sizes, Directory directory, Collection<String> files)
+            throws IOException {
+        for (String file : files) {
+            if (file.endsWith(".cfs") || file.endsWith(".cfe"))
+                continue;
+            String extension = file.startsWith(IndexFileNames.SEGMENTS) ? IndexFileNames.SEGMENTS
+                    : IndexFileNames.getExtension(file);
+            sizes.merge(extension, directory.fileLength(file), Long::sum);
+        }
+    }
+
+    private static class GcStats {
+        private long count;
+        private long millis;
+
+        static GcStats current() {
+            GcStats stats = new GcStats();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                stats.count += Math.max(0, gc.getCollectionCount());
+                stats.millis += Math.max(0, gc.getCollectionTime());
+            }
+            return stats;
+        }
+    }
+}
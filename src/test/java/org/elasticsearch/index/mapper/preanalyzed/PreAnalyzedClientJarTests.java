@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Loads the classes of the client jar built by the <tt>package</tt> phase,
+ * whose path is given by the <tt>tests.client.jar</tt> system property, with
+ * nothing but lucene-core and jackson-core beside them.
+ *
+ * @author faessler
+ *
+ */
+public class PreAnalyzedClientJarTests extends LuceneTestCase {
+
+	private static final String CLIENT_JAR = "tests.client.jar";
+
+	private static final List<Class<?>> CLIENT_CLASSES = Arrays.asList(PreAnalyzedFormat.class,
+			PreAnalyzedTokens.class, PreAnalyzedBinaryFormat.class, PreAnalyzedTokenStreamSerializer.class);
+
+	public void testClientClasses() throws Exception {
+		String clientJar = System.getProperty(CLIENT_JAR);
+		assumeTrue("the client jar is tested with -D" + CLIENT_JAR + "=<path> after it has been packaged",
+				clientJar != null);
+
+		Set<String> packaged = new HashSet<>();
+		try (JarFile jar = new JarFile(clientJar)) {
+			for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class"))
+					packaged.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+			}
+		}
+		// the nested and anonymous classes of the client classes are packaged,
+		// too
+		Path classes = codeSource(PreAnalyzedTokens.class);
+		for (Class<?> clientClass : CLIENT_CLASSES) {
+			Path dir = classes.resolve(clientClass.getPackage().getName().replace('.', '/'));
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, clientClass.getSimpleName() + "*.class")) {
+				for (Path file : files) {
+					String fileName = file.getFileName().toString();
+					String simpleName = fileName.substring(0, fileName.length() - ".class".length());
+					if (simpleName.equals(clientClass.getSimpleName())
+							|| simpleName.startsWith(clientClass.getSimpleName() + "$"))
+						assertTrue(simpleName + " is not packaged",
+								packaged.contains(clientClass.getPackage().getName() + "." + simpleName));
+				}
+			}
+		}
+
+		URL[] urls = { Paths.get(clientJar).toUri().toURL(), codeSource(BytesRef.class).toUri().toURL(),
+				codeSource(JsonFactory.class).toUri().toURL() };
+		try (URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())) {
+			for (String className : packaged)
+				Class.forName(className, true, loader);
+
+			// repairOrder sorts with an anonymous class
+			Class<?> tokensClass = loader.loadClass(PreAnalyzedTokens.class.getName());
+			assertNotSame(PreAnalyzedTokens.class, tokensClass);
+			Object tokens = tokensClass.getConstructor().newInstance();
+			Method add = tokensClass.getMethod("add", char[].class, int.class, int.class);
+			Method setOffsets = tokensClass.getMethod("setOffsets", int.class, int.class, int.class);
+			Method setPositionIncrement = tokensClass.getMethod("setPositionIncrement", int.class, int.class);
+			int b = (Integer) add.invoke(tokens, "b".toCharArray(), 0, 1);
+			setOffsets.invoke(tokens, b, 2, 3);
+			int a = (Integer) add.invoke(tokens, "a".toCharArray(), 0, 1);
+			setOffsets.invoke(tokens, a, 0, 1);
+			setPositionIncrement.invoke(tokens, a, 0);
+			tokensClass.getMethod("repairOrder", int.class).invoke(tokens, -1);
+			assertEquals("a", tokensClass.getMethod("term", int.class).invoke(tokens, 0));
+			assertEquals("b", tokensClass.getMethod("term", int.class).invoke(tokens, 1));
+		}
+	}
+
+	private static Path codeSource(Class<?> clazz) throws IOException {
+		try {
+			return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.index.mapper.preanalyzed;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.util.LuceneTestCase.SuppressCodecs;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.plugin.mapper.preanalyzed.MapperPreAnalyzedPlugin;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.suggest.SuggestBuilder;
+import org.elasticsearch.search.suggest.SuggestBuilders;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestion;
+import org.elasticsearch.test.ESIntegTestCase;
+
+@SuppressCodecs("*") // requires the custom completion postings format
+public class PreAnalyzedCompletionIntegrationTests extends ESIntegTestCase {
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Collections.singleton(MapperPreAnalyzedPlugin.class);
+    }
+
+    public void testCompletion() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").startObject("completion").array("types", "PER", "ORG")
+                .field("weight", "payload").endObject().endObject().endObject().endObject().endObject());
+        String text = Strings.toString(jsonBuilder().startObject().field("v", "1")
+                .field("str", "Anna Sewell met Barack Obama at Google.").startArray("tokens")
+                .startObject().field("t", "Anna").field("s", 0).field("e", 4).endObject()
+                .startObject().field("t", "PER").field("s", 0).field("e", 11).field("i", 0).field("y", "PER").field("p", "2").endObject()
+                .startObject().field("t", "Sewell").field("s", 5).field("e", 11).endObject()
+                .startObject().field("t", "met").field("s", 12).field("e", 15).endObject()
+                .startObject().field("t", "Barack").field("s", 16).field("e", 22).endObject()
+                .startObject().field("t", "PER").field("s", 16).field("e", 28).field("i", 0).field("y", "PER").field("p", "5").endObject()
+                .startObject().field("t", "Obama").field("s", 23).field("e", 28).endObject()
+                .startObject().field("t", "at").field("s", 29).field("e", 31).endObject()
+                .startObject().field("t", "Google").field("s", 32).field("e", 38).field("y", "ORG").field("p", "3").endObject()
+                .startObject().field("t", ".").field("s", 38).field("e", 39).endObject()
+                .endArray().endObject());
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", text));
+        refresh();
+
+        // the covered text of the entity tokens is suggested, weighted by
+        // the payload
+        assertSuggestion("bar", "Barack Obama", 5f);
+        assertSuggestion("go", "Google", 3f);
+        assertSuggestion("anna s", "Anna Sewell", 2f);
+
+        // a document is suggested once with its best input
+        SearchResponse searchResponse = client().prepareSearch("test").suggest(new SuggestBuilder()
+                .addSuggestion("entities", SuggestBuilders.completionSuggestion("text.completion").regex(".*")))
+                .execute().actionGet();
+        CompletionSuggestion suggestion = searchResponse.getSuggest().getSuggestion("entities");
+        assertEquals(1, suggestion.getEntries().get(0).getOptions().size());
+        assertEquals("Barack Obama", suggestion.getEntries().get(0).getOptions().get(0).getText().string());
+
+        // other tokens are not suggested
+        searchResponse = client().prepareSearch("test").suggest(new SuggestBuilder()
+                .addSuggestion("entities", SuggestBuilders.completionSuggestion("text.completion").prefix("met")))
+                .execute().actionGet();
+        suggestion = searchResponse.getSuggest().getSuggestion("entities");
+        assertTrue(suggestion.getEntries().get(0).getOptions().isEmpty());
+    }
+
+    public void testCompletionIgnoreMalformed() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("ignore_malformed", true)
+                .startObject("completion").array("types", "PER", "ORG").field("weight", "payload").endObject()
+                .endObject().endObject().endObject().endObject());
+        String text = Strings.toString(jsonBuilder().startObject().field("v", "1")
+                .field("str", "Barack Obama at Google.").startArray("tokens")
+                .startObject().field("t", "Barack").field("s", 0).field("e", 6).endObject()
+                .startObject().field("t", "PER").field("s", 0).field("e", 12).field("i", 0).field("y", "PER").field("p", "5").endObject()
+                .startObject().field("t", "Obama").field("s", 7).field("e", 12).endObject()
+                .startObject().field("t", "at").field("s", 13).field("e", 15).endObject()
+                .startObject().field("t", "Google").field("s", 16).field("e", 22).field("y", "ORG").field("p", "many").endObject()
+                .endArray().endObject());
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", text));
+        refresh();
+
+        // the token with the malformed weight is no input, the other tokens
+        // are indexed
+        assertSuggestion("bar", "Barack Obama", 5f);
+        SearchResponse searchResponse = client().prepareSearch("test").suggest(new SuggestBuilder()
+                .addSuggestion("entities", SuggestBuilders.completionSuggestion("text.completion").prefix("go")))
+                .execute().actionGet();
+        CompletionSuggestion suggestion = searchResponse.getSuggest().getSuggestion("entities");
+        assertTrue(suggestion.getEntries().get(0).getOptions().isEmpty());
+        assertHitCount(client().prepareSearch("test").setQuery(QueryBuilders.termQuery("text", "Google")).get(), 1);
+        assertHitCount(client().prepareSearch("test").setQuery(QueryBuilders.termQuery("_ignored", "text")).get(), 1);
+
+        // without ignore_malformed, the document is rejected
+        mapping = mapping.replace("\"ignore_malformed\":true,", "");
+        assertAcked(client().admin().indices().prepareCreate("strict").addMapping("document", mapping, XContentType.JSON));
+        expectThrows(MapperParsingException.class,
+                () -> index("strict", "document", "1", Collections.singletonMap("text", text)));
+    }
+
+    private void assertSuggestion(String prefix, String expectedText, float expectedWeight) {
+        SearchResponse searchResponse = client().prepareSearch("test").suggest(new SuggestBuilder()
+                .addSuggestion("entities", SuggestBuilders.completionSuggestion("text.completion").prefix(prefix)))
+                .execute().actionGet();
+        CompletionSuggestion suggestion = searchResponse.getSuggest().getSuggestion("entities");
+        List<CompletionSuggestion.Entry.Option> options = suggestion.getEntries().get(0).getOptions();
+        assertEquals(1, options.size());
+        assertEquals(expectedText, options.get(0).getText().string());
+        assertEquals(expectedWeight, options.get(0).getScore(), 0f);
+    }
+}
@@ -19,13 +19,25 @@
 package org.elasticsearch.index.mapper.preanalyzed;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.CannedTokenStream;
+import org.apache.lucene.analysis.Token;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexableFieldType;
+import org.elasticsearch.SpecialPermission;
 import org.elasticsearch.common.Strings;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.compress.CompressedXContent;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -39,12 +51,36 @@ import org.elasticsearch.indices.mapper.MapperRegistry;
 import org.elasticsearch.test.ESSingleNodeTestCase;
 import org.junit.Before;
 
+import java.io.FilePermission;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessControlContext;
+import java.security.AccessControlException;
+import java.security.AccessController;
+import java.security.CodeSource;
+import java.security.Permissions;
+import java.security.Policy;
+import java.security.PrivilegedExceptionAction;
+import java.security.ProtectionDomain;
+import java.security.URIParameter;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
@@ -145,6 +181,953 @@ public class PreAnalyzedFieldMapperTests extends ESSingleNodeTestCase {
 		assertEquals(1877L, yearField.numericValue());
 	}
 
+	public void testSyntheticSource() throws Exception {
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("store", true).field("synthetic_source", true).endObject()
+				.endObject().endObject().endObject());
+		byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		Document doc = docMapper.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON)).rootDoc();
+
+		// the tokens are stored in their binary form
+		IndexableField tokensField = doc.getField("title" + PreAnalyzedMapper.TOKENS_FIELD_SUFFIX);
+		assertNotNull(tokensField);
+		assertTrue(tokensField.fieldType().stored());
+		BytesRef tokenBytes = tokensField.binaryValue();
+		PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+		PreAnalyzedBinaryFormat.read(new ByteArrayDataInput(tokenBytes.bytes, tokenBytes.offset, tokenBytes.length), tokenBytes.length,
+				tokens);
+		parsedPreanalyzedTokensCorrect(new PreAnalyzedTokenStream(tokens));
+
+		// the synthesized value is parsed into the same field contents again
+		String storedValue = doc.getFields("title")[1].stringValue();
+		String synthesized = PreAnalyzedMapper.toPreAnalyzedJson(storedValue, tokens);
+		Document synthesizedDoc = docMapper.parse(new SourceToParse("test", "document", "2",
+				BytesReference.bytes(jsonBuilder().startObject().field("title", synthesized).endObject()), XContentType.JSON)).rootDoc();
+		assertEquals("Black Beauty ran past the bloody barn.", synthesizedDoc.getFields("title")[1].stringValue());
+		assertEquals(tokensField.binaryValue(), synthesizedDoc.getField("title" + PreAnalyzedMapper.TOKENS_FIELD_SUFFIX).binaryValue());
+	}
+
+	public void testSyntheticSourceRequiresStore() throws Exception {
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("synthetic_source", true).endObject()
+				.endObject().endObject().endObject());
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parser.parse(null, new CompressedXContent(mapping)));
+		assertTrue(e.getMessage().contains("[synthetic_source] requires [store]"));
+	}
+
+	public void testTokenCount() throws Exception {
+		byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("token_count", true).endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		Document doc = docMapper.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON)).rootDoc();
+		assertEquals(11L, docValue(doc, "title." + PreAnalyzedMapper.TOKEN_COUNT_FIELD_NAME));
+
+		// stacked tokens, e.g. 'hero' on top of 'Black', are not counted
+		mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").startObject("token_count").field("exclude_stacked", true)
+				.endObject().endObject().endObject().endObject().endObject());
+		docMapper = parser.parse(null, new CompressedXContent(mapping));
+		doc = docMapper.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON)).rootDoc();
+		assertEquals(8L, docValue(doc, "title." + PreAnalyzedMapper.TOKEN_COUNT_FIELD_NAME));
+		assertTrue(docMapper.mappingSource().string().contains("\"token_count\":{\"exclude_stacked\":true}"));
+
+		// tokens without a type have the default type 'word'
+		mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").startObject("token_count").array("exclude_types", "word")
+				.endObject().endObject().endObject().endObject().endObject());
+		docMapper = parser.parse(null, new CompressedXContent(mapping));
+		doc = docMapper.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON)).rootDoc();
+		assertEquals(0L, docValue(doc, "title." + PreAnalyzedMapper.TOKEN_COUNT_FIELD_NAME));
+	}
+
+	public void testSubFieldConflicts() throws Exception {
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("token_count", true).startObject("fields")
+				.startObject(PreAnalyzedMapper.TOKEN_COUNT_FIELD_NAME).field("type", "text").endObject().endObject()
+				.endObject().endObject().endObject().endObject());
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parser.parse(null, new CompressedXContent(mapping)));
+		assertTrue(e.getMessage().contains("conflicts with the sub field of [token_count]"));
+
+		String completionMapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+				.startObject("properties").startObject("title").field("type", "preanalyzed").startObject("completion")
+				.array("types", "PER").endObject().startObject("fields")
+				.startObject(PreAnalyzedMapper.COMPLETION_FIELD_NAME).field("type", "text").endObject().endObject()
+				.endObject().endObject().endObject().endObject());
+		e = expectThrows(MapperParsingException.class, () -> parser.parse(null, new CompressedXContent(completionMapping)));
+		assertTrue(e.getMessage().contains("conflicts with the sub field of [completion]"));
+
+		// the names are free without the sub fields
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping.replace("\"token_count\":true,", "")));
+		assertNotNull(docMapper.mappers().getMapper("title." + PreAnalyzedMapper.TOKEN_COUNT_FIELD_NAME));
+	}
+
+	public void testDictionaries() throws Exception {
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").array("type_dictionary", "NN", "NNP")
+				.array("flag_dictionary", "negated", "uncertain", "speculative").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"type_dictionary\":[\"NN\",\"NNP\"]"));
+
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "Black Beauty")
+				.startArray("tokens")
+				.startObject().field("t", "Black").field("s", 0).field("e", 5).field("y", 1).field("f", "negated").endObject()
+				.startObject().field("t", "Beauty").field("s", 6).field("e", 12).field("y", "NNP")
+				.array("f", "uncertain", 2).endObject()
+				.startObject().field("t", "horse").field("s", 6).field("e", 12).field("i", 0).field("y", "animal")
+				.field("f", "0x8").endObject()
+				.endArray().endObject());
+		Document doc = parseDoc(docMapper, value);
+		TokenStream ts = tokenStream(doc, "title");
+		TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+		FlagsAttribute flagsAtt = ts.addAttribute(FlagsAttribute.class);
+		ts.reset();
+		assertTrue(ts.incrementToken());
+		// codes and known names resolve to the shared dictionary values
+		assertSame("NNP", typeAtt.type());
+		assertEquals(1, flagsAtt.getFlags());
+		assertTrue(ts.incrementToken());
+		assertSame("NNP", typeAtt.type());
+		assertEquals(6, flagsAtt.getFlags());
+		assertTrue(ts.incrementToken());
+		assertEquals("animal", typeAtt.type());
+		assertEquals(8, flagsAtt.getFlags());
+		assertFalse(ts.incrementToken());
+
+		MapperParsingException e = expectThrows(MapperParsingException.class, () -> parseDoc(docMapper,
+				Strings.toString(jsonBuilder().startObject().field("v", "1").startArray("tokens")
+						.startObject().field("t", "Black").field("y", 2).endObject().endArray().endObject())));
+		assertTrue(e.getRootCause().getMessage().contains("Unknown token type code [2]"));
+		e = expectThrows(MapperParsingException.class, () -> parseDoc(docMapper,
+				Strings.toString(jsonBuilder().startObject().field("v", "1").startArray("tokens")
+						.startObject().field("t", "Black").field("f", 3).endObject().endArray().endObject())));
+		assertTrue(e.getRootCause().getMessage().contains("Unknown token flag code [3]"));
+
+		String[] flagNames = new String[PreAnalyzedMapper.MAX_FLAG_DICTIONARY_SIZE + 1];
+		for (int i = 0; i < flagNames.length; i++)
+			flagNames[i] = "flag" + i;
+		String tooManyFlags = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").array("flag_dictionary", flagNames).endObject()
+				.endObject().endObject().endObject());
+		expectThrows(MapperParsingException.class, () -> parser.parse(null, new CompressedXContent(tooManyFlags)));
+	}
+
+	public void testIgnoreMalformed() throws Exception {
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "Black Beauty")
+				.startArray("tokens")
+				.startObject().field("t", "Black").field("s", 0).field("e", 5).endObject()
+				.startObject().field("s", 6).field("e", 12).endObject()
+				.startObject().field("t", "Beauty").field("s", 12).field("e", 6).endObject()
+				.startObject().field("t", "Beauty").field("s", 6).field("e", 12).field("f", "0xFFFFFFFF").endObject()
+				.startObject().field("t", "horse").field("s", 6).field("e", 12).field("i", -1).endObject()
+				.startObject().field("t", "Beauty").field("s", 6).field("e", 12).field("f", "#10").endObject()
+				.endArray().endObject());
+
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper strictMapper = parser.parse(null, new CompressedXContent(mapping));
+		MapperParsingException e = expectThrows(MapperParsingException.class, () -> parseDoc(strictMapper, value));
+		assertTrue(e.getRootCause().getMessage().contains("no term is specified"));
+
+		mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("ignore_malformed", true).endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"ignore_malformed\":true"));
+		long malformedTokens = PreAnalyzedIndexingStats.malformedTokens();
+		Document doc = parseDoc(docMapper, value);
+		assertEquals("title", doc.getField(IgnoredFieldMapper.NAME).stringValue());
+		assertEquals(malformedTokens + 4, PreAnalyzedIndexingStats.malformedTokens());
+		TokenStream ts = tokenStream(doc, "title");
+		CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+		PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+		FlagsAttribute flagsAtt = ts.addAttribute(FlagsAttribute.class);
+		ts.reset();
+		assertTrue(ts.incrementToken());
+		assertEquals("Black", termAtt.toString());
+		assertTrue(ts.incrementToken());
+		assertEquals("Beauty", termAtt.toString());
+		// the increments of the skipped tokens are kept
+		assertEquals(4, posIncrAtt.getPositionIncrement());
+		assertEquals(16, flagsAtt.getFlags());
+		assertFalse(ts.incrementToken());
+
+		long malformedValues = PreAnalyzedIndexingStats.malformedValues();
+		doc = parseDoc(docMapper, "{\"v\":\"1\",\"tokens\":[{\"t\":\"Black\"");
+		assertEquals("title", doc.getField(IgnoredFieldMapper.NAME).stringValue());
+		assertNull(doc.getField("title"));
+		assertEquals(malformedValues + 1, PreAnalyzedIndexingStats.malformedValues());
+	}
+
+	public void testPositionLength() throws Exception {
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "heart attack risk")
+				.startArray("tokens")
+				.startObject().field("t", "heart").field("s", 0).field("e", 5).endObject()
+				.startObject().field("t", "myocardial_infarction").field("s", 0).field("e", 12).field("i", 0)
+				.field("l", 2).endObject()
+				.startObject().field("t", "attack").field("s", 6).field("e", 12).endObject()
+				.startObject().field("t", "risk").field("s", 13).field("e", 17).endObject()
+				.endArray().endObject());
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		TokenStream ts = tokenStream(parseDoc(docMapper, value), "title");
+		// the entity is indexed again at the position of "attack"; the
+		// positions of a flattened graph have no single start offset
+		BaseTokenStreamTestCase.assertTokenStreamContents(ts,
+				new String[] { "heart", "myocardial_infarction", "myocardial_infarction", "attack", "risk" },
+				new int[] { 0, 0, 0, 6, 13 }, new int[] { 5, 12, 12, 12, 17 }, null, new int[] { 1, 0, 1, 0, 1 },
+				new int[] { 1, 2, 1, 1, 1 }, null, false);
+
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parseDoc(docMapper, value.replace("\"l\":2", "\"l\":0")));
+		assertTrue(e.getRootCause().getMessage().contains("the position length is less than 1"));
+
+		// the entity covers a removed stop word and a stacked token
+		ts = tokenStream(parseDoc(docMapper, Strings.toString(jsonBuilder().startObject().field("v", "1")
+				.startArray("tokens")
+				.startObject().field("t", "entity").field("s", 0).field("e", 10).field("l", 3).endObject()
+				.startObject().field("t", "stacked").field("s", 0).field("e", 3).field("i", 0).endObject()
+				.startObject().field("t", "last").field("s", 7).field("e", 10).field("i", 2).endObject()
+				.endArray().endObject())), "title");
+		BaseTokenStreamTestCase.assertTokenStreamContents(ts,
+				new String[] { "entity", "stacked", "entity", "entity", "last" }, new int[] { 0, 0, 0, 0, 7 },
+				new int[] { 10, 3, 10, 10, 10 }, null, new int[] { 1, 0, 1, 1, 0 }, new int[] { 3, 1, 2, 1, 1 },
+				null, false);
+	}
+
+	public void testTokenOrderRepair() throws Exception {
+		// the POS layer is sent after the words, rewinding the position
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "Black Beauty")
+				.startArray("tokens")
+				.startObject().field("t", "Black").field("s", 0).field("e", 5).endObject()
+				.startObject().field("t", "Beauty").field("s", 6).field("e", 12).endObject()
+				.startObject().field("t", "JJ").field("s", 0).field("e", 5).field("i", -1).endObject()
+				.startObject().field("t", "NNP").field("s", 6).field("e", 20).endObject()
+				.endArray().endObject());
+
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("index_options", "offsets").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper strictMapper = parser.parse(null, new CompressedXContent(mapping));
+		MapperParsingException e = expectThrows(MapperParsingException.class, () -> parseDoc(strictMapper, value));
+		assertTrue(e.getRootCause().getMessage().contains("the start offset is less than that of the previous token"));
+
+		mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("index_options", "offsets")
+				.field("token_order", "repair").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"token_order\":\"repair\""));
+		TokenStream ts = tokenStream(parseDoc(docMapper, value), "title");
+		CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+		PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+		OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+		ts.reset();
+		String[] terms = { "Black", "JJ", "Beauty", "NNP" };
+		int[] posIncs = { 1, 0, 1, 0 };
+		int[] ends = { 5, 5, 12, 12 };
+		for (int i = 0; i < terms.length; i++) {
+			assertTrue(ts.incrementToken());
+			assertEquals(terms[i], termAtt.toString());
+			assertEquals(posIncs[i], posIncrAtt.getPositionIncrement());
+			// the end offset beyond the str value is clamped
+			assertEquals(ends[i], offsetAtt.endOffset());
+		}
+		assertFalse(ts.incrementToken());
+
+		// start offsets going backwards across positions are raised
+		PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+		tokens.setOffsets(tokens.add("a".toCharArray(), 0, 1), 5, 6);
+		tokens.setOffsets(tokens.add("b".toCharArray(), 0, 1), 2, 3);
+		tokens.repairOrder(-1);
+		assertEquals("b", tokens.term(1));
+		assertEquals(5, tokens.startOffset(1));
+		assertEquals(5, tokens.endOffset(1));
+
+		String invalidMapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+				.startObject("properties").startObject("title").field("type", "preanalyzed")
+				.field("token_order", "sorted").endObject().endObject().endObject().endObject());
+		expectThrows(MapperParsingException.class, () -> parser.parse(null, new CompressedXContent(invalidMapping)));
+	}
+
+	public void testBoundaries() throws Exception {
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "a b. c d")
+				.startArray("tokens")
+				.startObject().field("t", "a").endObject()
+				.startObject().field("t", "b").endObject()
+				.startObject().field("t", "c").field("b", "sentence").endObject()
+				.startObject().field("t", "d").field("b", "section").endObject()
+				.endArray().endObject());
+		String secondValue = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "e")
+				.startArray("tokens").startObject().field("t", "e").endObject().endArray().endObject());
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("boundaries", true)
+				.field("boundary_position_gap", 10).endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"boundary_position_gap\":10"));
+		byte[] docBytes = Strings.toString(jsonBuilder().startObject().array("title", value, secondValue).endObject())
+				.getBytes(StandardCharsets.UTF_8);
+		Document doc = docMapper
+				.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON))
+				.rootDoc();
+
+		TokenStream ts = tokenStream(doc, "title");
+		PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+		ts.reset();
+		for (int posInc : new int[] { 1, 1, 11, 11 }) {
+			assertTrue(ts.incrementToken());
+			assertEquals(posInc, posIncrAtt.getPositionIncrement());
+		}
+		assertFalse(ts.incrementToken());
+
+		// the second value starts a section behind the position increment gap
+		int positionIncrementGap = ((FieldMapper) docMapper.mappers().getMapper("title")).fieldType().indexAnalyzer()
+				.getPositionIncrementGap("title");
+		IndexableField boundariesField = doc.getField("title" + PreAnalyzedBoundaries.FIELD_SUFFIX);
+		assertEquals(DocValuesType.BINARY, boundariesField.fieldType().docValuesType());
+		PreAnalyzedBoundaries boundaries = new PreAnalyzedBoundaries();
+		boundaries.read(boundariesField.binaryValue());
+		assertEquals(3, boundaries.size());
+		assertEquals(12, boundaries.position(0));
+		assertFalse(boundaries.isSection(0));
+		assertEquals(23, boundaries.position(1));
+		assertTrue(boundaries.isSection(1));
+		assertEquals(24 + positionIncrementGap, boundaries.position(2));
+		assertTrue(boundaries.isSection(2));
+		assertFalse(boundaries.crosses(0, 2, false));
+		assertTrue(boundaries.crosses(1, 13, false));
+		assertFalse(boundaries.crosses(1, 13, true));
+		assertTrue(boundaries.crosses(12, 24, true));
+
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parseDoc(docMapper, value.replace("\"section\"", "\"paragraph\"")));
+		assertTrue(e.getRootCause().getMessage().contains("the boundary is neither sentence nor section"));
+
+		String invalidMapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+				.startObject("properties").startObject("title").field("type", "preanalyzed")
+				.field("index_options", "docs").field("boundaries", true).endObject().endObject().endObject()
+				.endObject());
+		expectThrows(MapperParsingException.class, () -> parser.parse(null, new CompressedXContent(invalidMapping)));
+	}
+
+	public void testIndexTokens() throws Exception {
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "The, big x cat.")
+				.startArray("tokens")
+				.startObject().field("t", "The").field("s", 0).field("e", 3).endObject()
+				.startObject().field("t", ",").field("s", 3).field("e", 4).field("y", "PUNCT").endObject()
+				.startObject().field("t", "big").field("s", 5).field("e", 8).field("f", "debug").endObject()
+				.startObject().field("t", "x").field("s", 9).field("e", 10).endObject()
+				.startObject().field("t", "cat").field("s", 11).field("e", 14).endObject()
+				.startObject().field("t", "NN").field("s", 11).field("e", 14).field("i", 0).field("y", "POS")
+				.endObject()
+				.startObject().field("t", ".").field("s", 14).field("e", 15).field("y", "PUNCT").endObject()
+				.endArray().endObject());
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("token_count", true)
+				.array("flag_dictionary", "negated", "debug").startObject("index_tokens")
+				.array("exclude_types", "PUNCT", "POS").array("exclude_flags", "debug").field("min_length", 2)
+				.endObject().endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"exclude_flags\":[\"debug\"]"));
+		Document doc = parseDoc(docMapper, value);
+
+		// the positions of the tokens that are not indexed are kept empty
+		TokenStream ts = tokenStream(doc, "title");
+		CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+		PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+		ts.reset();
+		assertTrue(ts.incrementToken());
+		assertEquals("The", termAtt.toString());
+		assertEquals(1, posIncrAtt.getPositionIncrement());
+		assertTrue(ts.incrementToken());
+		assertEquals("cat", termAtt.toString());
+		assertEquals(4, posIncrAtt.getPositionIncrement());
+		assertFalse(ts.incrementToken());
+		ts.end();
+		assertEquals(1, posIncrAtt.getPositionIncrement());
+		// all tokens are still counted
+		assertEquals(7, docValue(doc, "title.token_count"));
+
+		String invalidMapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+				.startObject("properties").startObject("title").field("type", "preanalyzed")
+				.startObject("index_tokens").array("include_flags", "hypothetical").endObject().endObject().endObject()
+				.endObject().endObject());
+		expectThrows(MapperParsingException.class, () -> parser.parse(null, new CompressedXContent(invalidMapping)));
+	}
+
+	public void testBinaryValue() throws Exception {
+		byte[] small = { 0, 1, 2, (byte) 0xff };
+		byte[] large = new byte[8192];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) (i % 7);
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("plain").field("type", "preanalyzed").field("store", true).endObject()
+				.startObject("title").field("type", "preanalyzed").field("store", true)
+				.field("compress_binary_threshold", "1kb").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		assertTrue(docMapper.mappingSource().string().contains("\"compress_binary_threshold\":\"1024b\""));
+		MappedFieldType fieldType = ((FieldMapper) docMapper.mappers().getMapper("title")).fieldType();
+		long compressedValues = PreAnalyzedIndexingStats.compressedBinaryValues();
+
+		// without a threshold, the decoded bytes are stored as they are
+		byte[] docBytes = Strings.toString(jsonBuilder().startObject()
+				.field("plain", binaryValue(Base64.getMimeEncoder().encodeToString(large)))
+				.field("title", binaryValue(Base64.getEncoder().withoutPadding().encodeToString(small))).endObject())
+				.getBytes(StandardCharsets.UTF_8);
+		Document doc = docMapper
+				.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON))
+				.rootDoc();
+		assertTrue(new BytesRef(large).bytesEquals(storedValue(doc, "plain")));
+		BytesRef stored = storedValue(doc, "title");
+		assertEquals(PreAnalyzedStoredBinary.RAW, stored.bytes[stored.offset]);
+		assertEquals(new BytesRef(small), fieldType.valueForDisplay(stored));
+
+		doc = parseDoc(docMapper, binaryValue(Base64.getEncoder().encodeToString(large)));
+		stored = storedValue(doc, "title");
+		assertEquals(PreAnalyzedStoredBinary.LZ4, stored.bytes[stored.offset]);
+		assertTrue(stored.length < large.length);
+		assertTrue(new BytesRef(large).bytesEquals((BytesRef) fieldType.valueForDisplay(stored)));
+		assertEquals(compressedValues + 1, PreAnalyzedIndexingStats.compressedBinaryValues());
+
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parseDoc(docMapper, binaryValue("AAE*")));
+		assertTrue(e.getRootCause().getMessage().contains("Illegal Base64 character"));
+
+		// the buffers of a huge value are not kept by the thread
+		byte[] huge = new byte[2 * PreAnalyzedStoredBinary.MAX_RETAINED_BUFFER_SIZE];
+		random().nextBytes(huge);
+		char[] hugeBase64 = Base64.getEncoder().encodeToString(huge).toCharArray();
+		BytesRef hugeStored = PreAnalyzedStoredBinary.encode(hugeBase64, 0, hugeBase64.length, 1024);
+		assertTrue(new BytesRef(huge).bytesEquals(PreAnalyzedStoredBinary.decode(hugeStored, 1024)));
+		assertTrue(PreAnalyzedStoredBinary.retainedBufferSize() <= 2 * PreAnalyzedStoredBinary.MAX_RETAINED_BUFFER_SIZE);
+	}
+
+	public void testSharedFieldTypes() throws Exception {
+		String value = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "cat")
+				.startArray("tokens").startObject().field("t", "cat").field("s", 0).field("e", 3).endObject()
+				.endArray().endObject());
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("store", true).endObject()
+				.startObject("text").field("type", "preanalyzed").field("store", true).endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		ParsedDocument doc = docMapper.parse(new SourceToParse("test", "document", "1", BytesReference
+				.bytes(jsonBuilder().startObject().field("title", value).field("text", value).endObject()),
+				XContentType.JSON));
+
+		// fields with the same configuration share the Lucene field types
+		IndexableField[] titleFields = doc.rootDoc().getFields("title");
+		IndexableField[] textFields = doc.rootDoc().getFields("text");
+		assertEquals(2, titleFields.length);
+		assertEquals(2, textFields.length);
+		for (int i = 0; i < titleFields.length; i++)
+			assertSame(titleFields[i].fieldType(), textFields[i].fieldType());
+
+		// clones of a frozen field type are independent of it
+		PreAnalyzedMapper.PreanalyzedFieldType fieldType = (PreAnalyzedMapper.PreanalyzedFieldType) ((FieldMapper) docMapper
+				.mappers().getMapper("title")).fieldType();
+		PreAnalyzedMapper.PreanalyzedFieldType clone = fieldType.clone();
+		assertEquals(fieldType, clone);
+		clone.setName("other");
+		clone.setFielddata(true);
+		clone.setFielddataMaxFrequency(0.5);
+		assertEquals("title", fieldType.name());
+		assertFalse(fieldType.fielddata());
+		assertTrue(clone.fielddata());
+		assertEquals(0.5, clone.fielddataMaxFrequency(), 0);
+		assertEquals(Integer.MAX_VALUE, fieldType.fielddataMaxFrequency(), 0);
+		expectThrows(IllegalStateException.class, () -> fieldType.setFielddata(true));
+
+		// shared field types are dropped once no mapper uses them
+		FieldType unused = new FieldType();
+		unused.setDocValuesType(DocValuesType.SORTED_NUMERIC);
+		WeakReference<FieldType> reference = new WeakReference<>(PreAnalyzedMapper.internFieldType(unused));
+		unused = null;
+		assertBusy(() -> {
+			System.gc();
+			assertNull(reference.get());
+		});
+	}
+
+	public void testTokenPipeline() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			String value = pipelineValue(2000, -1);
+			// the tokens span several chunks, read as they are decoded or,
+			// if the helper does not start, decoded at once
+			for (Executor tokensExecutor : Arrays.<Executor> asList(executor, command -> {
+			})) {
+				try (TokenStream ts = pipelinedTokenStream(value, tokensExecutor)) {
+					CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+					OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+					PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+					ts.reset();
+					for (int i = 0; i < 2000; i++) {
+						assertTrue(ts.incrementToken());
+						assertEquals("t" + i, termAtt.toString());
+						assertEquals(1, posIncrAtt.getPositionIncrement());
+						assertEquals(i * 2, offsetAtt.startOffset());
+					}
+					assertFalse(ts.incrementToken());
+					ts.end();
+					assertEquals(3999, offsetAtt.endOffset());
+				}
+			}
+
+			// a malformed token fails the stream after the preceding tokens
+			try (TokenStream ts = pipelinedTokenStream(pipelineValue(2000, 1500), executor)) {
+				ts.reset();
+				int tokens = 0;
+				MapperParsingException e = null;
+				try {
+					while (ts.incrementToken())
+						++tokens;
+				} catch (MapperParsingException thrown) {
+					e = thrown;
+				}
+				assertNotNull(e);
+				assertTrue(tokens <= 1500);
+				// the failure of the helper is wrapped, that of the fallback is
+				// not if the helper did not start in time
+				String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+				assertTrue(message, message.contains("[t1500]"));
+			}
+
+			// closing the stream stops the helper waiting for the next chunk
+			try (TokenStream ts = pipelinedTokenStream(pipelineValue(20000, -1), executor)) {
+				ts.reset();
+				assertTrue(ts.incrementToken());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * @return A preanalyzed value of <tt>size</tt> tokens, the one at
+	 *         <tt>malformed</tt> with backwards offsets.
+	 */
+	private String pipelineValue(int size, int malformed) throws IOException {
+		XContentBuilder builder = jsonBuilder().startObject().field("v", "1").startArray("tokens");
+		for (int i = 0; i < size; i++)
+			builder.startObject().field("t", "t" + i).field("s", i * 2).field("e", i == malformed ? 0 : i * 2 + 1)
+					.endObject();
+		return Strings.toString(builder.endArray().endObject());
+	}
+
+	private TokenStream pipelinedTokenStream(String value, Executor executor) {
+		return new PreAnalyzedTokenStream(new PreAnalyzedTokenPipeline(executor, pipeline -> {
+			try (XContentParser parser = tokensParser(value)) {
+				PreAnalyzedTokenDecoder.decode(parser, PreAnalyzedTokenDecoder.Settings.DEFAULT, pipeline);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, () -> {
+			try (XContentParser parser = tokensParser(value)) {
+				return new PreAnalyzedTokenStream(parser).tokens();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}));
+	}
+
+	/**
+	 * @return A parser pointing to the <tt>tokens</tt> array of the value.
+	 */
+	private XContentParser tokensParser(String value) throws IOException {
+		XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+				new NoopDeprecationHandler(), value);
+		while (parser.nextToken() != XContentParser.Token.START_ARRAY)
+			;
+		return parser;
+	}
+
+	private BytesRef storedValue(Document doc, String field) {
+		for (IndexableField f : doc.getFields(field)) {
+			if (f.fieldType().stored())
+				return f.binaryValue();
+		}
+		fail("No stored value for field " + field);
+		return null;
+	}
+
+	private String binaryValue(String base64) throws IOException {
+		return Strings.toString(jsonBuilder().startObject().field("v", "1").field("bin", base64)
+				.startArray("tokens").startObject().field("t", "value").endObject().endArray().endObject());
+	}
+
+	public void testTokenFiles() throws Exception {
+		Token black = new Token("Black", 0, 5);
+		Token beauty = new Token("Beauty", 6, 12);
+		beauty.setType("NNP");
+		Token horse = new Token("horse", 0, 5);
+		PreAnalyzedTokenStreamSerializer serializer = new PreAnalyzedTokenStreamSerializer();
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		serializer.writeBinary(new CannedTokenStream(horse), out);
+		long offset = out.size();
+		serializer.writeBinary(new CannedTokenStream(black, beauty), out);
+		long length = out.size() - offset;
+		Path dir = createTempDir();
+		Files.createDirectories(dir.resolve("corpus"));
+		Files.write(dir.resolve("corpus").resolve("part-0.bin"), out.toArrayCopy());
+
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").endObject()
+				.endObject().endObject().endObject());
+		try (PreAnalyzedTokenFiles tokenFiles = new PreAnalyzedTokenFiles(Collections.singletonList(dir.toString()))) {
+			Map<String, Mapper.TypeParser> typeParsers = Collections.singletonMap(PreAnalyzedMapper.CONTENT_TYPE,
+					new PreAnalyzedMapper.TypeParser(tokenFiles));
+			DocumentMapperParser fileParser = new DocumentMapperParser(indexService.getIndexSettings(),
+					indexService.mapperService(), indexService.getIndexAnalyzers(), null,
+					indexService.similarityService(), new MapperRegistry(typeParsers,
+							Collections.<String, MetadataFieldMapper.TypeParser> emptyMap(), field -> name -> true),
+					null);
+			DocumentMapper docMapper = fileParser.parse(null, new CompressedXContent(mapping));
+
+			Document doc = parseDoc(docMapper, fileValue("corpus/part-0.bin", offset, length));
+			TokenStream ts = tokenStream(doc, "title");
+			CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+			TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+			ts.reset();
+			assertTrue(ts.incrementToken());
+			assertEquals("Black", termAtt.toString());
+			assertTrue(ts.incrementToken());
+			assertEquals("Beauty", termAtt.toString());
+			assertEquals("NNP", typeAtt.type());
+			assertFalse(ts.incrementToken());
+
+			// the mapping of the file is reused
+			doc = parseDoc(docMapper, fileValue(dir.resolve("corpus/part-0.bin").toString(), 0, offset));
+			ts = tokenStream(doc, "title");
+			termAtt = ts.addAttribute(CharTermAttribute.class);
+			ts.reset();
+			assertTrue(ts.incrementToken());
+			assertEquals("horse", termAtt.toString());
+			assertFalse(ts.incrementToken());
+
+			MapperParsingException e = expectThrows(MapperParsingException.class,
+					() -> parseDoc(docMapper, fileValue("../outside.bin", 0, offset)));
+			assertTrue(e.getRootCause().getMessage().contains("is not below the allowed directories"));
+			e = expectThrows(MapperParsingException.class,
+					() -> parseDoc(docMapper, fileValue("corpus/part-0.bin", offset, length + 1)));
+			assertTrue(e.getRootCause().getMessage().contains("is not within the token file"));
+		}
+
+		// token files are disabled without allowed directories
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> parseDoc(docMapper, fileValue("corpus/part-0.bin", offset, length)));
+		assertTrue(e.getRootCause().getMessage().contains(PreAnalyzedTokenFiles.ALLOWED_PATHS_SETTING.getKey()));
+	}
+
+	public void testTokenFilesEviction() throws Exception {
+		PreAnalyzedTokenStreamSerializer serializer = new PreAnalyzedTokenStreamSerializer();
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		serializer.writeBinary(new CannedTokenStream(new Token("horse", 0, 5)), out);
+		byte[] horse = out.toArrayCopy();
+		Path dir = createTempDir();
+		Files.write(dir.resolve("a.bin"), horse);
+		Files.write(dir.resolve("b.bin"), horse);
+
+		PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+		try (PreAnalyzedTokenFiles tokenFiles = new PreAnalyzedTokenFiles(Collections.singletonList(dir.toString()),
+				1)) {
+			tokenFiles.read("a.bin", 0, horse.length, tokens);
+			assertEquals(1, tokenFiles.mappedFileCount());
+			// a.bin is unmapped
+			tokenFiles.read("b.bin", 0, horse.length, tokens);
+			assertEquals(1, tokenFiles.mappedFileCount());
+			tokenFiles.read("a.bin", 0, horse.length, tokens);
+			assertEquals(1, tokenFiles.mappedFileCount());
+
+			// a grown file is mapped again
+			Files.write(dir.resolve("a.bin"), horse, StandardOpenOption.APPEND);
+			tokenFiles.read("a.bin", horse.length, horse.length, tokens);
+			assertEquals(1, tokenFiles.mappedFileCount());
+			assertEquals(4, tokens.size());
+			for (int i = 0; i < tokens.size(); i++)
+				assertEquals("horse", tokens.term(i));
+		}
+	}
+
+	public void testTokenFilesMalformed() throws Exception {
+		PreAnalyzedTokens fileTokens = new PreAnalyzedTokens();
+		fileTokens.setOffsets(fileTokens.add("Black".toCharArray(), 0, 5), 0, 5);
+		int horse = fileTokens.add("horse".toCharArray(), 0, 5);
+		fileTokens.setOffsets(horse, 6, 12);
+		fileTokens.setPositionIncrement(horse, -1);
+		fileTokens.setOffsets(fileTokens.add("Beauty".toCharArray(), 0, 6), 6, 12);
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		PreAnalyzedBinaryFormat.write(fileTokens, out);
+		byte[] valid = out.toArrayCopy();
+		// a term longer than the data, a type id that has not been read and
+		// data that ends early
+		byte[][] corrupt = { { PreAnalyzedBinaryFormat.VERSION, 1, 0, -1, -1, -1, -1, 7 },
+				{ PreAnalyzedBinaryFormat.VERSION, 1, 4, 1, 'a', 0, 2, 5 }, Arrays.copyOf(valid, valid.length - 1) };
+		for (byte[] bytes : corrupt) {
+			expectThrows(IOException.class, () -> PreAnalyzedBinaryFormat.read(new ByteArrayDataInput(bytes),
+					bytes.length, new PreAnalyzedTokens()));
+		}
+		Path dir = createTempDir();
+		Files.write(dir.resolve("valid.bin"), valid);
+		for (int i = 0; i < corrupt.length; i++)
+			Files.write(dir.resolve("corrupt-" + i + ".bin"), corrupt[i]);
+
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").endObject()
+				.endObject().endObject().endObject());
+		String ignoreMalformedMapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+				.startObject("properties").startObject("title").field("type", "preanalyzed")
+				.field("ignore_malformed", true).endObject().endObject().endObject().endObject());
+		try (PreAnalyzedTokenFiles tokenFiles = new PreAnalyzedTokenFiles(Collections.singletonList(dir.toString()))) {
+			Map<String, Mapper.TypeParser> typeParsers = Collections.singletonMap(PreAnalyzedMapper.CONTENT_TYPE,
+					new PreAnalyzedMapper.TypeParser(tokenFiles));
+			DocumentMapperParser fileParser = new DocumentMapperParser(indexService.getIndexSettings(),
+					indexService.mapperService(), indexService.getIndexAnalyzers(), null,
+					indexService.similarityService(), new MapperRegistry(typeParsers,
+							Collections.<String, MetadataFieldMapper.TypeParser> emptyMap(), field -> name -> true),
+					null);
+			DocumentMapper strictMapper = fileParser.parse(null, new CompressedXContent(mapping));
+			DocumentMapper docMapper = fileParser.parse(null, new CompressedXContent(ignoreMalformedMapping));
+
+			// tokens from files are validated like tokens from JSON
+			MapperParsingException e = expectThrows(MapperParsingException.class,
+					() -> parseDoc(strictMapper, fileValue("valid.bin", 0, valid.length)));
+			assertTrue(e.getRootCause().getMessage().contains("the position increment is negative"));
+			long malformedTokens = PreAnalyzedIndexingStats.malformedTokens();
+			Document doc = parseDoc(docMapper, fileValue("valid.bin", 0, valid.length));
+			assertEquals("title", doc.getField(IgnoredFieldMapper.NAME).stringValue());
+			assertEquals(malformedTokens + 1, PreAnalyzedIndexingStats.malformedTokens());
+			TokenStream ts = tokenStream(doc, "title");
+			CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+			ts.reset();
+			assertTrue(ts.incrementToken());
+			assertEquals("Black", termAtt.toString());
+			assertTrue(ts.incrementToken());
+			assertEquals("Beauty", termAtt.toString());
+			assertFalse(ts.incrementToken());
+
+			for (int i = 0; i < corrupt.length; i++) {
+				String value = fileValue("corrupt-" + i + ".bin", 0, corrupt[i].length);
+				e = expectThrows(MapperParsingException.class, () -> parseDoc(strictMapper, value));
+				assertTrue(e.getRootCause().getMessage().contains("Corrupt binary preanalyzed tokens"));
+				long malformedValues = PreAnalyzedIndexingStats.malformedValues();
+				doc = parseDoc(docMapper, value);
+				assertEquals("title", doc.getField(IgnoredFieldMapper.NAME).stringValue());
+				assertNull(doc.getField("title"));
+				assertEquals(malformedValues + 1, PreAnalyzedIndexingStats.malformedValues());
+			}
+		}
+	}
+
+	public void testTokenFilesSecurityManager() throws Exception {
+		assumeTrue("token files are read in privileged blocks", System.getSecurityManager() != null);
+		PreAnalyzedTokenStreamSerializer serializer = new PreAnalyzedTokenStreamSerializer();
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		serializer.writeBinary(new CannedTokenStream(new Token("horse", 0, 5)), out);
+		byte[] horse = out.toArrayCopy();
+		Path dir = createTempDir();
+		Path file = dir.resolve("part-0.bin");
+		Files.write(file, horse);
+
+		// like indexing code that may not read the allowed directories
+		Permissions permissions = new Permissions();
+		permissions.add(new SpecialPermission());
+		AccessControlContext unprivileged = new AccessControlContext(
+				new ProtectionDomain[] { new ProtectionDomain(null, permissions) });
+		expectThrows(AccessControlException.class, () -> AccessController
+				.doPrivileged((PrivilegedExceptionAction<Long>) () -> Files.size(file), unprivileged));
+
+		PreAnalyzedTokens tokens = new PreAnalyzedTokens();
+		try (PreAnalyzedTokenFiles tokenFiles = new PreAnalyzedTokenFiles(Collections.singletonList(dir.toString()))) {
+			AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+				tokenFiles.read("part-0.bin", 0, horse.length, tokens);
+				return null;
+			}, unprivileged);
+		}
+		assertEquals(1, tokens.size());
+		assertEquals("horse", tokens.term(0));
+	}
+
+	public void testTokenFilesPolicy() throws Exception {
+		URL policyFile = getClass().getResource("/plugin-metadata/plugin-security.policy");
+		Path dir = createTempDir().toRealPath();
+		Path outside = createTempDir().toRealPath();
+		ProtectionDomain plugin = new ProtectionDomain(
+				new CodeSource(new URL("file:/plugins/preanalyzed.jar"), (Certificate[]) null), null);
+
+		// nothing is granted without the property
+		assertNull(System.getProperty(PreAnalyzedTokenFiles.POLICY_PATH_PROPERTY));
+		PrivilegedExceptionAction<Policy> readPolicy = () -> Policy.getInstance("JavaPolicy",
+				new URIParameter(policyFile.toURI()));
+		Policy policy = AccessController.doPrivileged(readPolicy);
+		assertFalse(policy.implies(plugin, new FilePermission(dir.resolve("part-0.bin").toString(), "read")));
+		assertFalse(policy.implies(plugin, new FilePermission(outside.toString(), "read")));
+
+		policy = AccessController.doPrivileged((PrivilegedExceptionAction<Policy>) () -> {
+			System.setProperty(PreAnalyzedTokenFiles.POLICY_PATH_PROPERTY, dir.toString());
+			try {
+				return readPolicy.run();
+			} finally {
+				System.clearProperty(PreAnalyzedTokenFiles.POLICY_PATH_PROPERTY);
+			}
+		});
+		assertTrue(policy.implies(plugin, new FilePermission(dir.toString(), "read")));
+		assertTrue(policy.implies(plugin, new FilePermission(dir.resolve("corpus/part-0.bin").toString(), "read")));
+		assertFalse(policy.implies(plugin, new FilePermission(dir.resolve("part-0.bin").toString(), "write")));
+		assertFalse(policy.implies(plugin, new FilePermission(outside.resolve("part-0.bin").toString(), "read")));
+
+		// the allowed directories must be below the directory of the policy
+		PreAnalyzedTokenFiles tokenFiles = new PreAnalyzedTokenFiles(
+				Collections.singletonList(dir.resolve("corpus").toString()));
+		tokenFiles.checkPolicyPath(dir.toString());
+		IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+				() -> tokenFiles.checkPolicyPath(outside.toString()));
+		assertTrue(e.getMessage().contains(PreAnalyzedTokenFiles.POLICY_PATH_PROPERTY));
+		expectThrows(IllegalArgumentException.class, () -> tokenFiles.checkPolicyPath(null));
+		PreAnalyzedTokenFiles.DISABLED.checkPolicyPath(null);
+	}
+
+	public void testIndexAnalyzer() throws Exception {
+		String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("analyzer", "standard").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper docMapper = parser.parse(null, new CompressedXContent(mapping));
+		Analyzer analyzer = ((FieldMapper) docMapper.mappers().getMapper("title")).fieldType().indexAnalyzer();
+
+		assertEquals(Arrays.asList("black", "beauty"), terms(analyzer, "Black Beauty"));
+		// no JSON or no tokens are plain text
+		assertEquals(Arrays.asList("black", "beauty"), terms(analyzer, "{Black Beauty"));
+		assertEquals(Arrays.asList("v", "1", "str", "black", "beauty"),
+				terms(analyzer, "{\"v\":\"1\",\"str\":\"Black Beauty\"}"));
+		assertEquals(Arrays.asList("Black"),
+				terms(analyzer, "{\"v\":\"1\",\"tokens\":[{\"t\":\"Black\",\"s\":0,\"e\":5}]}"));
+
+		// tokens that cannot be decoded are no plain text
+		MapperParsingException e = expectThrows(MapperParsingException.class,
+				() -> terms(analyzer, "{\"v\":\"1\",\"tokens\":[{\"s\":0,\"e\":5}]}"));
+		assertTrue(e.getMessage().contains("no term is specified"));
+		e = expectThrows(MapperParsingException.class, () -> terms(analyzer, fileValue("part-0.bin", 0, 1)));
+		assertTrue(e.getMessage().contains(PreAnalyzedTokenFiles.ALLOWED_PATHS_SETTING.getKey()));
+
+		// the analyzer decodes the tokens like the mapper
+		String backwards = "{\"v\":\"1\",\"tokens\":[{\"t\":\"Beauty\",\"s\":6,\"e\":12},{\"t\":\"Black\",\"s\":0,\"e\":5}]}";
+		assertEquals(Arrays.asList("Beauty", "Black"), terms(analyzer, backwards));
+		mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+				.startObject("title").field("type", "preanalyzed").field("analyzer", "standard")
+				.field("index_options", "offsets").endObject()
+				.endObject().endObject().endObject());
+		DocumentMapper offsetsMapper = parser.parse(null, new CompressedXContent(mapping));
+		Analyzer offsetsAnalyzer = ((FieldMapper) offsetsMapper.mappers().getMapper("title")).fieldType().indexAnalyzer();
+		e = expectThrows(MapperParsingException.class, () -> terms(offsetsAnalyzer, backwards));
+		assertTrue(e.getMessage().contains("the start offset is less than that of the previous token"));
+		e = expectThrows(MapperParsingException.class, () -> parseDoc(offsetsMapper, backwards));
+		assertTrue(e.getRootCause().getMessage().contains("the start offset is less than that of the previous token"));
+	}
+
+	private List<String> terms(Analyzer analyzer, String text) throws IOException {
+		List<String> terms = new ArrayList<>();
+		try (TokenStream ts = analyzer.tokenStream("title", text)) {
+			CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+			ts.reset();
+			while (ts.incrementToken())
+				terms.add(termAtt.toString());
+			ts.end();
+		}
+		return terms;
+	}
+
+	public void testTokenStreamSerializer() throws Exception {
+		Token black = new Token("Black", 0, 5);
+		black.setType("JJ");
+		black.setFlags(Integer.MIN_VALUE | 1);
+		Token hero = new Token("hero", 0, 12);
+		hero.setPositionIncrement(0);
+		hero.setType("NNP");
+		hero.setPayload(new BytesRef("h\u00e9ros"));
+		hero.setPositionLength(2);
+		Token beauty = new Token("Beauty", 6, 12);
+		PreAnalyzedTokenStreamSerializer serializer = new PreAnalyzedTokenStreamSerializer("NN", "NNP");
+
+		String json = serializer.toJson(new CannedTokenStream(black, hero, beauty), "Black Beauty");
+		assertTrue(json.contains("\"y\":1"));
+		XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+				new NoopDeprecationHandler(), json);
+		assertEquals("Black Beauty", PreAnalyzedMapper.parseStringValue(json));
+		while (parser.nextToken() != XContentParser.Token.START_ARRAY)
+			;
+		PreAnalyzedTokens tokens = new PreAnalyzedTokenStream(parser,
+				PreAnalyzedTokenDecoder.Settings.DEFAULT.withDictionaries(new PreAnalyzedDictionary("NN", "NNP"), null))
+				.tokens();
+		assertTokens(tokens, black, hero, beauty);
+
+		ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+		serializer.writeBinary(new CannedTokenStream(black, hero, beauty), out);
+		byte[] bytes = out.toArrayCopy();
+		tokens = new PreAnalyzedTokens();
+		PreAnalyzedBinaryFormat.read(new ByteArrayDataInput(bytes), bytes.length, tokens);
+		assertTokens(tokens, black, hero, beauty);
+	}
+
+	private void assertTokens(PreAnalyzedTokens tokens, Token... expected) {
+		assertEquals(expected.length, tokens.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].toString(), tokens.term(i));
+			assertEquals(expected[i].startOffset(), tokens.startOffset(i));
+			assertEquals(expected[i].endOffset(), tokens.endOffset(i));
+			assertEquals(expected[i].getPositionIncrement(), tokens.positionIncrement(i));
+			assertEquals(expected[i].getPositionLength(), tokens.positionLength(i));
+			assertEquals(expected[i].getFlags(), tokens.flags(i));
+			assertEquals(TypeAttribute.DEFAULT_TYPE.equals(expected[i].type()) ? null : expected[i].type(),
+					tokens.type(i));
+			assertEquals(expected[i].getPayload(), tokens.payload(i));
+		}
+	}
+
+	private Document parseDoc(DocumentMapper docMapper, String value) throws IOException {
+		byte[] docBytes = Strings.toString(jsonBuilder().startObject().field("title", value).endObject())
+				.getBytes(StandardCharsets.UTF_8);
+		return docMapper.parse(new SourceToParse("test", "document", "1", new BytesArray(docBytes), XContentType.JSON))
+				.rootDoc();
+	}
+
+	private String fileValue(String path, long offset, long length) throws IOException {
+		return Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "Black Beauty")
+				.startObject("file").field("path", path).field("offset", offset).field("length", length).endObject()
+				.endObject());
+	}
+
+	private TokenStream tokenStream(Document doc, String field) {
+		for (IndexableField f : doc.getFields(field)) {
+			if (f instanceof Field && ((Field) f).tokenStreamValue() != null)
+				return ((Field) f).tokenStreamValue();
+		}
+		fail("No token stream for field " + field);
+		return null;
+	}
+
+	private long docValue(Document doc, String field) {
+		for (IndexableField f : doc.getFields(field)) {
+			if (f.fieldType().docValuesType() != DocValuesType.NONE)
+				return f.numericValue().longValue();
+		}
+		fail("No doc value for field " + field);
+		return -1;
+	}
+
 	private void parsedPreanalyzedTokensCorrect(TokenStream ts) throws IOException {
 		CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
 		OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
@@ -22,25 +22,75 @@ import static org.elasticsearch.client.Requests.putMappingRequest;
 import static org.elasticsearch.index.query.QueryBuilders.matchPhraseQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
 import static org.elasticsearch.index.query.QueryBuilders.queryStringQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.index.query.QueryBuilders.spanNearQuery;
+import static org.elasticsearch.index.query.QueryBuilders.spanTermQuery;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedFieldStats;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsAction;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsRequest;
+import org.elasticsearch.action.admin.indices.preanalyzed.PreAnalyzedStatsResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.action.termvectors.TermVectorsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.mapper.MapperParsingException;
 import org.elasticsearch.index.plugin.mapper.preanalyzed.MapperPreAnalyzedPlugin;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.SpanNearQueryBuilder;
+import org.elasticsearch.index.query.preanalyzed.SpanBoundaryQuery;
+import org.elasticsearch.index.query.preanalyzed.SpanBoundaryQueryBuilder;
+import org.elasticsearch.index.query.preanalyzed.SpanFlagsQuery;
+import org.elasticsearch.index.query.preanalyzed.SpanFlagsQueryBuilder;
+import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.aggregations.preanalyzed.Cooccurrence;
+import org.elasticsearch.search.aggregations.preanalyzed.CooccurrenceAggregationBuilder;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.test.ESIntegTestCase;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -50,6 +100,11 @@ public class PreanalyzedInternalIntegrationTests extends ESIntegTestCase {
 
     @Override
     protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Arrays.asList(MapperPreAnalyzedPlugin.class, SynonymGraphPlugin.class);
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
         return Collections.singleton(MapperPreAnalyzedPlugin.class);
     }
 
@@ -138,4 +193,512 @@ public class PreanalyzedInternalIntegrationTests extends ESIntegTestCase {
 
         assertTrue(((String) searchHit.field("title").getValue()).startsWith("Black Beauty"));
     }
+
+    public void testSyntheticSource() throws Exception {
+        String mapping = IOUtils.toString(getClass().getResourceAsStream("/syntheticSourceMapping.json"), "UTF-8");
+        byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", XContentHelper.convertToJson(new BytesArray(docBytes), false, false, XContentType.JSON));
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(matchQuery("title", "Black")).execute()
+                .actionGet();
+        assertEquals(1, searchResponse.getHits().getTotalHits().value);
+        Map<String, Object> source = searchResponse.getHits().getHits()[0].getSourceAsMap();
+        assertEquals("Anna Sewell", source.get("author"));
+        // the title has been excluded from the source and is synthesized from
+        // the stored value and tokens
+        String title = (String) source.get("title");
+        assertNotNull(title);
+        Map<String, Object> titleValue = XContentHelper.convertToMap(XContentType.JSON.xContent(), title, false);
+        assertEquals("Black Beauty ran past the bloody barn.", titleValue.get("str"));
+        assertEquals(11, ((List<?>) titleValue.get("tokens")).size());
+
+        // source filtering is respected
+        searchResponse = client().prepareSearch("test").setQuery(matchQuery("title", "Black"))
+                .setFetchSource("author", null).execute().actionGet();
+        assertFalse(searchResponse.getHits().getHits()[0].getSourceAsMap().containsKey("title"));
+
+        // the synthesized value can be indexed again
+        index("test", "document", "2", searchResponse.getHits().getHits()[0].getSourceAsMap());
+        index("test", "document", "3", source);
+        refresh();
+        searchResponse = client().prepareSearch("test").setQuery(matchQuery("title", "Black")).setSize(0).execute()
+                .actionGet();
+        assertEquals(2, searchResponse.getHits().getTotalHits().value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testCompressedBinaryValue() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document")
+                .startObject("_source").array("excludes", "text").endObject().startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("store", true).field("synthetic_source", true)
+                .field("compress_binary_threshold", "1kb").endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        byte[] value = new byte[16384];
+        for (int i = 0; i < value.length; i++)
+            value[i] = (byte) (i % 13);
+        String base64 = Base64.getEncoder().encodeToString(value);
+        index("test", "document", "1", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("bin", base64).startArray("tokens")
+                .startObject().field("t", "value").endObject().endArray().endObject())));
+        refresh();
+
+        // stored fields and synthetic source return the original bytes
+        GetResponse getResponse = client().prepareGet("test", "document", "1").setStoredFields("text").get();
+        assertTrue(new BytesRef(value).bytesEquals((BytesRef) getResponse.getField("text").getValue()));
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(matchQuery("text", "value")).get();
+        String text = (String) searchResponse.getHits().getAt(0).getSourceAsMap().get("text");
+        assertEquals(base64, XContentHelper.convertToMap(XContentType.JSON.xContent(), text, false).get("bin"));
+    }
+
+    public void testOffsetsHighlighting() throws Exception {
+        String mapping = IOUtils.toString(getClass().getResourceAsStream("/offsetsMapping.json"), "UTF-8");
+        byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        Map<String, Object> doc = XContentHelper.convertToMap(new BytesArray(docBytes), false, XContentType.JSON).v2();
+        doc.put("subtitle", doc.get("title"));
+        index("test", "document", "1", doc);
+        refresh();
+
+        // the stored title, highlighted from the indexed offsets
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(matchQuery("title", "barn"))
+                .highlighter(new HighlightBuilder().field("title").highlighterType("preanalyzed").numOfFragments(0))
+                .execute().actionGet();
+        assertEquals(1, searchResponse.getHits().getTotalHits().value);
+        assertEquals("Black Beauty ran past the bloody <em>barn</em>.",
+                searchResponse.getHits().getHits()[0].getHighlightFields().get("title").fragments()[0].string());
+
+        // stacked tokens with overlapping offsets are merged
+        searchResponse = client().prepareSearch("test")
+                .setQuery(queryStringQuery("Black OR hero").defaultField("title").analyzer("whitespace"))
+                .highlighter(new HighlightBuilder().field("title").highlighterType("preanalyzed").numOfFragments(0))
+                .execute().actionGet();
+        assertEquals("<em>Black Beauty</em> ran past the bloody barn.",
+                searchResponse.getHits().getHits()[0].getHighlightFields().get("title").fragments()[0].string());
+
+        // the tags are cycled through by query term, for all hits of the
+        // shard from the same query terms
+        index("test", "document", "2", doc);
+        refresh();
+        searchResponse = client().prepareSearch("test")
+                .setQuery(queryStringQuery("past OR barn").defaultField("title").analyzer("whitespace"))
+                .highlighter(new HighlightBuilder().field("title").highlighterType("preanalyzed").numOfFragments(0)
+                        .preTags("<b>", "<i>").postTags("</b>", "</i>"))
+                .execute().actionGet();
+        assertEquals(2, searchResponse.getHits().getTotalHits().value);
+        for (SearchHit hit : searchResponse.getHits().getHits())
+            assertEquals("Black Beauty ran <b>past</b> the bloody <i>barn</i>.",
+                    hit.getHighlightFields().get("title").fragments()[0].string());
+
+        // the unstored subtitle, highlighted from the str value in the source
+        searchResponse = client().prepareSearch("test").setQuery(matchQuery("subtitle", "past"))
+                .highlighter(new HighlightBuilder().field("subtitle").highlighterType("preanalyzed").fragmentSize(10))
+                .execute().actionGet();
+        assertEquals("ran <em>past</em> the",
+                searchResponse.getHits().getHits()[0].getHighlightFields().get("subtitle").fragments()[0].string());
+
+        // the unified highlighter also uses the offsets from the postings
+        searchResponse = client().prepareSearch("test").setQuery(matchQuery("title", "barn"))
+                .highlighter(new HighlightBuilder().field("title").highlighterType("unified").numOfFragments(0))
+                .execute().actionGet();
+        assertEquals("Black Beauty ran past the bloody <em>barn</em>.",
+                searchResponse.getHits().getHits()[0].getHighlightFields().get("title").fragments()[0].string());
+    }
+
+    public void testTokenCount() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("title").field("type", "preanalyzed").startObject("token_count").field("exclude_stacked", true)
+                .endObject().endObject().endObject().endObject().endObject());
+        byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", XContentHelper.convertToJson(new BytesArray(docBytes), false, false, XContentType.JSON));
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch("test")
+                .setQuery(rangeQuery("title.token_count").gte(8).lte(8)).setSize(0).execute().actionGet();
+        assertEquals(1, searchResponse.getHits().getTotalHits().value);
+        searchResponse = client().prepareSearch("test").setSize(0)
+                .addAggregation(AggregationBuilders.max("max_length").field("title.token_count")).execute().actionGet();
+        assertEquals(8d, ((Max) searchResponse.getAggregations().get("max_length")).getValue(), 0d);
+    }
+
+    public void testIndexFlags() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("index_flags", true)
+                .array("flag_dictionary", "negated", "hypothetical").endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "no smoking").startArray("tokens")
+                .startObject().field("t", "no").field("s", 0).field("e", 2).endObject()
+                .startObject().field("t", "smoking").field("s", 3).field("e", 10).field("f", "negated").endObject()
+                .endArray().endObject())));
+        index("test", "document", "2", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "smoking").startArray("tokens")
+                .startObject().field("t", "smoking").field("s", 0).field("e", 7).field("p", "payload").endObject()
+                .endArray().endObject())));
+        refresh();
+
+        assertSearchHits(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), "negated"), "1");
+        assertSearchHits(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), 1), "1");
+        assertSearchHits(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), "negated", "hypothetical")
+                .mode(SpanFlagsQuery.Mode.ANY), "1");
+        assertSearchHits(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), "negated")
+                .mode(SpanFlagsQuery.Mode.NONE), "2");
+        assertSearchHits(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), "hypothetical"));
+        // the flags of every term of a phrase are checked
+        assertSearchHits(new SpanFlagsQueryBuilder(spanNearQuery(spanTermQuery("text", "no"), 0)
+                .addClause(spanTermQuery("text", "smoking")), "negated"));
+        assertSearchHits(spanNearQuery(spanTermQuery("text", "no"), 0)
+                .addClause(new SpanFlagsQueryBuilder(spanTermQuery("text", "smoking"), "negated")), "1");
+    }
+
+    public void testIndexTokens() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").startObject("index_tokens")
+                .array("exclude_types", "PUNCT").endObject().endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "aspirin, headache").startArray("tokens")
+                .startObject().field("t", "aspirin").field("s", 0).field("e", 7).endObject()
+                .startObject().field("t", ",").field("s", 7).field("e", 8).field("y", "PUNCT").endObject()
+                .startObject().field("t", "headache").field("s", 9).field("e", 17).endObject()
+                .endArray().endObject())));
+        refresh();
+
+        assertSearchHits(spanTermQuery("text", ","));
+        // the punctuation still takes its position
+        assertSearchHits(spanNearQuery(spanTermQuery("text", "aspirin"), 0).addClause(spanTermQuery("text", "headache")));
+        assertSearchHits(spanNearQuery(spanTermQuery("text", "aspirin"), 1).addClause(spanTermQuery("text", "headache")),
+                "1");
+    }
+
+    public void testGraphPhraseQueries() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("analyzer", "standard")
+                .field("search_analyzer", "synonyms").endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test")
+                .setSettings(Settings.builder()
+                        .put("index.analysis.filter.entities.type", "synonym_graph")
+                        .putList("index.analysis.filter.entities.synonyms", "heart attack => myocardial_infarction")
+                        .put("index.analysis.analyzer.synonyms.tokenizer", "standard")
+                        .putList("index.analysis.analyzer.synonyms.filter", "lowercase", "entities"))
+                .addMapping("document", mapping, XContentType.JSON));
+        // the entity is stacked on the words it covers
+        index("test", "document", "1", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "heart attack risk").startArray("tokens")
+                .startObject().field("t", "heart").field("s", 0).field("e", 5).endObject()
+                .startObject().field("t", "myocardial_infarction").field("s", 0).field("e", 12).field("i", 0)
+                .field("l", 2).endObject()
+                .startObject().field("t", "attack").field("s", 6).field("e", 12).endObject()
+                .startObject().field("t", "risk").field("s", 13).field("e", 17).endObject()
+                .endArray().endObject())));
+        index("test", "document", "2", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "myocardial infarction risk").startArray("tokens")
+                .startObject().field("t", "myocardial").field("s", 0).field("e", 10).endObject()
+                .startObject().field("t", "myocardial_infarction").field("s", 0).field("e", 21).field("i", 0)
+                .field("l", 2).endObject()
+                .startObject().field("t", "infarction").field("s", 11).field("e", 21).endObject()
+                .startObject().field("t", "risk").field("s", 22).field("e", 26).endObject()
+                .endArray().endObject())));
+        index("test", "document", "3", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "risk of heart attack").startArray("tokens")
+                .startObject().field("t", "risk").field("s", 0).field("e", 4).endObject()
+                .startObject().field("t", "of").field("s", 5).field("e", 7).endObject()
+                .startObject().field("t", "heart").field("s", 8).field("e", 13).endObject()
+                .startObject().field("t", "myocardial_infarction").field("s", 8).field("e", 20).field("i", 0)
+                .field("l", 2).endObject()
+                .startObject().field("t", "attack").field("s", 14).field("e", 20).endObject()
+                .endArray().endObject())));
+        refresh();
+
+        // the search analyzer turns the words into the entity spanning two
+        // positions, which is only followed by "risk" because it is indexed
+        // at each position it covers
+        assertSearchHitIds(matchPhraseQuery("text", "heart attack risk"), "1", "2");
+        assertSearchHitIds(queryStringQuery("\"heart attack risk\"").defaultField("text"), "1", "2");
+        assertSearchHitIds(matchPhraseQuery("text", "heart attack risk").slop(1), "1", "2");
+        assertSearchHitIds(matchPhraseQuery("text", "risk heart attack").slop(1), "3");
+    }
+
+    private void assertSearchHitIds(QueryBuilder query, String... ids) {
+        TreeSet<String> hitIds = new TreeSet<>();
+        for (SearchHit hit : client().prepareSearch("test").setQuery(query).get().getHits())
+            hitIds.add(hit.getId());
+        assertEquals(new TreeSet<>(Arrays.asList(ids)), hitIds);
+    }
+
+    /**
+     * Provides the <tt>synonym_graph</tt> token filter of the analysis-common
+     * module, which is not on the test class path, with the synonyms in Solr
+     * format.
+     */
+    public static class SynonymGraphPlugin extends Plugin implements AnalysisPlugin {
+        @Override
+        public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
+            return Collections.singletonMap("synonym_graph", (indexSettings, environment, name, settings) -> {
+                SolrSynonymParser parser = new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+                try {
+                    parser.parse(new StringReader(String.join("\n", settings.getAsList("synonyms"))));
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Invalid synonyms", e);
+                }
+                SynonymMap synonyms = parser.build();
+                return new AbstractTokenFilterFactory(indexSettings, name, settings) {
+                    @Override
+                    public TokenStream create(TokenStream tokenStream) {
+                        return new SynonymGraphFilter(tokenStream, synonyms, true);
+                    }
+                };
+            });
+        }
+    }
+
+    public void testBoundaries() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("boundaries", true).endObject().endObject()
+                .endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "aspirin cures headache").startArray("tokens")
+                .startObject().field("t", "aspirin").field("s", 0).field("e", 7).endObject()
+                .startObject().field("t", "cures").field("s", 8).field("e", 13).endObject()
+                .startObject().field("t", "headache").field("s", 14).field("e", 22).endObject()
+                .endArray().endObject())));
+        index("test", "document", "2", Collections.singletonMap("text", Strings.toString(jsonBuilder().startObject()
+                .field("v", "1").field("str", "aspirin. headache").startArray("tokens")
+                .startObject().field("t", "aspirin").field("s", 0).field("e", 7).endObject()
+                .startObject().field("t", "headache").field("s", 9).field("e", 17).field("b", "sentence").endObject()
+                .endArray().endObject())));
+        refresh();
+
+        SpanNearQueryBuilder near = spanNearQuery(spanTermQuery("text", "aspirin"), 1000)
+                .addClause(spanTermQuery("text", "headache")).inOrder(false);
+        assertSearchHits(near, "1", "2");
+        // the boundary gap keeps small slops from matching across sentences
+        assertSearchHits(spanNearQuery(spanTermQuery("text", "aspirin"), 10)
+                .addClause(spanTermQuery("text", "headache")), "1");
+        assertSearchHits(new SpanBoundaryQueryBuilder(near), "1");
+        assertSearchHits(new SpanBoundaryQueryBuilder(near).boundary(SpanBoundaryQuery.Boundary.SECTION), "1", "2");
+    }
+
+    private void assertSearchHits(QueryBuilder query, String... ids) {
+        SearchResponse searchResponse = client().prepareSearch("test").setQuery(query).execute().actionGet();
+        assertEquals(ids.length, searchResponse.getHits().getTotalHits().value);
+        for (int i = 0; i < ids.length; i++)
+            assertEquals(ids[i], searchResponse.getHits().getAt(i).getId());
+    }
+
+    public void testStats() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").endObject()
+                .startObject("title").field("type", "preanalyzed").field("store", true).field("synthetic_source", true)
+                .endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        String blackBeauty = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "Black Beauty")
+                .startArray("tokens")
+                .startObject().field("t", "Black").field("s", 0).field("e", 5).field("y", "JJ").endObject()
+                .startObject().field("t", "Beauty").field("s", 6).field("e", 12).field("y", "NNP").endObject()
+                .startObject().field("t", "horse").field("s", 6).field("e", 12).field("i", 0).field("y", "animal").endObject()
+                .endArray().endObject());
+        String smoking = Strings.toString(jsonBuilder().startObject().field("v", "1").field("str", "smoking")
+                .startArray("tokens").startObject().field("t", "smoking").field("s", 0).field("e", 7).endObject()
+                .endArray().endObject());
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("text", blackBeauty);
+        doc.put("title", blackBeauty);
+        index("test", "document", "1", doc);
+        index("test", "document", "2", Collections.singletonMap("text", smoking));
+        refresh();
+
+        PreAnalyzedStatsResponse response = client().execute(PreAnalyzedStatsAction.INSTANCE,
+                new PreAnalyzedStatsRequest("test")).actionGet();
+        assertEquals(0, response.getFailedShards());
+        PreAnalyzedFieldStats stats = response.getFieldStats("test", "text");
+        assertEquals(2, stats.getDocCount());
+        assertEquals(4, stats.getTokens());
+        assertEquals(2.0, stats.getAvgTokensPerDoc(), 0.0);
+        assertEquals(2, stats.getSampledDocs());
+        assertEquals(4, stats.getSampledTokens());
+        assertEquals(1, stats.getSampledStackedTokens());
+        assertEquals(Long.valueOf(1), stats.getSampledTypes().get("NNP"));
+        assertEquals(Long.valueOf(1), stats.getSampledTypes().get("word"));
+        assertEquals(1, stats.getEstimatedTokens("animal"));
+
+        // the types of fields with synthetic_source are read from the stored tokens
+        stats = response.getFieldStats("test", "title");
+        assertEquals(1, stats.getDocCount());
+        assertEquals(1, stats.getSampledDocs());
+        assertEquals(3, stats.getSampledTokens());
+        assertEquals(Long.valueOf(1), stats.getSampledTypes().get("JJ"));
+
+        response = client().execute(PreAnalyzedStatsAction.INSTANCE,
+                new PreAnalyzedStatsRequest("test").fields("ti*").sampleSize(0)).actionGet();
+        assertNull(response.getFieldStats("test", "text"));
+        assertEquals(3, response.getFieldStats("test", "title").getTokens());
+        assertEquals(0, response.getFieldStats("test", "title").getSampledTokens());
+    }
+
+    public void testCooccurrence() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").endObject().endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        index("test", "document", "1", Collections.singletonMap("text", tokens("GENE:a", "GENE:b", "x", "GENE:c")));
+        index("test", "document", "2", Collections.singletonMap("text", tokens("GENE:a", "y", "GENE:b")));
+        index("test", "document", "3", Collections.singletonMap("text",
+                tokens("GENE:a", "z", "z", "z", "z", "z", "z", "z", "GENE:c")));
+        refresh();
+
+        SearchResponse response = client().prepareSearch("test").setSize(0)
+                .addAggregation(new CooccurrenceAggregationBuilder("genes").field("text").prefix("GENE:").window(2))
+                .get();
+        List<? extends Cooccurrence.Pair> pairs = response.getAggregations().<Cooccurrence> get("genes").getPairs();
+        assertEquals(2, pairs.size());
+        assertEquals("GENE:a", pairs.get(0).getTerm1());
+        assertEquals("GENE:b", pairs.get(0).getTerm2());
+        assertEquals(2, pairs.get(0).getDocCount());
+        assertEquals("GENE:b", pairs.get(1).getTerm1());
+        assertEquals("GENE:c", pairs.get(1).getTerm2());
+        assertEquals(1, pairs.get(1).getDocCount());
+
+        response = client().prepareSearch("test").setSize(0)
+                .addAggregation(new CooccurrenceAggregationBuilder("genes").field("text").terms("GENE:c", "GENE:a")
+                        .window(10).minDocCount(2))
+                .get();
+        pairs = response.getAggregations().<Cooccurrence> get("genes").getPairs();
+        assertEquals(1, pairs.size());
+        assertEquals("GENE:a", pairs.get(0).getTerm1());
+        assertEquals("GENE:c", pairs.get(0).getTerm2());
+        assertEquals(2, pairs.get(0).getDocCount());
+        assertEquals(2, pairs.get(0).getCount());
+    }
+
+    public void testParallelDecode() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").endObject()
+                .startObject("title").field("type", "preanalyzed").field("ignore_malformed", true).endObject()
+                .endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test")
+                .setSettings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 0)
+                        .put(PreAnalyzedPredecoder.PARALLEL_DECODE_SETTING.getKey(), true))
+                .addMapping("document", mapping, XContentType.JSON));
+        ensureGreen("test");
+        // the values are only decoded ahead on the node of the primary
+        ClusterState state = client().admin().cluster().prepareState().get().getState();
+        String primaryNodeId = state.routingTable().index("test").shard(0).primaryShard().currentNodeId();
+        Client primaryClient = internalCluster().client(state.nodes().get(primaryNodeId).getName());
+
+        long predecodedValues = PreAnalyzedIndexingStats.predecodedValues();
+        BulkRequestBuilder bulk = primaryClient.prepareBulk().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 50; i++)
+            bulk.add(primaryClient.prepareIndex("test", "document", Integer.toString(i))
+                    .setSource("text", tokens("doc" + i, "common"), "title", tokens("title")));
+        String backwardsOffsets = "{\"v\":\"1\",\"tokens\":[{\"t\":\"x\",\"s\":5,\"e\":1}]}";
+        bulk.add(primaryClient.prepareIndex("test", "document", "malformed").setSource("text", backwardsOffsets));
+        bulk.add(primaryClient.prepareIndex("test", "document", "ignored").setSource("text", tokens("common"),
+                "title", "no json"));
+        // the values of a field are taken in order
+        bulk.add(primaryClient.prepareIndex("test", "document", "multi").setSource("text",
+                Arrays.asList(tokens("first"), tokens("second"))));
+        BulkResponse response = bulk.get();
+        for (int i = 0; i < 50; i++)
+            assertFalse(response.getItems()[i].getFailureMessage(), response.getItems()[i].isFailed());
+        assertTrue(response.getItems()[50].isFailed());
+        assertFalse(response.getItems()[51].isFailed());
+        assertFalse(response.getItems()[52].isFailed());
+        assertTrue(PreAnalyzedIndexingStats.predecodedValues() > predecodedValues);
+
+        assertEquals(51, client().prepareSearch("test").setQuery(matchQuery("text", "common")).get().getHits()
+                .getTotalHits().value);
+        assertSearchHits(matchQuery("text", "doc7"), "7");
+        assertSearchHits(matchQuery("text", "first"), "multi");
+        assertSearchHits(matchQuery("text", "second"), "multi");
+        assertEquals(50, client().prepareSearch("test").setQuery(matchQuery("title", "title")).get().getHits()
+                .getTotalHits().value);
+    }
+
+    public void testPipelinedDecode() throws Exception {
+        String mapping = Strings.toString(jsonBuilder().startObject().startObject("document").startObject("properties")
+                .startObject("text").field("type", "preanalyzed").field("store", true).endObject()
+                .endObject().endObject().endObject());
+        assertAcked(client().admin().indices().prepareCreate("test")
+                .setSettings(Settings.builder()
+                        .put(PreAnalyzedTokenPipeline.PIPELINED_DECODE_THRESHOLD_SETTING.getKey(), "1kb"))
+                .addMapping("document", mapping, XContentType.JSON));
+
+        String[] terms = new String[5000];
+        for (int i = 0; i < terms.length; i++)
+            terms[i] = "w" + i;
+        long pipelinedValues = PreAnalyzedIndexingStats.pipelinedValues();
+        index("test", "document", "1", Collections.singletonMap("text", tokens(terms)));
+        // short values are decoded as usual
+        index("test", "document", "2", Collections.singletonMap("text", tokens("w0", "w1")));
+        refresh();
+        // once on each copy of the shard
+        assertTrue(PreAnalyzedIndexingStats.pipelinedValues() > pipelinedValues);
+
+        assertSearchHits(spanTermQuery("text", "w4999"), "1");
+        assertSearchHits(spanNearQuery(spanTermQuery("text", "w2047"), 0).addClause(spanTermQuery("text", "w2048"))
+                .inOrder(true), "1");
+        assertEquals(2, client().prepareSearch("test").setQuery(spanNearQuery(spanTermQuery("text", "w0"), 0)
+                .addClause(spanTermQuery("text", "w1")).inOrder(true)).get().getHits().getTotalHits().value);
+
+        // a malformed token fails the document
+        XContentBuilder malformed = jsonBuilder().startObject().field("v", "1").startArray("tokens");
+        for (int i = 0; i < 3000; i++)
+            malformed.startObject().field("t", "m" + i).field("e", i == 2500 ? -2 : 0).endObject();
+        String malformedValue = Strings.toString(malformed.endArray().endObject());
+        expectThrows(MapperParsingException.class,
+                () -> index("test", "document", "3", Collections.singletonMap("text", malformedValue)));
+        refresh();
+        assertSearchHits(spanTermQuery("text", "m0"));
+        assertEquals(2, client().prepareSearch("test").get().getHits().getTotalHits().value);
+    }
+
+    private static String tokens(String... terms) throws IOException {
+        XContentBuilder builder = jsonBuilder().startObject().field("v", "1").startArray("tokens");
+        for (String term : terms)
+            builder.startObject().field("t", term).endObject();
+        return Strings.toString(builder.endArray().endObject());
+    }
+
+    public void testGeneratedTermVectors() throws Exception {
+        String mapping = IOUtils.toString(getClass().getResourceAsStream("/offsetsMapping.json"), "UTF-8");
+        byte[] docBytes = IOUtils.toByteArray(getClass().getResourceAsStream("/preanalyzedDoc.json"));
+
+        assertAcked(client().admin().indices().prepareCreate("test").addMapping("document", mapping, XContentType.JSON));
+        Map<String, Object> doc = XContentHelper.convertToMap(new BytesArray(docBytes), false, XContentType.JSON).v2();
+        doc.put("subtitle", doc.get("title"));
+        index("test", "document", "1", doc);
+        refresh();
+
+        // the subtitle neither stores term vectors nor its value, the term
+        // vectors are generated from the preanalyzed JSON in the _source
+        TermVectorsResponse response = client().prepareTermVectors("test", "document", "1").setSelectedFields("subtitle")
+                .setPositions(true).setOffsets(true).get();
+        assertTrue(response.isExists());
+        Terms terms = response.getFields().terms("subtitle");
+        assertNotNull(terms);
+        assertEquals(11, terms.size());
+        Map<String, String> occurrences = new HashMap<>();
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.ALL);
+            postings.nextDoc();
+            assertEquals(1, postings.freq());
+            int position = postings.nextPosition();
+            occurrences.put(term.utf8ToString(), position + ":" + postings.startOffset() + "-" + postings.endOffset());
+        }
+        assertEquals("0:0-12", occurrences.get("hero"));
+        assertEquals("1:6-12", occurrences.get("Beauty"));
+        assertEquals("5:26-37", occurrences.get("NNP"));
+
+        // non-preanalyzed text is still analyzed by the configured analyzer
+        assertEquals("Black Beauty", client().admin().indices().prepareAnalyze("Black Beauty").setIndex("test")
+                .setField("subtitle").get().getTokens().get(0).getTerm());
+    }
 }